@@ -0,0 +1,346 @@
+package com.la.motordroid.benchmarks;
+
+import com.la.motordroid.commons.Event;
+import com.la.motordroid.commons.EventType;
+import com.la.motordroid.managers.ControlHandler;
+import com.la.motordroid.managers.EventDispatcher;
+import com.la.motordroid.managers.Lane;
+import com.labs.adk.ADKManager;
+import com.labs.adk.Callback;
+import com.labs.adk.Capabilities;
+import com.labs.adk.link.AccessoryLink;
+import com.labs.adk.link.LinkProvider;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The control path: a "control" event as received by SocketManager.on, through {@link EventDispatcher}'s
+ * {@link Event} and {@link EventType} lookups, the control {@link Lane} and {@link ControlHandler}, to ADKManager
+ * framing it and writing it to a link that discards whatever it's given. <br/>
+ * Commands are coalesced while they wait to be written, so the number of events handled says little about the link.
+ * The bytes and transfers actually written are reported next to it as <code>writtenBytes</code> and
+ * <code>writtenTransfers</code>, per second like the score. <br/>
+ * Run with <code>-prof gc</code> to get the allocation rate per operation
+ *
+ * @author Amir Lazarovich
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ControlPathBenchmark {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String EVENT_CONTROL = "control";
+    private static final int STICK_MIN = -100;
+    private static final int STICK_MAX = 100;
+    private static final int CONTROL_LANE_CAPACITY = 64;
+    private static final int BURST_SIZE = 32;
+    private static final long BURST_GAP = 20000; // in Blackhole CPU tokens
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private ADKManager mADKManager;
+    private Lane mControlLane;
+    private EventDispatcher mControlDispatcher;
+    private EventDispatcher mDualAxisDispatcher;
+    private SinkLink mLink;
+    private Object[][] mLeftStick;
+    private Object[][] mRightStick;
+    private int mNext;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        mLeftStick = createEvents(EventType.LEFT_STICK);
+        mRightStick = createEvents(EventType.RIGHT_STICK);
+
+        mLink = new SinkLink();
+        mADKManager = new ADKManager(new SinkLinkProvider(mLink), new NoCallback(), null);
+        ControlHandler.Listener listener = new ControlHandler.Listener() {
+            @Override
+            public void onSentCommand(byte command, byte action, byte firstValue, byte secondValue) {
+            }
+        };
+        // as set up by SocketManager.initLanes
+        mControlLane = new Lane("control", CONTROL_LANE_CAPACITY, Lane.Overflow.DROP_OLDEST, Thread.MAX_PRIORITY);
+        mControlLane.start();
+        mControlDispatcher = createDispatcher(mControlLane.wrap(new ControlHandler(mADKManager, listener)));
+        ControlHandler dualAxisHandler = new ControlHandler(mADKManager, listener);
+        dualAxisHandler.setDualAxis(true);
+        mDualAxisDispatcher = createDispatcher(mControlLane.wrap(dualAxisHandler));
+
+        mADKManager.connect();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mADKManager.isConnected()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Couldn't connect to the sink link");
+            }
+
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mControlLane.stop();
+        mADKManager.disconnect();
+    }
+
+    ///////////////////////////////////////////////
+    // Benchmarks
+    ///////////////////////////////////////////////
+
+    /**
+     * A single stick sweeping its whole range
+     */
+    @Benchmark
+    public void oneStick(Written written) {
+        on(mControlDispatcher, EVENT_CONTROL, mLeftStick[next()]);
+        written.update(mLink);
+    }
+
+    /**
+     * Both sticks moving at once, their events interleaved
+     */
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void twoSticks(Written written) {
+        int index = next();
+        on(mControlDispatcher, EVENT_CONTROL, mLeftStick[index]);
+        on(mControlDispatcher, EVENT_CONTROL, mRightStick[mRightStick.length - 1 - index]);
+        written.update(mLink);
+    }
+
+    /**
+     * Both sticks moving at once, every event sent as a single frame carrying both axes
+     */
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void twoSticksDualAxis(Written written) {
+        int index = next();
+        on(mDualAxisDispatcher, EVENT_CONTROL, mLeftStick[index]);
+        on(mDualAxisDispatcher, EVENT_CONTROL, mRightStick[mRightStick.length - 1 - index]);
+        written.update(mLink);
+    }
+
+    /**
+     * Bursts of events from a single stick followed by a quiet gap, as sent by controllers that batch their input.
+     * The gap is part of the measured time, so compare results of this scenario only with each other
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void burst(Written written) {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            on(mControlDispatcher, EVENT_CONTROL, mLeftStick[next()]);
+        }
+
+        Blackhole.consumeCPU(BURST_GAP);
+        written.update(mLink);
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Mirrors SocketManager.on for "control" events
+     *
+     * @param dispatcher
+     * @param rawEvent
+     * @param args
+     */
+    private static void on(EventDispatcher dispatcher, String rawEvent, Object[] args) {
+        if (!dispatcher.dispatch(rawEvent, args)) {
+            throw new IllegalStateException("Unexpected event " + rawEvent);
+        }
+    }
+
+    /**
+     * Route "control" events to the handler, as SocketManager does
+     *
+     * @param handler
+     * @return
+     */
+    private static EventDispatcher createDispatcher(EventDispatcher.Handler handler) {
+        EventDispatcher dispatcher = new EventDispatcher();
+        dispatcher.register(Event.CONTROL, EventType.LEFT_STICK, handler);
+        dispatcher.register(Event.CONTROL, EventType.RIGHT_STICK, handler);
+        return dispatcher;
+    }
+
+    private int next() {
+        int index = mNext;
+        mNext = (index + 1) % mLeftStick.length;
+        return index;
+    }
+
+    /**
+     * Create the events of a stick moving over its whole range, arguments as they arrive from the socket
+     *
+     * @param eventType
+     * @return
+     */
+    private static Object[][] createEvents(EventType eventType) {
+        Object[][] events = new Object[STICK_MAX - STICK_MIN + 1][];
+        for (int value = STICK_MIN; value <= STICK_MAX; value++) {
+            events[value - STICK_MIN] = new Object[]{eventType.getValue(), value, -value};
+        }
+
+        return events;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * What the link wrote during an iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Written {
+        public long writtenBytes;
+        public long writtenTransfers;
+        private long mBytesBefore = -1;
+        private long mTransfersBefore;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            writtenBytes = 0;
+            writtenTransfers = 0;
+            mBytesBefore = -1;
+        }
+
+        /**
+         * Catch up with the link's counts, the writes happen on ADKManager's writer thread
+         *
+         * @param link
+         */
+        void update(SinkLink link) {
+            if (mBytesBefore < 0) {
+                mBytesBefore = link.getBytes();
+                mTransfersBefore = link.getTransfers();
+                return;
+            }
+
+            writtenBytes = link.getBytes() - mBytesBefore;
+            writtenTransfers = link.getTransfers() - mTransfersBefore;
+        }
+    }
+
+    /**
+     * A link whose writes go nowhere but are counted, and whose reads block until it's closed
+     */
+    private static class SinkLink implements AccessoryLink {
+        private final Object[] mLock = new Object[0];
+        private boolean mClosed;
+
+        // written by ADKManager's writer thread only
+        private volatile long mBytes;
+        private volatile long mTransfers;
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            synchronized (mLock) {
+                while (!mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+
+                return -1;
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            mBytes += length;
+            mTransfers++;
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                mClosed = true;
+                mLock.notifyAll();
+            }
+        }
+
+        long getBytes() {
+            return mBytes;
+        }
+
+        long getTransfers() {
+            return mTransfers;
+        }
+    }
+
+    private static class SinkLinkProvider implements LinkProvider {
+        private final SinkLink mLink;
+
+        SinkLinkProvider(SinkLink link) {
+            mLink = link;
+        }
+
+        @Override
+        public void start(Listener listener) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public AccessoryLink open() {
+            return mLink;
+        }
+    }
+
+    private static class NoCallback implements Callback {
+        @Override
+        public void onAckReceived(boolean ack) {
+        }
+
+        @Override
+        public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.la.motordroid.benchmarks;
+
+import com.labs.adk.ADKManager;
+import com.labs.adk.Callback;
+import com.labs.adk.Capabilities;
+import com.labs.adk.link.LoopbackLinkProvider;
+import com.labs.adk.sim.AccessorySimulator;
+import com.labs.commons.ADK;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commands sent through ADKManager's mailbox and writer thread, over a {@link LoopbackLinkProvider} link, to an
+ * {@link AccessorySimulator} playing the firmware. <br/>
+ * The latency benchmarks time a single stick command from the call to ADKManager until the simulated board drives the
+ * motors with it, on a normal and on the urgent lane. The throughput benchmark sends commands as fast as the mailbox
+ * takes them; since waiting commands are coalesced, the messages the board actually handled, its reads and the
+ * messages it lost to reads cut short are reported next to the score as <code>handledMessages</code>,
+ * <code>reads</code> and <code>truncatedMessages</code>, per second like the score. <br/>
+ * The link is full-speed USB: about 1 MB/s each way, with the given latency per transfer. The board's loop delay
+ * paces its reads
+ *
+ * @author Amir Lazarovich
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulatedAccessoryBenchmark {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final long BYTES_PER_SECOND = 1000000;
+    private static final long CONNECT_TIMEOUT = 5000; // in milliseconds
+    private static final long APPLY_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    private static final byte STICK_VALUE = 50;
+    private static final int BURST_SIZE = 32;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    @Param({"250"})
+    public long latencyMicros;
+
+    @Param({"0", "1000"})
+    public long loopDelayMicros;
+
+    private ADKManager mADKManager;
+    private AccessorySimulator mSimulator;
+    private volatile int mThrottle;
+    private byte mValue;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        mSimulator = new AccessorySimulator();
+        mSimulator.setLoopDelay(loopDelayMicros, TimeUnit.MICROSECONDS);
+        mSimulator.setListener(new AccessorySimulator.Listener() {
+            @Override
+            public void onControlChanged(int throttle, int turn, boolean standby) {
+                mThrottle = throttle;
+            }
+
+            @Override
+            public void onDistanceSample(float distance, float speed, boolean collision) {
+            }
+        });
+
+        LoopbackLinkProvider provider = new LoopbackLinkProvider(latencyMicros, TimeUnit.MICROSECONDS,
+                BYTES_PER_SECOND);
+        provider.setPeerListener(mSimulator);
+        mADKManager = new ADKManager(provider, new NoCallback(), null);
+        mADKManager.connect();
+
+        // commands are only written once the handshake is over
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (mADKManager.getCapabilities() == null) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Couldn't connect to the simulated accessory");
+            }
+
+            Thread.sleep(1);
+        }
+
+        mValue = STICK_VALUE;
+    }
+
+    @TearDown
+    public void tearDown() {
+        mADKManager.disconnect();
+        mSimulator.stop();
+    }
+
+    ///////////////////////////////////////////////
+    // Benchmarks
+    ///////////////////////////////////////////////
+
+    /**
+     * A single command on the normal lane of an idle link, from sending it until the board applies it
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int commandLatency() {
+        byte value = nextValue();
+        mADKManager.sendCommand(ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, value, (byte) 0);
+        return awaitThrottle(value);
+    }
+
+    /**
+     * A single command on the urgent lane of an idle link, from sending it until the board applies it
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int urgentCommandLatency() {
+        byte value = nextValue();
+        mADKManager.sendUrgentCommand(ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, value, (byte) 0);
+        return awaitThrottle(value);
+    }
+
+    /**
+     * Commands sent back to back without waiting for the board
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST_SIZE)
+    public void commandThroughput(Handled handled) {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            mADKManager.sendCommand(ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, nextValue(), (byte) 0);
+        }
+
+        handled.update(mSimulator);
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Alternate between two stick values, so every command changes the throttle
+     *
+     * @return
+     */
+    private byte nextValue() {
+        mValue = (byte) -mValue;
+        return mValue;
+    }
+
+    /**
+     * Wait until the board drives the motors with <code>value</code>
+     *
+     * @param value The stick value sent
+     * @return The throttle
+     */
+    private int awaitThrottle(byte value) {
+        int expected = AccessorySimulator.map(value, -100, 100, -255, 255);
+        long deadline = System.nanoTime() + APPLY_TIMEOUT;
+        int throttle;
+        while ((throttle = mThrottle) != expected) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("The simulated accessory never applied " + value);
+            }
+
+            Thread.yield();
+        }
+
+        return throttle;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * What the simulated board handled during an iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Handled {
+        public long handledMessages;
+        public long reads;
+        public long truncatedMessages;
+        private long mMessagesBefore = -1;
+        private long mReadsBefore;
+        private long mTruncatedBefore;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            handledMessages = 0;
+            reads = 0;
+            truncatedMessages = 0;
+            mMessagesBefore = -1;
+        }
+
+        /**
+         * Catch up with the board's counts, which are updated on its own thread
+         *
+         * @param simulator
+         */
+        void update(AccessorySimulator simulator) {
+            if (mMessagesBefore < 0) {
+                mMessagesBefore = simulator.getMessageCount();
+                mReadsBefore = simulator.getReadCount();
+                mTruncatedBefore = simulator.getTruncatedMessageCount();
+                return;
+            }
+
+            handledMessages = simulator.getMessageCount() - mMessagesBefore;
+            reads = simulator.getReadCount() - mReadsBefore;
+            truncatedMessages = simulator.getTruncatedMessageCount() - mTruncatedBefore;
+        }
+    }
+
+    private static class NoCallback implements Callback {
+        @Override
+        public void onAckReceived(boolean ack) {
+        }
+
+        @Override
+        public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        }
+    }
+}
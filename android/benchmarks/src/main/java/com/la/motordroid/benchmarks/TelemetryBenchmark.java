@@ -0,0 +1,111 @@
+package com.la.motordroid.benchmarks;
+
+import com.labs.adk.FrameDecoder;
+import com.labs.adk.TelemetryBuffer;
+import com.labs.commons.ADK;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a single telemetry sample on the phone: decoding it off the link into {@link TelemetryBuffer}, and
+ * draining it from there. <br/>
+ * Run with <code>-prof gc</code> to confirm neither allocates
+ *
+ * @author Amir Lazarovich
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TelemetryBenchmark {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int FRAME_SIZE = ADK.HEADER_SIZE + ADK.TELEMETRY_DISTANCE_LENGTH;
+    private static final int SAMPLES_PER_TRANSFER = 2; // what fits in the accessory's 16-byte buffer
+    private static final int BATCH_SIZE = 64;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private FrameDecoder mDecoder;
+    private TelemetryBuffer mBuffer;
+    private byte[] mTransfer;
+    private long[] mTimes;
+    private int[] mDistances;
+    private int[] mSpeeds;
+    private boolean[] mCollisions;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Setup
+    public void setUp() {
+        mBuffer = new TelemetryBuffer();
+        mDecoder = new FrameDecoder();
+        mDecoder.setHandler(ADK.COMMAND_TELEMETRY, mBuffer);
+
+        mTransfer = new byte[FRAME_SIZE * SAMPLES_PER_TRANSFER];
+        for (int i = 0; i < SAMPLES_PER_TRANSFER; i++) {
+            int offset = i * FRAME_SIZE;
+            int distance = 700 + i;
+            int speed = -25;
+            mTransfer[offset] = ADK.COMMAND_TELEMETRY;
+            mTransfer[offset + 1] = ADK.ACTION_DISTANCE;
+            mTransfer[offset + 2] = ADK.TELEMETRY_DISTANCE_LENGTH;
+            mTransfer[offset + 3] = (byte) (distance >> 8);
+            mTransfer[offset + 4] = (byte) distance;
+            mTransfer[offset + 5] = (byte) (speed >> 8);
+            mTransfer[offset + 6] = (byte) speed;
+            mTransfer[offset + 7] = 0;
+        }
+
+        int capacity = mBuffer.getCapacity();
+        mTimes = new long[capacity];
+        mDistances = new int[capacity];
+        mSpeeds = new int[capacity];
+        mCollisions = new boolean[capacity];
+    }
+
+    ///////////////////////////////////////////////
+    // Benchmarks
+    ///////////////////////////////////////////////
+
+    /**
+     * Decoding transfers of telemetry frames, the ring overwriting its oldest samples once full
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES_PER_TRANSFER)
+    public void decode() {
+        mDecoder.feed(mTransfer, 0, mTransfer.length);
+    }
+
+    /**
+     * Decoding a batch of samples and draining it, as the reporter does
+     *
+     * @return
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int decodeAndDrain() {
+        for (int i = 0; i < BATCH_SIZE / SAMPLES_PER_TRANSFER; i++) {
+            mDecoder.feed(mTransfer, 0, mTransfer.length);
+        }
+
+        return mBuffer.drain(mTimes, mDistances, mSpeeds, mCollisions);
+    }
+}
@@ -0,0 +1,134 @@
+package com.la.motordroid.benchmarks;
+
+import com.labs.adk.link.UsbHostLink;
+import com.labs.adk.sim.SimulatedTransferQueue;
+import com.labs.commons.ADK;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host-mode link throughput and latency over a simulated USB layer, see {@link SimulatedTransferQueue}. <br/>
+ * A depth of 1 keeps a single transfer in flight, which is how the accessory path's blocking streams behave; larger
+ * depths show what keeping several transfers queued buys. Every frame is echoed back by the simulated device. <br/>
+ * The simulated bus is full-speed USB: about 1 MB/s each way, with the given latency per transfer
+ *
+ * @author Amir Lazarovich
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UsbLinkBenchmark {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int FRAME_SIZE = ADK.HEADER_SIZE + 2;
+    private static final int BURST_SIZE = 64;
+    private static final long BYTES_PER_SECOND = 1000000;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    @Param({"1", "4", "8"})
+    public int depth;
+
+    @Param({"250"})
+    public long latencyMicros;
+
+    private UsbHostLink mLink;
+    private byte[] mFrame;
+    private byte[] mReceived;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Setup
+    public void setUp() throws IOException {
+        SimulatedTransferQueue queue = new SimulatedTransferQueue(depth, latencyMicros, TimeUnit.MICROSECONDS,
+                BYTES_PER_SECOND);
+        mLink = new UsbHostLink(queue, UsbHostLink.DEFAULT_TRANSFER_SIZE);
+        mFrame = new byte[]{ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, 2, 50, 0};
+        mReceived = new byte[UsbHostLink.DEFAULT_TRANSFER_SIZE];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mLink.close();
+    }
+
+    ///////////////////////////////////////////////
+    // Benchmarks
+    ///////////////////////////////////////////////
+
+    /**
+     * A single frame written and its echo read back, i.e. the time to get an answer from an idle link
+     */
+    @Benchmark
+    public int roundTrip() throws IOException {
+        mLink.write(mFrame, 0, FRAME_SIZE);
+        return receive(FRAME_SIZE);
+    }
+
+    /**
+     * A stream of frames, written one per transfer as fast as the link takes them while the echoes are read back.
+     * The time per operation is the time per frame
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public int stream() throws IOException {
+        int received = 0;
+        for (int i = 0; i < BURST_SIZE; i++) {
+            mLink.write(mFrame, 0, FRAME_SIZE);
+
+            // keep at most depth frames unanswered, so the echoes never wait for a free IN transfer
+            int unanswered = (i + 1) * FRAME_SIZE - received;
+            if (unanswered > depth * FRAME_SIZE) {
+                received += receive(unanswered - depth * FRAME_SIZE);
+            }
+        }
+
+        return received + receive(BURST_SIZE * FRAME_SIZE - received);
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Read at least <code>length</code> bytes
+     *
+     * @param length
+     * @return The number of bytes read
+     * @throws IOException
+     */
+    private int receive(int length) throws IOException {
+        int received = 0;
+        while (received < length) {
+            int read = mLink.read(mReceived, 0, mReceived.length);
+            if (read < 0) {
+                throw new IOException("Link closed");
+            }
+
+            received += read;
+        }
+
+        return received;
+    }
+}
@@ -0,0 +1,9 @@
+package com.labs.commons;
+
+/**
+ * Stands in for the BuildConfig the Android build generates for the commons library. <br/>
+ * Benchmarks run as a release build, so logging is off
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
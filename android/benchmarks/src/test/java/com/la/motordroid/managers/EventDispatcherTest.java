@@ -0,0 +1,142 @@
+package com.la.motordroid.managers;
+
+import com.la.motordroid.commons.Event;
+import com.la.motordroid.commons.EventType;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link EventDispatcher}'s table, indexed by the ordinals of {@link Event} and {@link EventType}, routes
+ * every (event, type) to the handler registered for exactly that pair, and counts the events it can't route
+ *
+ * @author Amir Lazarovich
+ */
+public class EventDispatcherTest {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private EventDispatcher mDispatcher;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mDispatcher = new EventDispatcher();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void everyEventAndTypeHasAnEntryOfItsOwn() {
+        RecordingHandler[][] handlers = new RecordingHandler[Event.values().length][EventType.values().length];
+        for (Event event : Event.values()) {
+            for (EventType eventType : EventType.values()) {
+                handlers[event.ordinal()][eventType.ordinal()] = new RecordingHandler();
+                mDispatcher.register(event, eventType, handlers[event.ordinal()][eventType.ordinal()]);
+            }
+        }
+
+        int dispatched = 0;
+        for (Event event : Event.values()) {
+            if (event == Event.UNKNOWN) {
+                continue;
+            }
+
+            for (EventType eventType : EventType.values()) {
+                assertTrue(mDispatcher.dispatch(event.getValue(), new Object[]{eventType.getValue(), 1}));
+                dispatched++;
+
+                RecordingHandler handler = handlers[event.ordinal()][eventType.ordinal()];
+                assertEquals(1, handler.mCount);
+                assertSame(event, handler.mEvent);
+                assertSame(eventType, handler.mEventType);
+            }
+        }
+
+        assertEquals(dispatched, mDispatcher.getDispatchedCount());
+    }
+
+    @Test
+    public void aHandlerForAnEventTakesEveryType() {
+        RecordingHandler handler = new RecordingHandler();
+        mDispatcher.register(Event.CONTROL, handler);
+
+        assertTrue(mDispatcher.dispatch("control", new Object[]{"left_stick", 50}));
+        assertTrue(mDispatcher.dispatch("control", new Object[]{"no_such_type"}));
+        assertTrue(mDispatcher.dispatch("control", new Object[]{7}));
+        assertTrue(mDispatcher.dispatch("control", new Object[0]));
+
+        assertEquals(4, handler.mCount);
+        assertSame(EventType.UNKNOWN, handler.mEventType);
+    }
+
+    @Test
+    public void aHandlerForATypeReplacesOnlyThatType() {
+        RecordingHandler any = new RecordingHandler();
+        RecordingHandler standby = new RecordingHandler();
+        mDispatcher.register(Event.CONTROL, any);
+        mDispatcher.register(Event.CONTROL, EventType.STANDBY, standby);
+
+        mDispatcher.dispatch("control", new Object[]{"standby", 1});
+        mDispatcher.dispatch("control", new Object[]{"power", 1});
+
+        assertEquals(1, standby.mCount);
+        assertEquals(1, any.mCount);
+        assertSame(EventType.POWER, any.mEventType);
+    }
+
+    @Test
+    public void namesAreMatchedIgnoringCase() {
+        RecordingHandler handler = new RecordingHandler();
+        mDispatcher.register(Event.FUNCTION, EventType.TAKE_PICTURE, handler);
+
+        assertTrue(mDispatcher.dispatch("Function", new Object[]{"TAKE_PICTURE"}));
+        assertEquals(1, handler.mCount);
+    }
+
+    @Test
+    public void eventsThatCantBeRoutedAreCounted() {
+        RecordingHandler handler = new RecordingHandler();
+        mDispatcher.register(Event.CONTROL, EventType.LEFT_STICK, handler);
+
+        assertFalse(mDispatcher.dispatch("no_such_event", new Object[]{"left_stick"}));
+        assertFalse(mDispatcher.dispatch("control", new Object[]{"right_stick"}));
+        assertFalse(mDispatcher.dispatch("frame", new Object[]{"left_stick"}));
+
+        assertEquals(1, mDispatcher.getUnknownEventCount());
+        assertEquals(2, mDispatcher.getUnhandledCount());
+        assertEquals(0, mDispatcher.getDispatchedCount());
+        assertEquals(0, handler.mCount);
+        assertNull(handler.mEvent);
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Records the last event it handled
+     */
+    private static class RecordingHandler implements EventDispatcher.Handler {
+        private int mCount;
+        private Event mEvent;
+        private EventType mEventType;
+
+        @Override
+        public void onEvent(Event event, EventType eventType, Object[] args) {
+            mCount++;
+            mEvent = event;
+            mEventType = eventType;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.la.motordroid.managers;
+
+import com.la.motordroid.commons.Event;
+import com.la.motordroid.commons.EventType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that events handled through {@link Lane#wrap(EventDispatcher.Handler)} are coalesced per (event, type),
+ * never overflow the lane and are queued without allocating, and that lifecycle tasks are never crowded out
+ *
+ * @author Amir Lazarovich
+ */
+public class LaneTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final long TIMEOUT = 5; // in seconds
+    private static final int WARMUP_EVENTS = 200000;
+    private static final int EVENTS = 100000;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private Lane mLane;
+    private CountDownLatch mBlocked;
+    private CountDownLatch mRelease;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        // as small as it gets, with the overflow policy of the control lane
+        mLane = new Lane("test", 2, Lane.Overflow.DROP_OLDEST, Thread.NORM_PRIORITY);
+        mLane.start();
+        mBlocked = new CountDownLatch(1);
+        mRelease = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mLane.stop();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void eventsOfTheSameKindAreCoalesced() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        EventDispatcher.Handler wrapped = mLane.wrap(handler);
+        block();
+
+        Object[] stop = stick(EventType.LEFT_STICK, 0);
+        wrapped.onEvent(Event.CONTROL, EventType.LEFT_STICK, stick(EventType.LEFT_STICK, 50));
+        wrapped.onEvent(Event.CONTROL, EventType.RIGHT_STICK, stick(EventType.RIGHT_STICK, 10));
+        wrapped.onEvent(Event.CONTROL, EventType.LEFT_STICK, stop);
+        wrapped.onEvent(Event.CONTROL, EventType.RIGHT_STICK, stick(EventType.RIGHT_STICK, 20));
+        assertEquals(2, mLane.getDepth());
+
+        handler.expect(2);
+        mRelease.countDown();
+        handler.await();
+
+        // the latest event of each stick, in the order the sticks were first queued
+        assertSame(stop, handler.mArgs.get(0));
+        assertEquals(20, handler.mArgs.get(1)[1]);
+        assertEquals(2, mLane.getCoalescedCount());
+        assertEquals(0, mLane.getDroppedCount());
+    }
+
+    @Test
+    public void aKindIsQueuedAgainOnceItRan() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        EventDispatcher.Handler wrapped = mLane.wrap(handler);
+        for (int value = 0; value < 3; value++) {
+            handler.expect(1);
+            wrapped.onEvent(Event.CONTROL, EventType.LEFT_STICK, stick(EventType.LEFT_STICK, value));
+            handler.await();
+        }
+
+        assertEquals(3, handler.mArgs.size());
+        assertEquals(2, handler.mArgs.get(2)[1]);
+    }
+
+    @Test
+    public void queuingEventsDoesNotAllocate() throws InterruptedException {
+        EventDispatcher.Handler wrapped = mLane.wrap(new EventDispatcher.Handler() {
+            @Override
+            public void onEvent(Event event, EventType eventType, Object[] args) {
+            }
+        });
+        Object[] left = stick(EventType.LEFT_STICK, 1);
+        Object[] right = stick(EventType.RIGHT_STICK, 1);
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            wrapped.onEvent(Event.CONTROL, EventType.LEFT_STICK, left);
+            wrapped.onEvent(Event.CONTROL, EventType.RIGHT_STICK, right);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < EVENTS; i++) {
+            wrapped.onEvent(Event.CONTROL, EventType.LEFT_STICK, left);
+            wrapped.onEvent(Event.CONTROL, EventType.RIGHT_STICK, right);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals("bytes allocated per event (" + allocated + " in total)", 0, allocated / (2 * EVENTS));
+        assertEquals(0, mLane.getDroppedCount());
+    }
+
+    @Test
+    public void lifecycleTasksRunFirstEvenWhenTheQueueIsFull() throws InterruptedException {
+        Lane lane = new Lane("media", 2, Lane.Overflow.DROP_NEWEST, Thread.NORM_PRIORITY);
+        lane.start();
+        try {
+            final List<String> ran = new ArrayList<String>();
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(3);
+            lane.offer(new Runnable() {
+                @Override
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertTrue(blocked.await(TIMEOUT, TimeUnit.SECONDS));
+
+            assertTrue(lane.offer(new NamedTask("picture", ran, done)));
+            assertTrue(lane.offer(new NamedTask("picture", ran, done)));
+            assertFalse(lane.offer(new NamedTask("picture", ran, done)));
+            assertTrue(lane.offerLifecycle(new NamedTask("start", ran, done)));
+            // replaces the start that's still waiting
+            assertTrue(lane.offerLifecycle(new NamedTask("stop", ran, done)));
+
+            release.countDown();
+            assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+            synchronized (ran) {
+                assertEquals(Arrays.asList("stop", "picture", "picture"), ran);
+            }
+        } finally {
+            lane.stop();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Keep the lane's thread busy until {@link #mRelease} is counted down
+     *
+     * @throws InterruptedException
+     */
+    private void block() throws InterruptedException {
+        mLane.offer(new Runnable() {
+            @Override
+            public void run() {
+                mBlocked.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(mBlocked.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    private static Object[] stick(EventType eventType, int value) {
+        return new Object[]{eventType.getValue(), value, value};
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    private static class NamedTask implements Runnable {
+        private final String mName;
+        private final List<String> mRan;
+        private final CountDownLatch mDone;
+
+        NamedTask(String name, List<String> ran, CountDownLatch done) {
+            mName = name;
+            mRan = ran;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mRan) {
+                mRan.add(mName);
+            }
+
+            mDone.countDown();
+        }
+    }
+
+    private static class RecordingHandler implements EventDispatcher.Handler {
+        private final List<Object[]> mArgs = new ArrayList<Object[]>();
+        private volatile CountDownLatch mHandled;
+
+        void expect(int events) {
+            mHandled = new CountDownLatch(events);
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mHandled.await(TIMEOUT, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public void onEvent(Event event, EventType eventType, Object[] args) {
+            synchronized (mArgs) {
+                mArgs.add(args);
+            }
+
+            mHandled.countDown();
+        }
+    }
+}
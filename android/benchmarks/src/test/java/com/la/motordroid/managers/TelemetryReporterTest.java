@@ -0,0 +1,127 @@
+package com.la.motordroid.managers;
+
+import com.labs.adk.TelemetryBuffer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the batches {@link TelemetryReporter} builds: at most {@link TelemetryReporter#MAX_SAMPLES_PER_BATCH}
+ * samples, each the last of the samples it stands for with any collision among them kept, and the number of samples
+ * lost to the buffer overflowing since the previous batch
+ *
+ * @author Amir Lazarovich
+ */
+public class TelemetryReporterTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final long START_TIME = 1400000000000L; // in milliseconds
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private TelemetryBuffer mBuffer;
+    private TelemetryReporter mReporter;
+    private List<JSONObject> mBatches;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mBuffer = new TelemetryBuffer(64);
+        mBatches = new ArrayList<JSONObject>();
+        mReporter = new TelemetryReporter(mBuffer, new TelemetryReporter.Sink() {
+            @Override
+            public void onTelemetryBatch(JSONObject batch) {
+                mBatches.add(batch);
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void fewSamplesAreSentAsTheyAre() throws JSONException {
+        add(3, -1);
+        mReporter.report();
+
+        JSONObject batch = mBatches.get(0);
+        assertEquals(START_TIME, batch.getLong("start"));
+        assertValues(batch.getJSONArray("t"), 0, 10, 20);
+        assertValues(batch.getJSONArray("distance"), 1000, 999, 998);
+        assertValues(batch.getJSONArray("collision"), 0, 0, 0);
+        assertEquals(3, batch.getInt("samples"));
+        assertEquals(0, batch.getInt("dropped"));
+    }
+
+    @Test
+    public void manySamplesAreDownsampled() throws JSONException {
+        // 25 samples in 10 buckets ending after samples 2, 5, 7, 10, 12, 15, 17, 20, 22 and 25
+        add(25, 13);
+        mReporter.report();
+
+        JSONObject batch = mBatches.get(0);
+        assertValues(batch.getJSONArray("t"), 10, 40, 60, 90, 110, 140, 160, 190, 210, 240);
+        assertValues(batch.getJSONArray("distance"), 999, 996, 994, 991, 989, 986, 984, 981, 979, 976);
+        // the collision happened in the middle of the sixth bucket
+        assertValues(batch.getJSONArray("collision"), 0, 0, 0, 0, 0, 1, 0, 0, 0, 0);
+        assertEquals(25, batch.getInt("samples"));
+        assertEquals(25, mReporter.getSampleCount());
+    }
+
+    @Test
+    public void overwrittenSamplesAreReportedAsDropped() throws JSONException {
+        add(mBuffer.getCapacity() + 5, -1);
+        mReporter.report();
+        add(3, -1);
+        mReporter.report();
+
+        assertEquals(2, mBatches.size());
+        assertEquals(mBuffer.getCapacity(), mBatches.get(0).getInt("samples"));
+        assertEquals(5, mBatches.get(0).getInt("dropped"));
+        assertEquals(0, mBatches.get(1).getInt("dropped"));
+    }
+
+    @Test
+    public void nothingIsSentWithoutSamples() {
+        mReporter.report();
+
+        assertEquals(0, mBatches.size());
+        assertEquals(0, mReporter.getReportCount());
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Add samples 10 ms apart, getting 1 mm closer every time
+     *
+     * @param count
+     * @param collision The index of the sample that detected a collision, or -1
+     */
+    private void add(int count, int collision) {
+        for (int i = 0; i < count; i++) {
+            mBuffer.add(START_TIME + i * 10, 1000 - i, -10, i == collision);
+        }
+    }
+
+    private static void assertValues(JSONArray array, long... values) throws JSONException {
+        assertEquals(values.length, array.length());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("at " + i, values[i], array.getLong(i));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends commands right after a connection is opened, while its handshake is still going on: the hello has to be
+ * written first, urgent commands right after it and normal commands only once the handshake is over. <br/>
+ * The links never answer the hello, so every handshake times out to the legacy mode
+ *
+ * @author Amir Lazarovich
+ */
+public class ADKManagerHandshakeTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final long TIMEOUT = 5000; // in milliseconds
+    private static final long HANDSHAKE_TIMEOUT = 500; // in milliseconds, as in ADKManager
+    private static final byte[] STOP = {ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, 2, 0, 0};
+    private static final byte[] TURN = {ADK.COMMAND_CONTROL, ADK.ACTION_RIGHT_STICK, 2, 0, 30};
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private RecordingLinkProvider mProvider;
+    private ADKManager mADKManager;
+    private volatile boolean mSendOnConnected;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mProvider = new RecordingLinkProvider();
+        // without a handler callbacks run right away, i.e. onConnected runs while the handshake just started
+        mADKManager = new ADKManager(mProvider, new SendingCallback(), null);
+    }
+
+    @After
+    public void tearDown() {
+        mADKManager.disconnect();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void urgentCommandsAreWrittenDuringTheHandshake() throws InterruptedException {
+        mSendOnConnected = true;
+        long start = System.currentTimeMillis();
+        mADKManager.connect();
+
+        RecordingLink link = mProvider.awaitLink(0);
+        link.awaitWrites(2);
+        assertTrue("the stop waited for the handshake", System.currentTimeMillis() - start < HANDSHAKE_TIMEOUT);
+        assertEquals(ADK.COMMAND_HELLO, link.getWrite(0)[0]);
+        assertArrayEquals(STOP, link.getWrite(1));
+        assertEquals(2, link.getWriteCount());
+
+        // the normal command was held back until the handshake timed out
+        link.awaitWrites(3);
+        assertNotNull(mADKManager.getCapabilities());
+        assertArrayEquals(TURN, link.getWrite(2));
+        assertEquals(0, mADKManager.getStaleFrameCount());
+    }
+
+    @Test
+    public void urgentStopDuringAReconnectReachesTheLink() throws InterruptedException {
+        mADKManager.connect();
+        RecordingLink first = mProvider.awaitLink(0);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mADKManager.getCapabilities() == null) {
+            assertTrue("The handshake never ended", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        // unplugged and reconnected right away, the stop is sent as soon as the new connection is reported
+        mSendOnConnected = true;
+        first.close();
+        RecordingLink second = mProvider.awaitLink(1);
+        second.awaitWrites(2);
+
+        assertEquals(ADK.COMMAND_HELLO, second.getWrite(0)[0]);
+        assertArrayEquals(STOP, second.getWrite(1));
+        assertEquals(0, mADKManager.getStaleFrameCount());
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Sends a normal and an urgent command whenever a connection is reported, once asked to
+     */
+    private class SendingCallback implements Callback {
+        @Override
+        public void onConnected() {
+            if (mSendOnConnected) {
+                mADKManager.sendCommand(TURN[0], TURN[1], TURN[3], TURN[4]);
+                mADKManager.sendUrgentCommand(STOP[0], STOP[1], STOP[3], STOP[4]);
+            }
+        }
+
+        @Override
+        public void onAckReceived(boolean ack) {
+        }
+
+        @Override
+        public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives two accessories through an {@link AccessoryGroup}, each over its own {@link RecordingLinkProvider}: commands
+ * reach only the accessory they're sent to, broadcasts reach all of them and accessories follow the group's
+ * connection. <br/>
+ * Urgent commands are written without waiting for the handshake, so the accessories never have to answer
+ *
+ * @author Amir Lazarovich
+ */
+public class AccessoryGroupTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String DRIVE = "drive";
+    private static final String SENSORS = "sensors";
+    private static final byte[] STOP = {ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, 2, 0, 0};
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private AccessoryGroup mGroup;
+    private RecordingLinkProvider mDrive;
+    private RecordingLinkProvider mSensors;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mGroup = new AccessoryGroup(null);
+        mDrive = new RecordingLinkProvider();
+        mSensors = new RecordingLinkProvider();
+        mGroup.add(DRIVE, mDrive, new NoCallback());
+    }
+
+    @After
+    public void tearDown() {
+        mGroup.disconnect();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void commandsAreRoutedByAccessory() throws InterruptedException {
+        mGroup.add(SENSORS, mSensors, new NoCallback());
+        mGroup.connect();
+        RecordingLink drive = mDrive.awaitLink(0);
+        RecordingLink sensors = mSensors.awaitLink(0);
+        // the hello of every connection
+        drive.awaitWrites(1);
+        sensors.awaitWrites(1);
+
+        mGroup.sendUrgentCommand(DRIVE, STOP[0], STOP[1], STOP[3], STOP[4]);
+        drive.awaitWrites(2);
+
+        assertArrayEquals(STOP, drive.getWrite(1));
+        assertEquals(1, sensors.getWriteCount());
+        assertEquals(2, mGroup.getConnectedCount());
+    }
+
+    @Test
+    public void broadcastsReachEveryAccessory() throws InterruptedException {
+        mGroup.add(SENSORS, mSensors, new NoCallback());
+        mGroup.connect();
+        RecordingLink drive = mDrive.awaitLink(0);
+        RecordingLink sensors = mSensors.awaitLink(0);
+        drive.awaitWrites(1);
+        sensors.awaitWrites(1);
+
+        mGroup.broadcastUrgentCommand(STOP[0], STOP[1], new byte[]{STOP[3], STOP[4]});
+        drive.awaitWrites(2);
+        sensors.awaitWrites(2);
+
+        assertArrayEquals(STOP, drive.getWrite(1));
+        assertArrayEquals(STOP, sensors.getWrite(1));
+    }
+
+    @Test
+    public void accessoriesAddedToAConnectedGroupConnectRightAway() throws InterruptedException {
+        mGroup.connect();
+        mDrive.awaitLink(0);
+
+        mGroup.add(SENSORS, mSensors, new NoCallback());
+        mSensors.awaitLink(0);
+    }
+
+    @Test
+    public void accessoriesAreOnlyConnectedWithTheGroup() throws InterruptedException {
+        mGroup.add(SENSORS, mSensors, new NoCallback());
+        Thread.sleep(50);
+        assertEquals(0, mDrive.getLinkCount());
+        assertEquals(0, mSensors.getLinkCount());
+
+        mGroup.connect();
+        RecordingLink drive = mDrive.awaitLink(0);
+        RecordingLink sensors = mSensors.awaitLink(0);
+        mGroup.disconnect();
+
+        assertTrue(drive.isClosed());
+        assertTrue(sensors.isClosed());
+        assertEquals(0, mGroup.getConnectedCount());
+        assertEquals(2, mGroup.size());
+    }
+
+    @Test
+    public void removedAccessoriesAreDisconnected() throws InterruptedException {
+        ADKManager sensorsManager = mGroup.add(SENSORS, mSensors, new NoCallback());
+        mGroup.connect();
+        RecordingLink sensors = mSensors.awaitLink(0);
+
+        assertSame(sensorsManager, mGroup.remove(SENSORS));
+        assertTrue(sensors.isClosed());
+        assertFalse(mGroup.isConnected(SENSORS));
+        assertNull(mGroup.get(SENSORS));
+        assertNull(mGroup.remove(SENSORS));
+        assertEquals(1, mGroup.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anIdIsOnlyRegisteredOnce() {
+        mGroup.add(DRIVE, mSensors, new NoCallback());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void commandsToAnUnknownAccessoryAreRejected() {
+        mGroup.sendCommand(SENSORS, STOP[0], STOP[1], STOP[3], STOP[4]);
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    private static class NoCallback implements Callback {
+        @Override
+        public void onAckReceived(boolean ack) {
+        }
+
+        @Override
+        public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        }
+    }
+}
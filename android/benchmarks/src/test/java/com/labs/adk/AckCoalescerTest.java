@@ -0,0 +1,165 @@
+package com.labs.adk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds acks to an {@link AckCoalescer} delivering right away on the thread that hands it the delivery: the first ack
+ * is delivered at once, the ones that follow within the interval are counted into a single delayed delivery
+ *
+ * @author Amir Lazarovich
+ */
+public class AckCoalescerTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final long INTERVAL = 100; // in milliseconds
+    private static final long TIMEOUT = 5000; // in milliseconds
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private RecordingCallback mCallback;
+    private AckCoalescer mCoalescer;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mCallback = new RecordingCallback();
+        mCoalescer = new AckCoalescer(mCallback, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        }, INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        mCoalescer.shutdown();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void theFirstAckIsDeliveredRightAway() {
+        mCoalescer.onAck(false);
+
+        assertEquals(1, mCallback.getDeliveryCount());
+        assertEquals("false 0 1", mCallback.getDelivery(0));
+        assertEquals(0, mCoalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void acksWithinTheIntervalAreDeliveredTogether() throws InterruptedException {
+        long start = System.nanoTime();
+        mCoalescer.onAck(true);
+        mCoalescer.onAck(true);
+        mCoalescer.onAck(false);
+        mCoalescer.onAck(true);
+        mCoalescer.onAck(false);
+        assertEquals(1, mCallback.getDeliveryCount());
+
+        mCallback.awaitDeliveries(2);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(INTERVAL));
+        assertEquals("false 2 2", mCallback.getDelivery(1));
+        assertEquals(2, mCoalescer.getDeliveryCount());
+        assertEquals(3, mCoalescer.getCoalescedCount());
+
+        // nothing is delivered without new acks
+        Thread.sleep(2 * INTERVAL);
+        assertEquals(2, mCallback.getDeliveryCount());
+    }
+
+    @Test
+    public void delayedDeliveriesAreTimedOnTheirOwnThread() throws InterruptedException {
+        mCoalescer.onAck(true);
+        mCoalescer.onAck(true);
+        mCallback.awaitDeliveries(2);
+
+        assertEquals("AckCoalescer", mCallback.getLastThreadName());
+    }
+
+    @Test
+    public void aShutDownCoalescerStopsDelivering() throws InterruptedException {
+        mCoalescer.onAck(true);
+        mCoalescer.onAck(true);
+        mCoalescer.shutdown();
+        Thread.sleep(2 * INTERVAL);
+
+        assertEquals(1, mCallback.getDeliveryCount());
+        // acks that still arrive are dropped quietly
+        mCoalescer.onAck(true);
+        assertEquals(1, mCallback.getDeliveryCount());
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Records every delivery as "lastAck acks nacks"
+     */
+    private static class RecordingCallback implements Callback {
+        private final List<String> mDeliveries = new ArrayList<String>();
+        private String mLastThreadName;
+
+        @Override
+        public synchronized void onAcksReceived(boolean lastAck, int acks, int nacks) {
+            mDeliveries.add(lastAck + " " + acks + " " + nacks);
+            mLastThreadName = Thread.currentThread().getName();
+            notifyAll();
+        }
+
+        @Override
+        public void onAckReceived(boolean ack) {
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        }
+
+        synchronized void awaitDeliveries(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (mDeliveries.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Only " + mDeliveries.size() + " deliveries", remaining > 0);
+                wait(remaining);
+            }
+        }
+
+        synchronized String getDelivery(int index) {
+            return mDeliveries.get(index);
+        }
+
+        synchronized int getDeliveryCount() {
+            return mDeliveries.size();
+        }
+
+        synchronized String getLastThreadName() {
+            return mLastThreadName;
+        }
+    }
+}
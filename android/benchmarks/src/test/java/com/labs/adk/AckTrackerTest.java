@@ -0,0 +1,109 @@
+package com.labs.adk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Matches acks to the frames they acknowledge, including after the sequence numbers wrapped around while frames were
+ * still waiting for their acks
+ *
+ * @author Amir Lazarovich
+ */
+public class AckTrackerTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int SEQUENCES = 256;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private AckTracker mTracker;
+    private long mNow;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mTracker = new AckTracker();
+        mNow = 1000;
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void anAckResolvesTheOlderFramesAsLost() {
+        send(5);
+
+        assertEquals(3, mTracker.onAck((byte) 2, mNow));
+        assertEquals(2, mTracker.getLostCount());
+        assertEquals(2, mTracker.getPendingCount());
+        assertEquals(1, mTracker.onAck((byte) 3, mNow));
+        assertEquals(2, mTracker.getLostCount());
+    }
+
+    @Test
+    public void anUnknownAckResolvesNothing() {
+        send(2);
+        assertEquals(2, mTracker.onAck((byte) 1, mNow));
+
+        // already resolved by the ack that followed it
+        assertEquals(0, mTracker.onAck((byte) 0, mNow));
+        assertEquals(1, mTracker.getLostCount());
+    }
+
+    @Test
+    public void acksAreMatchedAfterWrappingAround() {
+        int frames = SEQUENCES + 44;
+        send(frames);
+
+        // the first 44 frames had their sequence numbers reused before they were acked
+        assertEquals(44, mTracker.getLostCount());
+        assertEquals(SEQUENCES, mTracker.getPendingCount());
+
+        // frame 100 still waits for its ack; only frames 44 to 99 are older than it
+        assertEquals(57, mTracker.onAck((byte) 100, mNow));
+        assertEquals(44 + 56, mTracker.getLostCount());
+        assertEquals(frames - 100, mTracker.getLastRtt());
+
+        // the newest frame, which reused sequence number 43
+        assertEquals(SEQUENCES - 57, mTracker.onAck((byte) (frames - 1), mNow));
+        assertEquals(frames - 2, mTracker.getLostCount());
+        assertEquals(0, mTracker.getPendingCount());
+        assertEquals(1, mTracker.getLastRtt());
+    }
+
+    @Test
+    public void resetGivesUpOnPendingFrames() {
+        send(3);
+        mTracker.reset();
+
+        assertEquals(3, mTracker.getLostCount());
+        assertEquals(0, mTracker.getPendingCount());
+        assertEquals(0, mTracker.onAck((byte) 2, mNow));
+
+        // sequence numbers carry on where they stopped
+        assertEquals(3, mTracker.onSend(mNow));
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Send frames one nanosecond apart, with no acks in between
+     *
+     * @param frames
+     */
+    private void send(int frames) {
+        for (int i = 0; i < frames; i++) {
+            mTracker.onSend(mNow++);
+        }
+    }
+}
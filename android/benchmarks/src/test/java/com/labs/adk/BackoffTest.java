@@ -0,0 +1,92 @@
+package com.labs.adk;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Draws many delays from a {@link Backoff}: every delay lies between half its base delay and the full base delay, the
+ * base doubles up to the maximum and a reset starts over from the initial delay
+ *
+ * @author Amir Lazarovich
+ */
+public class BackoffTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final long INITIAL_DELAY = 100;
+    private static final long MAX_DELAY = 1600;
+    private static final int RUNS = 1000;
+    private static final int ATTEMPTS = 8;
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void delaysStayWithinTheJitterBounds() {
+        Backoff backoff = new Backoff(INITIAL_DELAY, MAX_DELAY);
+        for (int run = 0; run < RUNS; run++) {
+            backoff.reset();
+            long base = INITIAL_DELAY;
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                long delay = backoff.nextDelay();
+                assertTrue(delay + " below half of " + base, delay >= base / 2);
+                assertTrue(delay + " above " + base, delay <= base);
+                base = Math.min(base * 2, MAX_DELAY);
+            }
+        }
+    }
+
+    @Test
+    public void delaysAreSpreadAcrossTheBounds() {
+        Backoff backoff = new Backoff(INITIAL_DELAY, MAX_DELAY);
+        Set<Long> delays = new HashSet<Long>();
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            backoff.reset();
+            long delay = backoff.nextDelay();
+            delays.add(delay);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        // retries that started together don't line up
+        assertTrue(delays.size() > 1);
+        assertTrue(min < INITIAL_DELAY * 3 / 4);
+        assertTrue(max > INITIAL_DELAY * 3 / 4);
+    }
+
+    @Test
+    public void theBaseDelayStopsGrowingAtTheMaximum() {
+        Backoff backoff = new Backoff(INITIAL_DELAY, MAX_DELAY);
+        for (int attempt = 0; attempt < 20; attempt++) {
+            backoff.nextDelay();
+        }
+
+        for (int attempt = 0; attempt < RUNS; attempt++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= MAX_DELAY / 2);
+            assertTrue(delay <= MAX_DELAY);
+        }
+    }
+
+    @Test
+    public void aResetStartsOverFromTheInitialDelay() {
+        Backoff backoff = new Backoff(INITIAL_DELAY, MAX_DELAY);
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            backoff.nextDelay();
+        }
+        assertEquals(ATTEMPTS, backoff.getAttempts());
+
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelay() <= INITIAL_DELAY);
+        assertEquals(1, backoff.getAttempts());
+    }
+}
@@ -0,0 +1,256 @@
+package com.labs.adk;
+
+import com.labs.adk.link.AccessoryLink;
+import com.labs.adk.link.LinkProvider;
+import com.labs.commons.ADK;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Asserts that the steady-state control path doesn't allocate per frame: encoding a two-byte command into the
+ * {@link CommandMailbox} ring, taking it out and writing it. <br/>
+ * Allocations are measured per thread with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)},
+ * after a warmup long enough for the JIT to compile the path. The total is divided by the number of frames, so a
+ * one-off allocation during the run, e.g. by the measurement itself, doesn't fail the test while any allocation per
+ * frame does
+ *
+ * @author Amir Lazarovich
+ */
+public class CommandMailboxAllocationTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int WARMUP_FRAMES = 200000;
+    private static final int FRAMES = 100000;
+    private static final long CONNECT_TIMEOUT = 5000; // in milliseconds
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private com.sun.management.ThreadMXBean mThreads;
+    private byte[] mOut;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        mOut = new byte[ADK.MAX_FRAME_SIZE];
+    }
+
+    @After
+    public void tearDown() {
+        mThreads = null;
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void offerAndTakeDoNotAllocate() throws InterruptedException {
+        CommandMailbox mailbox = new CommandMailbox(CommandMailbox.DEFAULT_CAPACITY);
+        cycle(mailbox, WARMUP_FRAMES);
+
+        long thread = Thread.currentThread().getId();
+        long before = mThreads.getThreadAllocatedBytes(thread);
+        cycle(mailbox, FRAMES);
+        long allocated = mThreads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals("bytes allocated per frame (" + allocated + " in total)", 0, allocated / FRAMES);
+    }
+
+    @Test
+    public void offerAndTakeWithFlowControlDoNotAllocate() throws InterruptedException {
+        CommandMailbox mailbox = new CommandMailbox(CommandMailbox.DEFAULT_CAPACITY);
+        mailbox.setFlowControl(4, WindowPolicy.COALESCE);
+        cycle(mailbox, WARMUP_FRAMES);
+
+        long thread = Thread.currentThread().getId();
+        long before = mThreads.getThreadAllocatedBytes(thread);
+        cycle(mailbox, FRAMES);
+        long allocated = mThreads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals("bytes allocated per frame (" + allocated + " in total)", 0, allocated / FRAMES);
+    }
+
+    /**
+     * Through {@link ADKManager#sendCommand(byte, byte, byte, byte)} and its writer thread to a link. Every frame is
+     * waited for until it's written, so none of them is coalesced away
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void sendCommandDoesNotAllocate() throws InterruptedException {
+        CountingLink link = new CountingLink();
+        ADKManager adkManager = new ADKManager(new CountingLinkProvider(link), new NoCallback(), null);
+        try {
+            adkManager.connect();
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            while (!adkManager.isConnected()) {
+                assertTrue("Couldn't connect to the link", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+
+            send(adkManager, link, WARMUP_FRAMES);
+
+            long sender = Thread.currentThread().getId();
+            long writer = findThread(ADKManager.class.getSimpleName() + "-writer").getId();
+            long senderBefore = mThreads.getThreadAllocatedBytes(sender);
+            long writerBefore = mThreads.getThreadAllocatedBytes(writer);
+            long writesBefore = link.getWrites();
+            send(adkManager, link, FRAMES);
+            long senderAllocated = mThreads.getThreadAllocatedBytes(sender) - senderBefore;
+            long writerAllocated = mThreads.getThreadAllocatedBytes(writer) - writerBefore;
+
+            assertEquals(FRAMES, link.getWrites() - writesBefore);
+            assertEquals("bytes allocated per frame by the sender (" + senderAllocated + " in total)",
+                    0, senderAllocated / FRAMES);
+            assertEquals("bytes allocated per frame by the writer (" + writerAllocated + " in total)",
+                    0, writerAllocated / FRAMES);
+        } finally {
+            adkManager.disconnect();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Post, take and acknowledge stick commands, as ADKManager's writer does
+     *
+     * @param mailbox
+     * @param frames
+     * @throws InterruptedException
+     */
+    private void cycle(CommandMailbox mailbox, int frames) throws InterruptedException {
+        for (int i = 0; i < frames; i++) {
+            byte value = (byte) i;
+            mailbox.offer(ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, value, (byte) -value, false);
+            int length = mailbox.take(mOut);
+            assertEquals(ADK.HEADER_SIZE + 2, length);
+            mailbox.onWritten(System.nanoTime());
+            mailbox.onAck(1);
+        }
+    }
+
+    private static void send(ADKManager adkManager, CountingLink link, int frames) {
+        for (int i = 0; i < frames; i++) {
+            long written = link.getWrites();
+            byte value = (byte) i;
+            adkManager.sendCommand(ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, value, (byte) -value);
+            while (link.getWrites() == written) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                return thread;
+            }
+        }
+
+        throw new IllegalStateException("No thread named " + name);
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * A link that counts its writes and whose reads block until it's closed
+     */
+    private static class CountingLink implements AccessoryLink {
+        private final Object[] mLock = new Object[0];
+        private boolean mClosed;
+        private volatile long mWrites;
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            synchronized (mLock) {
+                while (!mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+
+                return -1;
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            mWrites++;
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                mClosed = true;
+                mLock.notifyAll();
+            }
+        }
+
+        long getWrites() {
+            return mWrites;
+        }
+    }
+
+    private static class CountingLinkProvider implements LinkProvider {
+        private final CountingLink mLink;
+
+        CountingLinkProvider(CountingLink link) {
+            mLink = link;
+        }
+
+        @Override
+        public void start(Listener listener) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public AccessoryLink open() {
+            return mLink;
+        }
+    }
+
+    private static class NoCallback implements Callback {
+        @Override
+        public void onAckReceived(boolean ack) {
+        }
+
+        @Override
+        public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a {@link ControlLoop} posting to a {@link CommandMailbox} through its states: idle without a state, posting
+ * the latest value of every command once started, idle again once cleared and silent once stopped
+ *
+ * @author Amir Lazarovich
+ */
+public class ControlLoopTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int RATE = 100; // in Hz
+    private static final long PERIOD = 1000 / RATE; // in milliseconds
+    private static final long TIMEOUT = 5000; // in milliseconds
+    private static final byte[] THROTTLE = {ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, 2, 0, 60};
+    private static final byte[] TURN = {ADK.COMMAND_CONTROL, ADK.ACTION_RIGHT_STICK, 2, 0, -30};
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private CommandMailbox mMailbox;
+    private ControlLoop mControlLoop;
+    private byte[] mOut;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mMailbox = new CommandMailbox(CommandMailbox.DEFAULT_CAPACITY);
+        mControlLoop = new ControlLoop(mMailbox, RATE);
+        mOut = new byte[ADK.MAX_FRAME_SIZE];
+    }
+
+    @After
+    public void tearDown() {
+        mControlLoop.stop();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void nothingIsPostedWithoutAState() throws InterruptedException {
+        mControlLoop.start();
+        awaitTicks(3);
+
+        assertEquals(0, mMailbox.size());
+    }
+
+    @Test
+    public void everyTickPostsTheLatestValues() throws InterruptedException {
+        mControlLoop.update(THROTTLE[0], THROTTLE[1], (byte) 0, (byte) 10);
+        mControlLoop.update(TURN[0], TURN[1], new byte[]{TURN[3], TURN[4]});
+        mControlLoop.update(THROTTLE[0], THROTTLE[1], THROTTLE[3], THROTTLE[4]);
+        mControlLoop.start();
+
+        // the mailbox coalesces the ticks that weren't taken yet
+        awaitTicks(1);
+        assertArrayEquals(THROTTLE, poll());
+        assertArrayEquals(TURN, poll());
+
+        // and the same state is posted again on the next tick
+        awaitTicks(mControlLoop.getTickCount() + 1);
+        assertArrayEquals(THROTTLE, poll());
+        assertArrayEquals(TURN, poll());
+    }
+
+    @Test
+    public void aClearedStateIsNoLongerPosted() throws InterruptedException {
+        mControlLoop.update(THROTTLE[0], THROTTLE[1], THROTTLE[3], THROTTLE[4]);
+        mControlLoop.start();
+        awaitTicks(1);
+
+        mControlLoop.clear();
+        // a tick may have copied the state just before it was cleared
+        awaitTicks(mControlLoop.getTickCount() + 1);
+        mMailbox.clear();
+        awaitTicks(mControlLoop.getTickCount() + 2);
+        assertEquals(0, mMailbox.size());
+
+        mControlLoop.update(TURN[0], TURN[1], TURN[3], TURN[4]);
+        awaitTicks(mControlLoop.getTickCount() + 1);
+        assertArrayEquals(TURN, poll());
+    }
+
+    @Test
+    public void aStoppedLoopStopsTicking() throws InterruptedException {
+        mControlLoop.update(THROTTLE[0], THROTTLE[1], THROTTLE[3], THROTTLE[4]);
+        mControlLoop.start();
+        awaitTicks(2);
+
+        mControlLoop.stop();
+        Thread.sleep(3 * PERIOD);
+        long ticks = mControlLoop.getTickCount();
+        mMailbox.clear();
+        Thread.sleep(3 * PERIOD);
+
+        assertEquals(ticks, mControlLoop.getTickCount());
+        assertEquals(0, mMailbox.size());
+
+        // and can be started again
+        mControlLoop.start();
+        awaitTicks(ticks + 1);
+        assertArrayEquals(THROTTLE, poll());
+    }
+
+    @Test
+    public void theStateHoldsAFixedNumberOfCommands() {
+        for (int i = 0; i < ControlLoop.MAX_STATES; i++) {
+            assertTrue(mControlLoop.update(ADK.COMMAND_CONTROL, (byte) i, (byte) 0, (byte) 0));
+        }
+
+        assertFalse(mControlLoop.update(ADK.COMMAND_CONTROL, (byte) ControlLoop.MAX_STATES, (byte) 0, (byte) 0));
+        // commands already in the state are still updated
+        assertTrue(mControlLoop.update(ADK.COMMAND_CONTROL, (byte) 0, (byte) 1, (byte) 1));
+
+        mControlLoop.clear();
+        assertTrue(mControlLoop.update(ADK.COMMAND_CONTROL, (byte) ControlLoop.MAX_STATES, (byte) 0, (byte) 0));
+    }
+
+    @Test
+    public void lateTicksAreSkippedAsMissedDeadlines() throws InterruptedException {
+        mControlLoop.update(THROTTLE[0], THROTTLE[1], THROTTLE[3], THROTTLE[4]);
+        mControlLoop.start();
+        awaitTicks(1);
+
+        // a tick can't copy the state while it's being updated, hold it up for several periods
+        synchronized (mControlLoop) {
+            Thread.sleep(10 * PERIOD);
+        }
+
+        long ticks = mControlLoop.getTickCount();
+        awaitTicks(ticks + 2);
+        assertTrue(mControlLoop.getMissedDeadlineCount() >= 5);
+        assertTrue(mControlLoop.getJitter().getCount() >= ticks);
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private void awaitTicks(long ticks) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mControlLoop.getTickCount() < ticks) {
+            assertTrue("Only " + mControlLoop.getTickCount() + " ticks", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Take the next frame out of the mailbox
+     *
+     * @return The frame
+     */
+    private byte[] poll() {
+        int length = mMailbox.poll(mOut, 0, mOut.length);
+        mMailbox.onWritten(System.nanoTime());
+        assertTrue("Nothing was posted", length > 0);
+        byte[] frame = new byte[length];
+        System.arraycopy(mOut, 0, frame, 0, length);
+        return frame;
+    }
+}
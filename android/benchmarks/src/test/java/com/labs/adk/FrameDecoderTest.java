@@ -0,0 +1,242 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link FrameDecoder} frames split across reads, several frames in a single read and legacy single-byte acks
+ * mixed in between them, as the accessory may send them
+ *
+ * @author Amir Lazarovich
+ */
+public class FrameDecoderTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final byte ACTION_TELEMETRY = 1;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private FrameDecoder mDecoder;
+    private List<byte[]> mFrames;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mDecoder = new FrameDecoder();
+        mFrames = new ArrayList<byte[]>();
+        mDecoder.setHandler(ADK.COMMAND_ACK, new RecordingHandler(ADK.COMMAND_ACK));
+        mDecoder.setHandler(ADK.COMMAND_TELEMETRY, new RecordingHandler(ADK.COMMAND_TELEMETRY));
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void frameSplitAcrossReads() throws Exception {
+        byte[] frame = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY, 10, 20, 30, 40);
+
+        // split inside the header, then inside the data
+        mDecoder.readFrom(new ScriptedStream(frame, 0, 2));
+        assertEquals(2, mDecoder.getPendingBytes());
+        assertEquals(0, mFrames.size());
+        mDecoder.readFrom(new ScriptedStream(frame, 2, 5));
+        assertEquals(5, mDecoder.getPendingBytes());
+        assertEquals(0, mFrames.size());
+        mDecoder.readFrom(new ScriptedStream(frame, 5, frame.length));
+
+        assertEquals(0, mDecoder.getPendingBytes());
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+    }
+
+    @Test
+    public void frameFedOneByteAtATime() {
+        byte[] frame = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY, 1, 2, 3);
+        for (int i = 0; i < frame.length; i++) {
+            mDecoder.feed(frame, i, 1);
+        }
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+        assertEquals(0, mDecoder.getPendingBytes());
+    }
+
+    @Test
+    public void severalFramesInOneRead() throws Exception {
+        byte[] first = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY, 1, 2);
+        byte[] second = frame(ADK.COMMAND_ACK, ADK.ACTION_ACK, 7);
+        byte[] third = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY);
+        byte[] transfer = concat(first, second, third);
+
+        mDecoder.readFrom(new ScriptedStream(transfer, 0, transfer.length));
+
+        assertEquals(3, mFrames.size());
+        assertArrayEquals(first, mFrames.get(0));
+        assertArrayEquals(second, mFrames.get(1));
+        assertArrayEquals(third, mFrames.get(2));
+        assertEquals(3, mDecoder.getFrameCount());
+        assertEquals(0, mDecoder.getPendingBytes());
+    }
+
+    @Test
+    public void legacyAcksMixedIn() {
+        byte[] first = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY, 1, 2);
+        byte[] second = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY, 3);
+        byte[] transfer = concat(new byte[]{1}, first, new byte[]{0}, second, new byte[]{1});
+
+        // the second frame is split right after the ack that precedes it
+        int split = 1 + first.length + 2;
+        mDecoder.feed(transfer, 0, split);
+        mDecoder.feed(transfer, split, transfer.length - split);
+
+        assertEquals(5, mFrames.size());
+        assertArrayEquals(legacyAck(1), mFrames.get(0));
+        assertArrayEquals(first, mFrames.get(1));
+        assertArrayEquals(legacyAck(0), mFrames.get(2));
+        assertArrayEquals(second, mFrames.get(3));
+        assertArrayEquals(legacyAck(1), mFrames.get(4));
+        assertEquals(0, mDecoder.getPendingBytes());
+    }
+
+    @Test
+    public void readsAskForAFullTransferNearTheEndOfTheBuffer() throws Exception {
+        // fill the buffer with complete frames up to just below its end, followed by part of the next frame
+        int filled = FrameDecoder.DEFAULT_BUFFER_SIZE - FrameDecoder.TRANSFER_SIZE / 4;
+        byte[] small = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY, 9);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < filled / small.length; i++) {
+            out.write(small);
+        }
+
+        byte[] split = frame(ADK.COMMAND_TELEMETRY, ACTION_TELEMETRY, 1, 2, 3, 4, 5, 6);
+        int head = filled - out.size() + 2;
+        out.write(split, 0, head);
+        byte[] transfer = out.toByteArray();
+
+        ScriptedStream in = new ScriptedStream(transfer, 0, transfer.length);
+        mDecoder.readFrom(in);
+        assertEquals(head, mDecoder.getPendingBytes());
+
+        in = new ScriptedStream(split, head, split.length);
+        mDecoder.readFrom(in);
+        assertTrue("asked for " + in.getRequested() + " bytes", in.getRequested() >= FrameDecoder.TRANSFER_SIZE);
+        assertArrayEquals(split, mFrames.get(mFrames.size() - 1));
+        assertEquals(0, mDecoder.getPendingBytes());
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private static byte[] frame(byte command, byte action, int... data) {
+        byte[] frame = new byte[ADK.HEADER_SIZE + data.length];
+        frame[0] = command;
+        frame[1] = action;
+        frame[2] = (byte) data.length;
+        for (int i = 0; i < data.length; i++) {
+            frame[ADK.HEADER_SIZE + i] = (byte) data[i];
+        }
+
+        return frame;
+    }
+
+    /**
+     * A legacy ack, as the handler sees it: an {@link ADK#COMMAND_ACK} whose action is the ack's byte and that has no
+     * data
+     *
+     * @param ack
+     * @return
+     */
+    private static byte[] legacyAck(int ack) {
+        return frame(ADK.COMMAND_ACK, (byte) ack);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Rebuilds the frames it's handed, header included
+     */
+    private class RecordingHandler implements FrameHandler {
+        private final byte mCommand;
+
+        RecordingHandler(byte command) {
+            mCommand = command;
+        }
+
+        @Override
+        public void onFrame(byte action, byte[] buffer, int offset, int length) {
+            byte[] frame = new byte[ADK.HEADER_SIZE + length];
+            frame[0] = mCommand;
+            frame[1] = action;
+            frame[2] = (byte) length;
+            System.arraycopy(buffer, offset, frame, ADK.HEADER_SIZE, length);
+            mFrames.add(frame);
+        }
+    }
+
+    /**
+     * Returns a slice of an array in a single read, and remembers how many bytes it was asked for
+     */
+    private static class ScriptedStream extends InputStream {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPosition;
+        private int mRequested;
+
+        ScriptedStream(byte[] data, int start, int end) {
+            mData = Arrays.copyOf(data, data.length);
+            mPosition = start;
+            mEnd = end;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            mRequested = length;
+            if (mPosition == mEnd) {
+                return -1;
+            }
+
+            int count = Math.min(length, mEnd - mPosition);
+            System.arraycopy(mData, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        int getRequested() {
+            return mRequested;
+        }
+    }
+}
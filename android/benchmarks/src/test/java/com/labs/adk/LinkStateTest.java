@@ -0,0 +1,90 @@
+package com.labs.adk;
+
+import com.labs.adk.link.AccessoryLink;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Walks {@link LinkState} through a connection: every connect and disconnect starts a new generation, and only a
+ * connection whose handshake is over is ready for frames other than the hello
+ *
+ * @author Amir Lazarovich
+ */
+public class LinkStateTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final LinkState DISCONNECTED = new LinkState(0, null, null, null);
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void aNewConnectionWaitsForItsHandshake() {
+        AccessoryLink link = new NoLink();
+        LinkState state = DISCONNECTED.connect(link);
+
+        assertEquals(1, state.generation);
+        assertSame(link, state.link);
+        assertNotNull(state.handshake);
+        assertTrue(state.isConnected());
+        assertFalse(state.isReady());
+    }
+
+    @Test
+    public void aNegotiatedConnectionIsReadyWithinTheSameGeneration() {
+        LinkState connected = DISCONNECTED.connect(new NoLink());
+        LinkState negotiated = connected.negotiated(Capabilities.LEGACY);
+
+        assertEquals(connected.generation, negotiated.generation);
+        assertSame(connected.link, negotiated.link);
+        assertSame(connected.handshake, negotiated.handshake);
+        assertSame(Capabilities.LEGACY, negotiated.capabilities);
+        assertTrue(negotiated.isReady());
+        // the snapshot it replaced is left as it was
+        assertFalse(connected.isReady());
+    }
+
+    @Test
+    public void everyConnectionGetsANewGeneration() {
+        LinkState first = DISCONNECTED.connect(new NoLink()).negotiated(Capabilities.LEGACY);
+        LinkState disconnected = first.disconnect();
+        LinkState second = disconnected.connect(new NoLink());
+
+        assertEquals(first.generation + 1, disconnected.generation);
+        assertFalse(disconnected.isConnected());
+        assertFalse(disconnected.isReady());
+        assertNull(disconnected.handshake);
+
+        assertEquals(disconnected.generation + 1, second.generation);
+        assertNotSame(first.handshake, second.handshake);
+        assertFalse(second.isReady());
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    private static class NoLink implements AccessoryLink {
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return -1;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.labs.adk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds acks to {@link RateController} with the rates the app uses, 10 to 200 Hz: the rate is halved when the link
+ * is congested, at most once per round trip, grows by a step per uncongested ack and stays within its bounds
+ *
+ * @author Amir Lazarovich
+ */
+public class RateControllerTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final double MIN_RATE = 10; // in Hz
+    private static final double MAX_RATE = 200; // in Hz
+    private static final long MILLISECOND = 1000000L; // in nanoseconds
+    private static final long RTT = MILLISECOND;
+    private static final long CONGESTED_RTT = 10 * MILLISECOND;
+    private static final double DELTA = 1e-9;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private RateController mController;
+    private long mNow;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mController = new RateController(MIN_RATE, MAX_RATE);
+        mNow = 1000 * MILLISECOND;
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void theRateStartsAndStaysAtTheMaximum() {
+        assertEquals(MAX_RATE, mController.getRate(), DELTA);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(MAX_RATE, ack(RTT, 0), DELTA);
+        }
+
+        assertEquals(0, mController.getIncreaseCount());
+        assertEquals(5 * MILLISECOND, mController.getInterval());
+    }
+
+    @Test
+    public void congestionHalvesTheRateDownToTheMinimum() {
+        ack(RTT, 0);
+        double[] rates = {100, 50, 25, 12.5, MIN_RATE, MIN_RATE};
+        for (double rate : rates) {
+            assertEquals(rate, ack(CONGESTED_RTT, 0), DELTA);
+            // the next cut waits for the round trip or the interval at the new rate, whichever is longer
+            mNow += mController.getInterval();
+        }
+
+        assertEquals(5, mController.getDecreaseCount());
+    }
+
+    @Test
+    public void aBacklogIsCongestionToo() {
+        ack(RTT, 0);
+
+        assertEquals(MAX_RATE, ack(RTT, 2), DELTA);
+        assertEquals(100, ack(RTT, 3), DELTA);
+    }
+
+    @Test
+    public void theRateIsCutOncePerRoundTrip() {
+        ack(RTT, 0);
+        assertEquals(100, ack(CONGESTED_RTT, 0), DELTA);
+
+        mNow += CONGESTED_RTT - 1;
+        assertEquals(100, ack(CONGESTED_RTT, 0), DELTA);
+        assertEquals(100, mController.onLoss(mNow), DELTA);
+
+        mNow += 1;
+        assertEquals(50, ack(CONGESTED_RTT, 0), DELTA);
+    }
+
+    @Test
+    public void theRateGrowsByAStepPerAckUpToTheMaximum() {
+        ack(RTT, 0);
+        ack(CONGESTED_RTT, 0);
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(100 + i * RateController.INCREASE_STEP, ack(RTT, 0), DELTA);
+        }
+
+        assertEquals(MAX_RATE, ack(RTT, 0), DELTA);
+        assertEquals(100, mController.getIncreaseCount());
+    }
+
+    @Test
+    public void lossesCutTheRate() {
+        assertEquals(100, mController.onLoss(mNow), DELTA);
+    }
+
+    @Test
+    public void roundTripsAreTimedAcrossNanoTimeWrappingAround() {
+        mNow = Long.MAX_VALUE - MILLISECOND;
+        ack(RTT, 0);
+        assertEquals(100, ack(CONGESTED_RTT, 0), DELTA);
+
+        // the round trip ends after nanoTime wraps around, acks before and after the wrap are both within it
+        mNow += MILLISECOND;
+        assertEquals(100, ack(CONGESTED_RTT, 0), DELTA);
+        mNow += MILLISECOND;
+        assertEquals(100, ack(CONGESTED_RTT, 0), DELTA);
+
+        mNow += CONGESTED_RTT;
+        assertEquals(50, ack(CONGESTED_RTT, 0), DELTA);
+    }
+
+    @Test
+    public void theFirstCutIsNeverHeldBack() {
+        mNow = Long.MIN_VALUE + MILLISECOND;
+        assertEquals(100, mController.onLoss(mNow), DELTA);
+
+        mController.reset();
+        assertEquals(MAX_RATE, mController.getRate(), DELTA);
+        assertEquals(100, mController.onLoss(mNow), DELTA);
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Ack a frame right now
+     *
+     * @param rtt
+     * @param queueDepth
+     * @return The new rate
+     */
+    private double ack(long rtt, int queueDepth) {
+        return mController.onAck(rtt, queueDepth, mNow);
+    }
+}
@@ -0,0 +1,83 @@
+package com.labs.adk;
+
+import com.labs.adk.link.AccessoryLink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A link that records every transfer written to it and whose reads block until it's closed, so the accessory never
+ * answers
+ *
+ * @author Amir Lazarovich
+ */
+class RecordingLink implements AccessoryLink {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    static final long TIMEOUT = 5000; // in milliseconds
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final List<byte[]> mWrites = new ArrayList<byte[]>();
+    private boolean mClosed;
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) {
+        while (!mClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) {
+        mWrites.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    synchronized void awaitWrites(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mWrites.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            assertTrue("Only " + mWrites.size() + " transfers were written", remaining > 0);
+            wait(remaining);
+        }
+    }
+
+    synchronized byte[] getWrite(int index) {
+        return mWrites.get(index);
+    }
+
+    synchronized int getWriteCount() {
+        return mWrites.size();
+    }
+
+    synchronized boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,60 @@
+package com.labs.adk;
+
+import com.labs.adk.link.AccessoryLink;
+import com.labs.adk.link.LinkProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens a new {@link RecordingLink} every time
+ *
+ * @author Amir Lazarovich
+ */
+class RecordingLinkProvider implements LinkProvider {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final List<RecordingLink> mLinks = new ArrayList<RecordingLink>();
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public void start(Listener listener) {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public synchronized AccessoryLink open() {
+        RecordingLink link = new RecordingLink();
+        mLinks.add(link);
+        notifyAll();
+        return link;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    synchronized RecordingLink awaitLink(int index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RecordingLink.TIMEOUT;
+        while (mLinks.size() <= index) {
+            long remaining = deadline - System.currentTimeMillis();
+            assertTrue("Link " + index + " was never opened", remaining > 0);
+            wait(remaining);
+        }
+
+        return mLinks.get(index);
+    }
+
+    synchronized int getLinkCount() {
+        return mLinks.size();
+    }
+}
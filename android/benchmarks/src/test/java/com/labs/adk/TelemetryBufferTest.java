@@ -0,0 +1,109 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes telemetry frames into {@link TelemetryBuffer} and drains them, including once the ring overflowed
+ *
+ * @author Amir Lazarovich
+ */
+public class TelemetryBufferTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int CAPACITY = 4;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private TelemetryBuffer mBuffer;
+    private long[] mTimes;
+    private int[] mDistances;
+    private int[] mSpeeds;
+    private boolean[] mCollisions;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() {
+        mBuffer = new TelemetryBuffer(CAPACITY);
+        mTimes = new long[CAPACITY];
+        mDistances = new int[CAPACITY];
+        mSpeeds = new int[CAPACITY];
+        mCollisions = new boolean[CAPACITY];
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void framesAreDecoded() {
+        // 700 mm, closing in at 300 cm/s, collision
+        byte[] frame = {0x02, (byte) 0xBC, (byte) 0xFE, (byte) 0xD4, 1};
+        mBuffer.onFrame(ADK.ACTION_DISTANCE, frame, 0, frame.length);
+
+        assertEquals(1, drain());
+        assertEquals(700, mDistances[0]);
+        assertEquals(-300, mSpeeds[0]);
+        assertTrue(mCollisions[0]);
+        assertEquals(1, mBuffer.getSampleCount());
+    }
+
+    @Test
+    public void malformedFramesAreCounted() {
+        byte[] frame = {0x02, (byte) 0xBC, 0, 0, 0};
+        mBuffer.onFrame(ADK.ACTION_DISTANCE, frame, 0, frame.length - 1);
+        mBuffer.onFrame((byte) (ADK.ACTION_DISTANCE + 1), frame, 0, frame.length);
+
+        assertEquals(0, mBuffer.size());
+        assertEquals(2, mBuffer.getMalformedCount());
+    }
+
+    @Test
+    public void theOldestSamplesAreOverwritten() {
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            mBuffer.add(i, i * 10, i, false);
+        }
+
+        assertEquals(CAPACITY, mBuffer.size());
+        assertEquals(2, mBuffer.getOverwrittenCount());
+        assertEquals(CAPACITY, drain());
+        assertArrayEquals(new long[]{2, 3, 4, 5}, mTimes);
+        assertArrayEquals(new int[]{20, 30, 40, 50}, mDistances);
+    }
+
+    @Test
+    public void samplesThatDoNotFitStayPending() {
+        for (int i = 0; i < 3; i++) {
+            mBuffer.add(i, 0, 0, i == 2);
+        }
+
+        long[] times = new long[2];
+        assertEquals(2, mBuffer.drain(times, new int[2], new int[2], new boolean[2]));
+        assertArrayEquals(new long[]{0, 1}, times);
+
+        assertEquals(1, drain());
+        assertEquals(2, mTimes[0]);
+        assertTrue(mCollisions[0]);
+        assertFalse(mCollisions[1]);
+        assertEquals(0, mBuffer.size());
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private int drain() {
+        return mBuffer.drain(mTimes, mDistances, mSpeeds, mCollisions);
+    }
+}
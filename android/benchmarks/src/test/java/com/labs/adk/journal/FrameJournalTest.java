@@ -0,0 +1,193 @@
+package com.labs.adk.journal;
+
+import com.labs.commons.ADK;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records frames with {@link FrameJournal} across several segments and runs, and reads them back with
+ * {@link JournalReader}: every frame comes back in order, with its direction and transfer, on the wall clock
+ *
+ * @author Amir Lazarovich
+ */
+public class FrameJournalTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int SEGMENT_SIZE = 512;
+    private static final int FRAMES = 40; // spread over two segments
+    private static final long TIMEOUT = 5000; // in milliseconds
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private File mDirectory;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("journal", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : FrameJournal.listSegments(mDirectory)) {
+            file.delete();
+        }
+
+        mDirectory.delete();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void framesAreReadBackOnTheWallClock() throws IOException, InterruptedException {
+        long before = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        record(2);
+        long after = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+        JournalReader reader = new JournalReader(mDirectory);
+        long lastTime = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            assertTrue("frame " + i, reader.next());
+            assertEquals(0, reader.getRun());
+            assertArrayEquals(frame(i), copyFrame(reader));
+
+            // the segment header holds the wall-clock time in milliseconds only
+            long time = reader.getTime();
+            assertTrue(time >= before - MILLISECOND && time <= after + MILLISECOND);
+            assertTrue(time >= lastTime);
+            lastTime = time;
+        }
+
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void transfersAreReadBackFrameByFrame() throws IOException, InterruptedException {
+        FrameJournal journal = new FrameJournal(mDirectory, SEGMENT_SIZE, FrameJournal.DEFAULT_MAX_SEGMENTS);
+        byte[] in = frame(1);
+        byte[] first = frame(2);
+        byte[] second = frame(3);
+        byte[] transfer = new byte[first.length + second.length];
+        System.arraycopy(first, 0, transfer, 0, first.length);
+        System.arraycopy(second, 0, transfer, first.length, second.length);
+        journal.append(FrameJournal.DIRECTION_IN, in, 0, in.length);
+        journal.appendTransfer(transfer, 0, transfer.length);
+        close(journal, 2, 1);
+
+        JournalReader reader = new JournalReader(mDirectory);
+        assertTrue(reader.next());
+        assertEquals(FrameJournal.DIRECTION_IN, reader.getDirection());
+        assertTrue(reader.next());
+        assertEquals(FrameJournal.DIRECTION_OUT, reader.getDirection());
+        assertFalse(reader.isSameTransfer());
+        assertArrayEquals(first, copyFrame(reader));
+        assertTrue(reader.next());
+        assertEquals(FrameJournal.DIRECTION_OUT, reader.getDirection());
+        assertTrue(reader.isSameTransfer());
+        assertArrayEquals(second, copyFrame(reader));
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void everyJournalStartsANewRun() throws IOException, InterruptedException {
+        record(2);
+        Thread.sleep(2);
+        record(4);
+
+        JournalReader reader = new JournalReader(mDirectory);
+        long lastTime = 0;
+        for (int i = 0; i < 2 * FRAMES; i++) {
+            assertTrue(reader.next());
+            assertEquals(i / FRAMES, reader.getRun());
+
+            // both runs are on the wall clock, up to its resolution
+            assertTrue(reader.getTime() >= lastTime - MILLISECOND);
+            lastTime = reader.getTime();
+        }
+
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Record {@link #FRAMES} frames into two segments of a new journal
+     *
+     * @param segments The number of segments the directory holds once the journal is closed
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void record(int segments) throws IOException, InterruptedException {
+        FrameJournal journal = new FrameJournal(mDirectory, SEGMENT_SIZE, FrameJournal.DEFAULT_MAX_SEGMENTS);
+        // as it is between real frames, the next segment is created before the last frame of the first one
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (journal.getSegmentCount() < 2) {
+            assertTrue("The next segment was never prepared", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = frame(i);
+            // the prepared segment is only handed over once it's created
+            deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!journal.append(FrameJournal.DIRECTION_OUT, frame, 0, frame.length)) {
+                assertTrue("The next segment was never prepared", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+
+        assertEquals(FRAMES, journal.getRecordCount());
+        close(journal, 3, segments);
+    }
+
+    /**
+     * Close a journal and wait until the segment it prepared but never used is deleted
+     *
+     * @param journal
+     * @param created  The number of segments the journal creates, including the unused one
+     * @param segments The number of segments left in the directory
+     * @throws InterruptedException
+     */
+    private void close(FrameJournal journal, int created, int segments) throws InterruptedException {
+        journal.close();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (journal.getSegmentCount() < created || FrameJournal.listSegments(mDirectory).length != segments) {
+            assertTrue("The unused segment was never deleted", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static byte[] frame(int value) {
+        return new byte[]{ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, 2, (byte) value, (byte) -value};
+    }
+
+    private static byte[] copyFrame(JournalReader reader) {
+        byte[] frame = new byte[reader.getLength()];
+        System.arraycopy(reader.getFrame(), 0, frame, 0, frame.length);
+        return frame;
+    }
+}
@@ -0,0 +1,147 @@
+package com.labs.adk.journal;
+
+import com.labs.commons.ADK;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads journal directories holding segments of several runs, written by hand in the {@link FrameJournal} layout, and
+ * checks that frame times end up on a common clock
+ *
+ * @author Amir Lazarovich
+ */
+public class JournalReaderTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final long WALL_TIME = 1400000000000L; // in milliseconds
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private File mDirectory;
+    private int mNextIndex;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("journal", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : FrameJournal.listSegments(mDirectory)) {
+            file.delete();
+        }
+
+        mDirectory.delete();
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void segmentsOfOneRunShareItsClock() throws IOException {
+        long nanoTime = 5000 * MILLISECOND;
+        writeSegment(WALL_TIME, nanoTime, nanoTime + MILLISECOND, nanoTime + 3 * MILLISECOND);
+        // prepared ahead of time, while the segment before it was still written to; its wall-clock time was rounded
+        writeSegment(WALL_TIME, nanoTime + MILLISECOND / 2, nanoTime + 4 * MILLISECOND);
+
+        JournalReader reader = new JournalReader(mDirectory);
+        long start = TimeUnit.MILLISECONDS.toNanos(WALL_TIME);
+        assertNext(reader, 0, start + MILLISECOND);
+        assertNext(reader, 0, start + 3 * MILLISECOND);
+        assertNext(reader, 0, start + 4 * MILLISECOND);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void runsOfAnotherBootAreMovedToTheWallClock() throws IOException {
+        writeSegment(WALL_TIME, 5000 * MILLISECOND, 5001 * MILLISECOND);
+        // rebooted a minute later, nanoTime starts over
+        writeSegment(WALL_TIME + 60000, 20 * MILLISECOND, 22 * MILLISECOND);
+
+        JournalReader reader = new JournalReader(mDirectory);
+        long start = TimeUnit.MILLISECONDS.toNanos(WALL_TIME);
+        assertNext(reader, 0, start + MILLISECOND);
+        assertNext(reader, 1, start + TimeUnit.SECONDS.toNanos(60) + 2 * MILLISECOND);
+        assertEquals(22 * MILLISECOND, reader.getRecordedTime());
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void runsOfAnotherProcessStartANewRun() throws IOException {
+        writeSegment(WALL_TIME, 5000 * MILLISECOND, 5001 * MILLISECOND);
+        // the same boot, recorded again ten seconds later
+        writeSegment(WALL_TIME + 10000, 15000 * MILLISECOND, 15002 * MILLISECOND);
+
+        JournalReader reader = new JournalReader(mDirectory);
+        long start = TimeUnit.MILLISECONDS.toNanos(WALL_TIME);
+        assertNext(reader, 0, start + MILLISECOND);
+        assertNext(reader, 1, start + TimeUnit.SECONDS.toNanos(10) + 2 * MILLISECOND);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private static void assertNext(JournalReader reader, int run, long time) throws IOException {
+        assertTrue(reader.next());
+        assertEquals(run, reader.getRun());
+        assertEquals(time, reader.getTime());
+    }
+
+    /**
+     * Write a segment holding a single-byte ack frame per record time
+     *
+     * @param wallTime    The segment's wall-clock time, in milliseconds
+     * @param nanoTime    The segment's nanoTime
+     * @param recordTimes
+     * @throws IOException
+     */
+    private void writeSegment(long wallTime, long nanoTime, long... recordTimes) throws IOException {
+        byte[] frame = {ADK.COMMAND_ACK, ADK.ACTION_ACK, 1, 0};
+        ByteBuffer buffer = ByteBuffer.allocate(FrameJournal.SEGMENT_HEADER_SIZE
+                + recordTimes.length * (FrameJournal.RECORD_HEADER_SIZE + frame.length));
+        buffer.putInt(FrameJournal.MAGIC);
+        buffer.putInt(FrameJournal.VERSION);
+        buffer.putLong(wallTime);
+        buffer.putLong(nanoTime);
+        for (long recordTime : recordTimes) {
+            buffer.putLong(recordTime);
+            buffer.putShort((short) frame.length);
+            buffer.put(FrameJournal.DIRECTION_IN);
+            buffer.put(frame);
+        }
+
+        File file = new File(mDirectory, String.format("%s%06d%s", FrameJournal.SEGMENT_PREFIX, mNextIndex++,
+                FrameJournal.SEGMENT_SUFFIX));
+        RandomAccessFile segment = new RandomAccessFile(file, "rw");
+        try {
+            segment.write(buffer.array());
+        } finally {
+            segment.close();
+        }
+    }
+}
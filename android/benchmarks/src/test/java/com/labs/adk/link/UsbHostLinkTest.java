@@ -0,0 +1,106 @@
+package com.labs.adk.link;
+
+import com.labs.adk.sim.SimulatedTransferQueue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs a {@link UsbHostLink} over a {@link SimulatedTransferQueue} echoing every transfer: bytes come back in the
+ * order they were written whatever the size of the reads, and writes only wait once every OUT transfer is in flight
+ *
+ * @author Amir Lazarovich
+ */
+public class UsbHostLinkTest {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int DEPTH = 4;
+    private static final int TRANSFER_SIZE = 16;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private UsbHostLink mLink;
+
+    ///////////////////////////////////////////////
+    // Setup
+    ///////////////////////////////////////////////
+
+    @After
+    public void tearDown() {
+        if (mLink != null) {
+            mLink.close();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Tests
+    ///////////////////////////////////////////////
+
+    @Test
+    public void echoedBytesAreReadBackInOrder() throws IOException {
+        mLink = new UsbHostLink(new SimulatedTransferQueue(DEPTH, 100, TimeUnit.MICROSECONDS, 0), TRANSFER_SIZE);
+        byte[] written = new byte[100];
+        for (int i = 0; i < written.length; i++) {
+            written[i] = (byte) i;
+        }
+
+        // more transfers than may be in flight at once
+        mLink.write(written, 0, written.length);
+        assertEquals(7, mLink.getWrittenTransferCount());
+
+        // reads smaller than a transfer take it in several pieces
+        byte[] read = new byte[written.length];
+        int total = 0;
+        while (total < read.length) {
+            int count = mLink.read(read, total, Math.min(10, read.length - total));
+            assertTrue(count > 0);
+            total += count;
+        }
+
+        assertArrayEquals(written, read);
+        assertEquals(7, mLink.getReadTransferCount());
+    }
+
+    @Test
+    public void writesOnlyWaitOnceEveryTransferIsInFlight() throws IOException {
+        long latency = 200; // in milliseconds
+        mLink = new UsbHostLink(new SimulatedTransferQueue(DEPTH, latency, TimeUnit.MILLISECONDS, 0), TRANSFER_SIZE);
+        byte[] transfer = new byte[TRANSFER_SIZE];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < DEPTH; i++) {
+            mLink.write(transfer, 0, transfer.length);
+        }
+
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(latency));
+        assertEquals(DEPTH, mLink.getInFlightCount());
+        assertEquals(0, mLink.getWriteStallCount());
+
+        mLink.write(transfer, 0, transfer.length);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(latency));
+        assertEquals(1, mLink.getWriteStallCount());
+    }
+
+    @Test
+    public void aClosedLinkEndsReadsAndWrites() throws IOException {
+        mLink = new UsbHostLink(new SimulatedTransferQueue(DEPTH, 100, TimeUnit.MICROSECONDS, 0), TRANSFER_SIZE);
+        mLink.close();
+
+        assertEquals(-1, mLink.read(new byte[TRANSFER_SIZE], 0, TRANSFER_SIZE));
+        try {
+            mLink.write(new byte[1], 0, 1);
+            fail("Wrote to a closed link");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
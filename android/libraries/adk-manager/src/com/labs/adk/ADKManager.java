@@ -1,29 +1,32 @@
 package com.labs.adk;
 
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Handler;
-import android.os.ParcelFileDescriptor;
-import com.android.future.usb.UsbAccessory;
-import com.android.future.usb.UsbManager;
+import com.labs.adk.journal.FrameJournal;
+import com.labs.adk.link.AccessoryLink;
+import com.labs.adk.link.LinkProvider;
+import com.labs.adk.link.UsbLinkProvider;
+import com.labs.commons.ADK;
 import com.labs.commons.SLog;
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Controls over communication with an ADK device. <br/>
- * Communication protocol: [command - 1 byte][action - 1 byte][data length - 1 byte][data - X bytes]
+ * Communication protocol: [command - 1 byte][action - 1 byte][data length - 1 byte][data - X bytes] <br/>
+ * The same framing is used in both directions, see {@link FrameDecoder}. <br/>
+ * The bytes travel over an {@link AccessoryLink} opened by a {@link LinkProvider}: the USB accessory by default, or
+ * e.g. a {@link com.labs.adk.link.LoopbackLink} to run against a simulated accessory off the device. <br/>
+ * Every connection starts with a handshake: a {@link ADK#COMMAND_HELLO} answered by {@link ADK#COMMAND_CAPABILITIES}.
+ * The fastest mode both sides support is used from then on; firmware that doesn't answer is treated as legacy.
+ * Normal commands wait for the handshake to be over, urgent commands don't
  *
  * @author Amir Lazarovich
  */
@@ -32,38 +35,167 @@ public class ADKManager implements Runnable {
     // Constants
     ///////////////////////////////////////////////
     private static final String TAG = "ADKManager";
-    private static final String ACTION_USB_PERMISSION = "com.labs.adk.action.USB_PERMISSION";
+    private static final long RECONNECT_INITIAL_DELAY = 100; // in milliseconds
+    private static final long RECONNECT_MAX_DELAY = 10000; // in milliseconds
+    private static final long HANDSHAKE_TIMEOUT = 500; // in milliseconds
+    private static final int WRITE_BUFFER_SIZE = 64;
+    public static final long FRAME_INTERVAL = 16; // in milliseconds, one frame at 60 fps
+    private static final int HOST_CAPABILITIES = ADK.CAPABILITY_SEQUENCED_ACKS | ADK.CAPABILITY_DUAL_AXIS
+            | ADK.CAPABILITY_BATCHING | ADK.CAPABILITY_TELEMETRY;
 
     ///////////////////////////////////////////////
     // Members
     ///////////////////////////////////////////////
-    private UsbManager mUsbManager;
-    private UsbAccessory mAccessory;
-    private ParcelFileDescriptor mFileDescriptor;
-    private FileInputStream mInputStream;
-    private FileOutputStream mOutputStream;
-
-    private ExecutorService mPool;
-    private Context mContext;
-    private Handler mHandler;
+    private volatile LinkProvider mProvider;
+    private final AtomicReference<LinkState> mState;
+
+    private CommandMailbox mMailbox;
+    private Thread mWriterThread;
+    private final byte[] mWriteBuffer;
+    private final AckTracker mAckTracker;
+    private volatile boolean mSequencedAcks;
+    private volatile int mTelemetryRate;
+    private final TelemetryBuffer mTelemetry;
+    private volatile FrameJournal mJournal;
+    private volatile RateController mRateController;
+    private volatile ControlLoop mControlLoop;
     private Callback mCallback;
     private Thread mCommunicationThread;
     private final Object[] mLock;
+    private volatile long mStaleFrames;
+    private volatile long mWrittenBytes;
+    private volatile long mWrittenTransfers;
+
+    // member-reconnection
+    private final ScheduledExecutorService mScheduler;
+    private ScheduledFuture<?> mPendingAttempt;
+    private final Backoff mBackoff;
+    private boolean mStarted;
+    private long mDisconnectedAt;
+    private final LatencyHistogram mReconnectLatency;
+    private volatile long mLastReconnectTime;
+
+    // member-callbacks
+    private volatile Executor mCallbackExecutor;
+    private volatile AckCoalescer mAckCoalescer;
+    private final Executor mDeliveryExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            deliver(runnable);
+        }
+    };
+
+    private final Runnable mConnectedTask = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onConnected();
+        }
+    };
+
+    private final Runnable mDisconnectedTask = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onDisconnected();
+        }
+    };
+
+    // member-handlers
+    private final FrameHandler mAckHandler = new FrameHandler() {
+        @Override
+        public void onFrame(byte action, byte[] buffer, int offset, int length) {
+            long now = System.nanoTime();
+            if (length > 0) {
+                int resolved = mAckTracker.onAck(buffer[offset], now);
+                mMailbox.onAck(resolved);
+                if (resolved > 0) {
+                    adjustRate(mAckTracker.getLastRtt(), resolved - 1, now);
+                }
+            } else {
+                // legacy acks carry no sequence number, assume they acknowledge a single frame
+                mMailbox.onAck(1);
+                LinkState state = mState.get();
+                if (state.handshake != null && state.handshake.complete(Capabilities.LEGACY)) {
+                    // the firmware acked the hello without understanding it
+                    onNegotiated(state, Capabilities.LEGACY);
+                    return;
+                }
+
+                adjustRate(-1, 0, now);
+            }
+
+            final boolean ack = action == ADK.ACTION_ACK;
+            AckCoalescer ackCoalescer = mAckCoalescer;
+            if (ackCoalescer != null) {
+                ackCoalescer.onAck(ack);
+                return;
+            }
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onAckReceived(ack);
+                }
+            });
+        }
+    };
 
-    private boolean mConnected = false;
-    private Timer mTimer;
-    private BroadcastReceiver mUsbReceiver;
+    private final FrameHandler mCapabilitiesHandler = new FrameHandler() {
+        @Override
+        public void onFrame(byte action, byte[] buffer, int offset, int length) {
+            if (length < 4) {
+                SLog.w(TAG, "Ignoring malformed capabilities frame");
+                return;
+            }
+
+            Capabilities capabilities = new Capabilities(buffer[offset] & 0xFF, buffer[offset + 1] & 0xFF,
+                    buffer[offset + 2] & 0xFF, buffer[offset + 3] & 0xFF);
+            LinkState state = mState.get();
+            if (state.handshake != null && state.handshake.complete(capabilities)) {
+                // the capabilities frame is the hello's ack
+                mMailbox.onAck(1);
+                onNegotiated(state, capabilities);
+            }
+        }
+    };
 
     ///////////////////////////////////////////////
     // Constructors
     ///////////////////////////////////////////////
 
     public ADKManager(Context context, Callback callback) {
-        mContext = context;
-        mHandler = new Handler();
+        this(new UsbLinkProvider(context), callback, new Handler());
+    }
+
+    /**
+     * @param provider Opens the links to the accessory
+     * @param callback
+     * @param handler  The handler callbacks are posted to, or null to invoke them on the calling thread. See also
+     *                 {@link #setCallbackExecutor(Executor)}
+     */
+    public ADKManager(LinkProvider provider, Callback callback, Handler handler) {
+        mProvider = provider;
+        mCallbackExecutor = (handler != null) ? new HandlerExecutor(handler) : null;
         mCallback = callback;
-        mPool = Executors.newSingleThreadExecutor();
+        mMailbox = new CommandMailbox(CommandMailbox.DEFAULT_CAPACITY);
+        mWriteBuffer = new byte[WRITE_BUFFER_SIZE];
+        mAckTracker = new AckTracker();
+        mTelemetry = new TelemetryBuffer();
         mLock = new Object[0];
+        mState = new AtomicReference<LinkState>(new LinkState(0, null, null, null));
+        mBackoff = new Backoff(RECONNECT_INITIAL_DELAY, RECONNECT_MAX_DELAY);
+        mReconnectLatency = new LatencyHistogram();
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(null, runnable, TAG + "-connector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mWriterThread = new Thread(null, new Writer(), TAG + "-writer");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
     }
 
 
@@ -72,77 +204,220 @@ public class ADKManager implements Runnable {
     ///////////////////////////////////////////////
 
     /**
-     * Connect to the ADK
+     * Connect to the ADK. <br/>
+     * Connecting is driven by the link provider's events: the device is opened as soon as it's attached and
+     * permission is granted. Until then, and whenever the connection is lost, attempts are retried with a jittered
+     * exponential backoff. Call {@link #disconnect()} to stop
      */
     public void connect() {
-        mTimer = new Timer();
-        TimerTask reconnectTask = new TimerTask() {
-
-            @Override
-            public void run() {
-                synchronized (mLock) {
-                    if (!mConnected) {
-                        SLog.d(TAG, "Connecting to ADK...");
-                        disconnectInternal();
-                        connectInternal();
-                    } else {
-                        mTimer.cancel();
-                    }
-                }
+        synchronized (mLock) {
+            if (!mStarted) {
+                mStarted = true;
+                mProvider.start(mLinkListener);
             }
-        };
 
-        try {
-            mTimer.schedule(reconnectTask, 0, 10000);
-        } catch (IllegalStateException e) {
-            SLog.e(TAG, "Can't schedule a task on a canceled timer", e);
+            if (mDisconnectedAt == 0) {
+                mDisconnectedAt = System.nanoTime();
+            }
         }
+
+        scheduleAttempt(0);
     }
 
     /**
-     * Disconnect from the ADK
+     * Disconnect from the ADK and stop reconnecting
      */
     public void disconnect() {
         SLog.d(TAG, "Disconnecting from the ADK device");
-        disconnectInternal();
-        mCallback.onDisconnected();
+        synchronized (mLock) {
+            mStarted = false;
+            mDisconnectedAt = 0;
+            if (mPendingAttempt != null) {
+                mPendingAttempt.cancel(false);
+                mPendingAttempt = null;
+            }
+
+            mProvider.stop();
+        }
+
+        closeAccessory(null);
+        deliver(mDisconnectedTask);
+    }
+
+    /**
+     * Set where callbacks are invoked, e.g. a single background thread so that acks never queue up on the UI thread.
+     * Callbacks are invoked one at a time only if the executor runs them one at a time
+     *
+     * @param executor The executor callbacks are submitted to, or null to invoke them on the thread that produced
+     *                 them: the threads reading and writing the link, or the caller of {@link #connect()} and
+     *                 {@link #disconnect()}
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * Coalesce acks: instead of calling {@link Callback#onAckReceived(boolean)} for every ack, call
+     * {@link Callback#onAcksReceived(boolean, int, int)} at most once per <code>interval</code> with the number of
+     * acks received since the previous call. An interval of one UI frame keeps the UI up to date without flooding it
+     *
+     * @param interval The shortest time between calls in milliseconds, e.g. {@link #FRAME_INTERVAL}, or 0 to deliver
+     *                 every ack
+     */
+    public void setAckCoalescing(long interval) {
+        AckCoalescer previous = mAckCoalescer;
+        mAckCoalescer = (interval > 0) ? new AckCoalescer(mCallback, mDeliveryExecutor, interval) : null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Get the number of times coalesced acks were delivered, see {@link #setAckCoalescing(long)}
+     *
+     * @return
+     */
+    public long getAckDeliveryCount() {
+        AckCoalescer ackCoalescer = mAckCoalescer;
+        return (ackCoalescer != null) ? ackCoalescer.getDeliveryCount() : 0;
+    }
+
+    /**
+     * Get the number of acks that didn't cause a delivery of their own, see {@link #setAckCoalescing(long)}
+     *
+     * @return
+     */
+    public long getCoalescedAckCount() {
+        AckCoalescer ackCoalescer = mAckCoalescer;
+        return (ackCoalescer != null) ? ackCoalescer.getCoalescedCount() : 0;
+    }
+
+    /**
+     * Switch to another kind of link, e.g. from the USB accessory to a {@link com.labs.adk.link.UsbHostLinkProvider}.
+     * If connected, the current connection is closed and connecting starts over through <code>provider</code>;
+     * the framing on top stays the same
+     *
+     * @param provider
+     */
+    public void setLinkProvider(LinkProvider provider) {
+        boolean started;
+        synchronized (mLock) {
+            if (provider == mProvider) {
+                return;
+            }
+
+            started = mStarted;
+        }
+
+        if (started) {
+            disconnect();
+        }
+
+        synchronized (mLock) {
+            mProvider = provider;
+        }
+
+        if (started) {
+            connect();
+        }
+    }
+
+    /**
+     * Notify that an accessory was attached. <br/>
+     * {@link com.android.future.usb.UsbManager#ACTION_USB_ACCESSORY_ATTACHED} is delivered to activities rather than
+     * to receivers, so the activity declaring the accessory filter should forward it here from <code>onNewIntent</code>
+     */
+    public void onAccessoryAttached() {
+        SLog.d(TAG, "Accessory attached");
+        synchronized (mLock) {
+            mBackoff.reset();
+            if (mDisconnectedAt == 0 && !isConnected()) {
+                mDisconnectedAt = System.nanoTime();
+            }
+        }
+
+        scheduleAttempt(0);
     }
 
     /**
-     * Send command to the ADK
+     * Send command to the ADK. <br/>
+     * Commands are coalesced by (command, action): if a command with the same key is still waiting to be written,
+     * it is replaced by this one instead of queueing behind it
      *
      * @param command
      * @param action
      * @param data    May also be null if there's no data (if you read this, you rock!)
+     * @throws IllegalArgumentException if <code>data</code> is longer than {@link ADK#MAX_DATA_LENGTH}
      */
     public void sendCommand(final byte command, final byte action, final byte[] data) {
-        mPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                int dataLength = ((data != null) ? data.length : 0);
-
-                ByteBuffer buffer = ByteBuffer.allocate(3 + dataLength);
-                buffer.put(command);
-                buffer.put(action);
-                buffer.put(toUnsignedByte(dataLength));
-                if (data != null) {
-                    buffer.put(data);
-                }
+        if (data != null && data.length > ADK.MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("data can't be longer than " + ADK.MAX_DATA_LENGTH + " bytes");
+        }
 
-                if (mOutputStream != null) {
-                    try {
-                        SLog.d(TAG, "sendCommand: Sending data to ADK device: " + buffer);
-                        mOutputStream.write(buffer.array());
-                    } catch (IOException e) {
-                        SLog.e(TAG, e, "sendCommand: Failed to send command to ADK device");
-                        reconnect();
-                    }
-                } else {
-                    SLog.d(TAG, "sendCommand: Send failed: mOutStream was null");
-                    reconnect();
-                }
-            }
-        });
+        ControlLoop controlLoop = mControlLoop;
+        if (controlLoop == null || !controlLoop.update(command, action, data)) {
+            mMailbox.offer(command, action, data, false);
+        }
+    }
+
+    /**
+     * Send a command carrying two data bytes to the ADK. <br/>
+     * This is the allocation-free variant of {@link #sendCommand(byte, byte, byte[])} meant for high rate
+     * commands such as stick updates
+     *
+     * @param command
+     * @param action
+     * @param b0      First data byte
+     * @param b1      Second data byte
+     */
+    public void sendCommand(byte command, byte action, byte b0, byte b1) {
+        ControlLoop controlLoop = mControlLoop;
+        if (controlLoop == null || !controlLoop.update(command, action, b0, b1)) {
+            mMailbox.offer(command, action, b0, b1, false);
+        }
+    }
+
+    /**
+     * Send an urgent command to the ADK, such as {@link ADK#ACTION_STANDBY} or stopping the motors. <br/>
+     * Urgent commands are written before any pending normal command and never wait for flow-control credits.
+     * A pending normal command with the same (command, action) is discarded
+     *
+     * @param command
+     * @param action
+     * @param data    May also be null if there's no data
+     * @throws IllegalArgumentException if <code>data</code> is longer than {@link ADK#MAX_DATA_LENGTH}
+     */
+    public void sendUrgentCommand(byte command, byte action, byte[] data) {
+        if (data != null && data.length > ADK.MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("data can't be longer than " + ADK.MAX_DATA_LENGTH + " bytes");
+        }
+
+        mMailbox.offer(command, action, data, true);
+
+        // later ticks must not undo it
+        ControlLoop controlLoop = mControlLoop;
+        if (controlLoop != null) {
+            controlLoop.update(command, action, data);
+        }
+    }
+
+    /**
+     * Send an urgent command carrying two data bytes to the ADK, without allocating.
+     * See {@link #sendUrgentCommand(byte, byte, byte[])}
+     *
+     * @param command
+     * @param action
+     * @param b0      First data byte
+     * @param b1      Second data byte
+     */
+    public void sendUrgentCommand(byte command, byte action, byte b0, byte b1) {
+        mMailbox.offer(command, action, b0, b1, true);
+
+        // later ticks must not undo it
+        ControlLoop controlLoop = mControlLoop;
+        if (controlLoop != null) {
+            controlLoop.update(command, action, b0, b1);
+        }
     }
 
     /**
@@ -161,7 +436,316 @@ public class ADKManager implements Runnable {
      * @return
      */
     public boolean isConnected() {
-        return mConnected;
+        return mState.get().isConnected();
+    }
+
+    /**
+     * Get the time it took to connect to the ADK device, measured from losing the connection (or from the call to
+     * {@link #connect()}, or from the accessory being attached) until the device was opened
+     *
+     * @return
+     */
+    public LatencyHistogram getReconnectLatency() {
+        return mReconnectLatency;
+    }
+
+    /**
+     * Get the time it took to connect the last time
+     *
+     * @return The time in milliseconds
+     */
+    public long getLastReconnectTime() {
+        return mLastReconnectTime / 1000000;
+    }
+
+    /**
+     * Get what the connected accessory supports
+     *
+     * @return The negotiated capabilities, or null while not connected or still negotiating
+     */
+    public Capabilities getCapabilities() {
+        return mState.get().capabilities;
+    }
+
+    /**
+     * Get the telemetry samples sent by the accessory. Samples are kept across reconnections until drained
+     *
+     * @return
+     */
+    public TelemetryBuffer getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Record every frame sent to and received from the ADK device. The journal is left open when replaced or when
+     * disconnecting, closing it is up to the caller
+     *
+     * @param journal Null to stop recording
+     */
+    public void setJournal(FrameJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Set the telemetry rate requested in the handshake. Takes effect on the next connection
+     *
+     * @param telemetryRate In Hz, or 0 for no telemetry
+     */
+    public void setTelemetryRate(int telemetryRate) {
+        mTelemetryRate = Math.max(0, Math.min(255, telemetryRate));
+    }
+
+    /**
+     * Append a sequence number to every frame and match the acks echoing it to measure round-trip times. <br/>
+     * Only enable this if the accessory's firmware understands {@link ADK#FLAG_SEQUENCED}. Firmware that answers the
+     * handshake announces it by itself, in which case this setting is ignored
+     *
+     * @param sequencedAcks
+     */
+    public void setSequencedAcks(boolean sequencedAcks) {
+        mSequencedAcks = sequencedAcks;
+    }
+
+    /**
+     * Limit the number of frames written to the ADK device and not acked yet. Every ack returns a credit to the window,
+     * so the accessory is never handed more than it can read. <br/>
+     * Legacy acks are sent once per read of the accessory, so with older firmware only a window of 1 is exact
+     *
+     * @param window The maximum number of frames in flight, or 0 to disable flow control
+     * @param policy What to do with new commands while the window is full
+     */
+    public void setFlowControl(int window, WindowPolicy policy) {
+        mMailbox.setFlowControl(window, policy);
+    }
+
+    /**
+     * Write the control state at a fixed cadence. While the loop runs, normal commands only update the latest value
+     * of their (command, action), and a dedicated high-priority thread posts every latest value once per tick.
+     * Urgent commands are still written right away. The state is forgotten whenever the connection is lost
+     *
+     * @param rate The number of ticks per second, e.g. 50
+     */
+    public void startControlLoop(int rate) {
+        ControlLoop controlLoop = new ControlLoop(mMailbox, rate);
+        synchronized (mLock) {
+            if (mControlLoop != null) {
+                mControlLoop.stop();
+            }
+
+            mControlLoop = controlLoop;
+            controlLoop.start();
+        }
+    }
+
+    /**
+     * Stop the loop started by {@link #startControlLoop(int)} and go back to writing commands as they're sent
+     */
+    public void stopControlLoop() {
+        synchronized (mLock) {
+            if (mControlLoop != null) {
+                mControlLoop.stop();
+                mControlLoop = null;
+            }
+        }
+    }
+
+    public boolean isControlLoopRunning() {
+        return mControlLoop != null;
+    }
+
+    /**
+     * Get how late the control loop's ticks woke up, compared with their deadlines
+     *
+     * @return Null if the control loop isn't running
+     */
+    public LatencyHistogram getTickJitter() {
+        ControlLoop controlLoop = mControlLoop;
+        return (controlLoop != null) ? controlLoop.getJitter() : null;
+    }
+
+    /**
+     * Get the number of ticks the control loop skipped because it woke up too late
+     *
+     * @return
+     */
+    public long getMissedDeadlineCount() {
+        ControlLoop controlLoop = mControlLoop;
+        return (controlLoop != null) ? controlLoop.getMissedDeadlineCount() : 0;
+    }
+
+    /**
+     * Get the number of ticks of the control loop so far
+     *
+     * @return
+     */
+    public long getTickCount() {
+        ControlLoop controlLoop = mControlLoop;
+        return (controlLoop != null) ? controlLoop.getTickCount() : 0;
+    }
+
+    /**
+     * Adapt the rate normal commands are written at to the state of the link, see {@link RateController}. Urgent
+     * commands are never held back
+     *
+     * @param rateController Null to write normal commands as fast as the link takes them
+     */
+    public void setRateController(RateController rateController) {
+        mRateController = rateController;
+        if (rateController != null) {
+            rateController.reset();
+            mMailbox.setPacing(rateController.getInterval());
+        } else {
+            mMailbox.setPacing(0);
+        }
+    }
+
+    /**
+     * Get the rate normal commands are currently written at
+     *
+     * @return The rate in Hz, or 0 if it isn't controlled
+     */
+    public double getSendRate() {
+        RateController rateController = mRateController;
+        return (rateController != null) ? rateController.getRate() : 0;
+    }
+
+    /**
+     * Get the number of times the writer held back a normal command to keep to the send rate
+     *
+     * @return
+     */
+    public long getPacedWaitCount() {
+        return mMailbox.getPacedWaitCount();
+    }
+
+    /**
+     * Get the number of frames written to the ADK device and not acked yet. Only counted while flow control is enabled
+     *
+     * @return
+     */
+    public int getInFlightCount() {
+        return mMailbox.getInFlightCount();
+    }
+
+    /**
+     * Get the number of times the writer had to wait for credits before writing a pending command
+     *
+     * @return
+     */
+    public long getWindowStallCount() {
+        return mMailbox.getStallCount();
+    }
+
+    /**
+     * Get the number of credits reclaimed because their ack never arrived
+     *
+     * @return
+     */
+    public long getExpiredCreditCount() {
+        return mMailbox.getExpiredCreditCount();
+    }
+
+    /**
+     * Get the round-trip times of sequence-numbered frames, from writing a frame until its ack is received
+     *
+     * @return
+     */
+    public LatencyHistogram getAckLatency() {
+        return mAckTracker.getLatency();
+    }
+
+    /**
+     * Get the number of sequence-numbered frames that were never acked
+     *
+     * @return
+     */
+    public long getLostAckCount() {
+        return mAckTracker.getLostCount();
+    }
+
+    /**
+     * Get the time from sending normal commands until they were written to the ADK device
+     *
+     * @return
+     */
+    public LatencyHistogram getNormalLaneLatency() {
+        return mMailbox.getNormalLatency();
+    }
+
+    /**
+     * Get the time from sending urgent commands until they were written to the ADK device
+     *
+     * @return
+     */
+    public LatencyHistogram getUrgentLaneLatency() {
+        return mMailbox.getUrgentLatency();
+    }
+
+    /**
+     * Get the number of commands waiting to be written to the ADK device
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return mMailbox.size();
+    }
+
+    /**
+     * Get the number of commands that were replaced by a newer command with the same (command, action)
+     * before being written
+     *
+     * @return
+     */
+    public long getSupersededCount() {
+        return mMailbox.getSupersededCount();
+    }
+
+    /**
+     * Get the number of commands that were never written to the ADK device
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return mMailbox.getDroppedCount();
+    }
+
+    /**
+     * Get the number of commands dropped because the connection they were taken for was lost before they were
+     * written. They're also counted by {@link #getDroppedCount()}
+     *
+     * @return
+     */
+    public long getStaleFrameCount() {
+        return mStaleFrames;
+    }
+
+    /**
+     * Get the number of bytes written to the ADK device, including frame headers and sequence numbers. Sample it
+     * periodically to get the link's throughput
+     *
+     * @return
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * Get the number of transfers written to the ADK device. A transfer holds several frames when batching
+     *
+     * @return
+     */
+    public long getWrittenTransferCount() {
+        return mWrittenTransfers;
+    }
+
+    /**
+     * Get the generation of the connection to the ADK device. It changes whenever the device is connected or
+     * disconnected
+     *
+     * @return
+     */
+    public long getConnectionGeneration() {
+        return mState.get().generation;
     }
 
     ///////////////////////////////////////////////
@@ -173,163 +757,319 @@ public class ADKManager implements Runnable {
      */
     @Override
     public void run() {
-        int ret;
-        byte[] buffer = new byte[16384];
+        LinkState state = mState.get();
+        AccessoryLink link = state.link;
+        if (link == null) {
+            return;
+        }
+
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setHandler(ADK.COMMAND_ACK, mAckHandler);
+        decoder.setHandler(ADK.COMMAND_CAPABILITIES, mCapabilitiesHandler);
+        decoder.setHandler(ADK.COMMAND_TELEMETRY, mTelemetry);
 
-        // Keeps reading messages forever.
-        // There are probably a lot of messages in the buffer, each message 4 bytes.
+        // Keeps reading transfers forever.
+        // A transfer may hold a fragment of a frame or several frames, the decoder takes care of both
         while (true) {
             try {
-                ret = mInputStream.read(buffer);
-                if (ret > 0) {
-                    final boolean ack = buffer[0] == 1;
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mCallback.onAckReceived(ack);
-                        }
-                    });
+                decoder.setJournal(mJournal);
+                if (decoder.readFrom(link) < 0) {
+                    break;
                 }
             } catch (Exception e) {
                 break;
             }
-
         }
+
+        onLinkLost(state);
     }
 
     ///////////////////////////////////////////////
     // Private
     ///////////////////////////////////////////////
     /**
-     * Connect to the ADK device
+     * Try to open the ADK device. Schedules the next attempt if it isn't available yet
      */
-    void connectInternal() {
+    private void attemptConnect() {
         synchronized (mLock) {
-            mUsbManager = UsbManager.getInstance(mContext);
-            PendingIntent permissionIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
-
-            // register receiver
-            IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-            filter.addAction(UsbManager.ACTION_USB_ACCESSORY_DETACHED);
-            filter.addAction(UsbManager.ACTION_USB_ACCESSORY_ATTACHED);
-            mUsbReceiver = new UsbReceiver();
-            mContext.registerReceiver(mUsbReceiver, filter);
-
-            // assume the only connected usb device is our ADK
-            UsbAccessory[] accessories = mUsbManager.getAccessoryList();
-            UsbAccessory accessory = (accessories == null) ? null : accessories[0];
-
-            if (accessory != null) {
-                if (mUsbManager.hasPermission(accessory)) {
-                    openAccessory(accessory);
-                } else {
-                    mUsbManager.requestPermission(accessory, permissionIntent);
-                }
+            if (!mStarted || isConnected()) {
+                return;
             }
         }
+
+        // opening the device may take a while, so it's done without holding the lock.
+        // Attempts run one at a time on the scheduler thread
+        AccessoryLink link = mProvider.open();
+        if (link != null) {
+            openAccessory(link);
+            return;
+        }
+
+        long delay = mBackoff.nextDelay();
+        SLog.d(TAG, "ADK device isn't available, retrying in %d ms", delay);
+        scheduleAttempt(delay);
     }
 
     /**
-     * Disconnect from the ADK device
+     * Schedule a connection attempt, replacing any attempt that is already scheduled
+     *
+     * @param delay In milliseconds
      */
-    private void disconnectInternal() {
+    private void scheduleAttempt(long delay) {
         synchronized (mLock) {
-            mConnected = false;
-            if (mTimer != null) {
-                mTimer.cancel();
+            if (!mStarted) {
+                return;
             }
 
-            if (mUsbReceiver != null) {
-                try {
-                    mContext.unregisterReceiver(mUsbReceiver);
-                } catch (Exception e) {
-                    SLog.e(TAG, e, "Couldn't unregister receiver");
-                } finally {
-                    mUsbReceiver = null;
-                }
+            if (mPendingAttempt != null) {
+                mPendingAttempt.cancel(false);
+            }
 
+            mPendingAttempt = mScheduler.schedule(mAttemptTask, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close the connection to the ADK device, keeping the link provider started. <br/>
+     * The state is swapped first, so that nothing new is written to the old link, and the link is then closed
+     * without holding any lock
+     *
+     * @param expected The connection to close. Ignored if that connection was already replaced, or null to match the
+     *                 current one
+     * @return True if the connection was closed by this call
+     */
+    private boolean closeAccessory(LinkState expected) {
+        LinkState state;
+        do {
+            state = mState.get();
+            if (!state.isConnected() || (expected != null && expected.generation != state.generation)) {
+                return false;
             }
+        } while (!mState.compareAndSet(state, state.disconnect()));
 
-            if (mFileDescriptor != null) {
-                try {
-                    mFileDescriptor.close();
-                } catch (IOException e) {
-                    SLog.e(TAG, e, "Couldn't close file descriptor");
-                } finally {
-                    mFileDescriptor = null;
-                }
+        state.handshake.complete(null);
+
+        // whatever is still pending was meant for the old connection
+        ControlLoop controlLoop = mControlLoop;
+        if (controlLoop != null) {
+            controlLoop.clear();
+        }
+        mMailbox.clear();
+        mAckTracker.reset();
+
+        state.link.close();
+        return true;
+    }
+
+    /**
+     * Handle a broken connection: close it and start reconnecting right away
+     *
+     * @param lost The connection that broke. Ignored if that connection was already replaced
+     */
+    private void onLinkLost(LinkState lost) {
+        if (!closeAccessory(lost)) {
+            return;
+        }
+
+        SLog.i(TAG, "Lost connection to ADK device, reconnecting");
+        synchronized (mLock) {
+            mDisconnectedAt = System.nanoTime();
+        }
+
+        deliver(mDisconnectedTask);
+        scheduleAttempt(0);
+    }
+
+    /**
+     * Handle a link detached by the link provider
+     *
+     * @param link
+     */
+    private void onLinkLost(AccessoryLink link) {
+        LinkState state = mState.get();
+        if (state.link == link) {
+            onLinkLost(state);
+        }
+    }
+
+    /**
+     * Start reading and writing over a freshly opened link to the ADK device
+     *
+     * @param link
+     */
+    private void openAccessory(AccessoryLink link) {
+        synchronized (mLock) {
+            if (!mStarted) {
+                // disconnected while the device was being opened
+                link.close();
+                return;
             }
 
-            if (mInputStream != null) {
-                try {
-                    mInputStream.close();
-                } catch (IOException e) {
-                    SLog.e(TAG, e, "Couldn't close input stream");
-                } finally {
-                    mInputStream = null;
-                }
+            // the hello goes out before any other command, and normal commands are held back until the handshake is
+            // over. Nothing can be posted or taken between publishing the new connection and posting its hello.
+            // Whatever was posted while disconnected was meant for the old connection
+            LinkState state = mState.get().connect(link);
+            synchronized (mMailbox) {
+                mMailbox.clear();
+                mMailbox.setNormalHeld(true);
+                mState.set(state);
+                mMailbox.offerFirst(ADK.COMMAND_HELLO, ADK.ACTION_HELLO,
+                        new byte[]{ADK.PROTOCOL_VERSION, HOST_CAPABILITIES, toUnsignedByte(mTelemetryRate)});
             }
 
-            if (mOutputStream != null) {
-                try {
-                    mOutputStream.close();
-                } catch (IOException e) {
-                    SLog.e(TAG, e, "Couldn't close output stream");
-                } finally {
-                    mOutputStream = null;
-                }
+            if (mCommunicationThread != null) {
+                mCommunicationThread.interrupt();
+            }
+
+            mCommunicationThread = new Thread(null, this, TAG);
+            mCommunicationThread.start();
+
+            // a new link starts at the maximum rate
+            RateController rateController = mRateController;
+            if (rateController != null) {
+                rateController.reset();
+                mMailbox.setPacing(rateController.getInterval());
             }
 
-            mAccessory = null;
+            mBackoff.reset();
+            if (mDisconnectedAt != 0) {
+                mLastReconnectTime = System.nanoTime() - mDisconnectedAt;
+                mReconnectLatency.record(mLastReconnectTime);
+                mDisconnectedAt = 0;
+            }
         }
+
+        deliver(mConnectedTask);
+        SLog.d(TAG, "Attached after %d ms", getLastReconnectTime());
     }
 
     /**
-     * Try to reconnected
+     * Run a callback on the callback executor, or right away if there's none
+     *
+     * @param runnable
      */
-    void reconnect() {
-        SLog.i(TAG, "attempting to reconnect to ADK device");
-        disconnect();
-        connect();
+    private void deliver(Runnable runnable) {
+        Executor executor = mCallbackExecutor;
+        if (executor != null) {
+            executor.execute(runnable);
+        } else {
+            runnable.run();
+        }
     }
 
     /**
-     * Open read and write to and from the ADK device
+     * Write a single transfer of encoded frames to the ADK device
      *
-     * @param accessory
+     * @param state  The connection the frames were prepared for
+     * @param frame
+     * @param length
      */
-    void openAccessory(UsbAccessory accessory) {
-        synchronized (mLock) {
-            SLog.d(TAG, "Trying to attach ADK device");
-            mFileDescriptor = mUsbManager.openAccessory(accessory);
-            if (mFileDescriptor != null) {
-                mAccessory = accessory;
-                FileDescriptor fd = mFileDescriptor.getFileDescriptor();
-                mInputStream = new FileInputStream(fd);
-                mOutputStream = new FileOutputStream(fd);
-
-                if (mCommunicationThread != null) {
-                    mCommunicationThread.interrupt();
+    private void writeFrame(LinkState state, byte[] frame, int length) {
+        AccessoryLink link = state.link;
+        if (link != null) {
+            try {
+                SLog.d(TAG, "writeFrame: Sending %d bytes to ADK device", length);
+                link.write(frame, 0, length);
+                mMailbox.onWritten(System.nanoTime());
+                mWrittenBytes += length;
+                mWrittenTransfers++;
+
+                FrameJournal journal = mJournal;
+                if (journal != null) {
+                    journal.appendTransfer(frame, 0, length);
                 }
+            } catch (IOException e) {
+                SLog.e(TAG, e, "writeFrame: Failed to send command to ADK device");
+                mMailbox.markDropped();
+                onLinkLost(state);
+            }
+        } else {
+            SLog.d(TAG, "writeFrame: Send failed: no link to the ADK device");
+            mMailbox.markDropped();
+        }
+    }
 
-                mCommunicationThread = new Thread(null, this, TAG);
-                mCommunicationThread.start();
-                mConnected = true;
-                mCallback.onConnected();
-                SLog.d(TAG, "Attached");
-            } else {
-                SLog.d(TAG, "openAccessory: accessory open failed");
+    /**
+     * Turn an encoded frame into a sequence-numbered one: flag the command and append the sequence number to the data
+     *
+     * @param buffer
+     * @param offset Where the frame starts
+     * @param length
+     * @return The new length of the frame
+     */
+    private int appendSequence(byte[] buffer, int offset, int length) {
+        buffer[offset] |= ADK.FLAG_SEQUENCED;
+        buffer[offset + 2] = toUnsignedByte((buffer[offset + 2] & 0xFF) + 1);
+        buffer[offset + length] = mAckTracker.onSend(System.nanoTime());
+        return length + 1;
+    }
+
+    /**
+     * Fill the rest of a transfer with whatever other frames may be written right away
+     *
+     * @param length    The length of the frames already in {@link #mWriteBuffer}
+     * @param limit     The maximum length of the transfer
+     * @param sequenced Whether sequence numbers are appended
+     * @return The length of the transfer
+     */
+    private int fillBatch(int length, int limit, boolean sequenced) {
+        int reserved = sequenced ? 1 : 0;
+        while (true) {
+            int frameLength = mMailbox.poll(mWriteBuffer, length, limit - length - reserved);
+            if (frameLength == 0) {
+                return length;
             }
+
+            length += sequenced ? appendSequence(mWriteBuffer, length, frameLength) : frameLength;
         }
     }
 
     /**
-     * Run on UI thread
+     * Feed an ack to the rate controller, if there's one, and pace normal commands to the new rate
      *
-     * @param runnable
+     * @param rtt  The round-trip time of the acked frame in nanoseconds, or -1 if unknown
+     * @param lost The number of older frames the ack showed to be lost
+     * @param now
      */
-    private void runOnUiThread(Runnable runnable) {
-        mHandler.post(runnable);
+    private void adjustRate(long rtt, int lost, long now) {
+        RateController rateController = mRateController;
+        if (rateController == null) {
+            return;
+        }
+
+        if (lost > 0) {
+            rateController.onLoss(now);
+        } else {
+            rateController.onAck(rtt, mMailbox.size(), now);
+        }
+
+        mMailbox.setPacing(rateController.getInterval());
+    }
+
+    /**
+     * Switch to the negotiated mode once the handshake of a connection is over, and release the normal commands
+     * held back meanwhile
+     *
+     * @param state        The connection whose handshake was just completed
+     * @param capabilities
+     */
+    private void onNegotiated(LinkState state, final Capabilities capabilities) {
+        synchronized (mMailbox) {
+            if (!mState.compareAndSet(state, state.negotiated(capabilities))) {
+                // the connection went away meanwhile
+                return;
+            }
+
+            mMailbox.setNormalHeld(false);
+        }
+
+        SLog.i(TAG, "Negotiated capabilities: %s", capabilities);
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onCapabilitiesNegotiated(capabilities);
+            }
+        });
     }
 
     ///////////////////////////////////////////////
@@ -337,34 +1077,115 @@ public class ADKManager implements Runnable {
     ///////////////////////////////////////////////
 
     /**
-     * Listens for the following events:
-     * {@link #ACTION_USB_PERMISSION}, {@link com.android.future.usb.UsbManager#ACTION_USB_ACCESSORY_ATTACHED}, {@link com.android.future.usb.UsbManager#ACTION_USB_ACCESSORY_DETACHED}
+     * Posts callbacks to a {@link Handler}
+     */
+    private static class HandlerExecutor implements Executor {
+        private final Handler mHandler;
+
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            mHandler.post(runnable);
+        }
+    }
+
+    /**
+     * Runs a single connection attempt on the scheduler thread
      */
-    private class UsbReceiver extends BroadcastReceiver {
+    private final Runnable mAttemptTask = new Runnable() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            SLog.d(TAG, "Got USB intent ", action);
-
-            if (ACTION_USB_PERMISSION.equals(action)) {
-                synchronized (mLock) {
-                    UsbAccessory accessory = UsbManager.getAccessory(intent);
-                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        openAccessory(accessory);
-                    } else {
-                        SLog.d(TAG, "USB permission denied");
+        public void run() {
+            attemptConnect();
+        }
+    };
+
+    /**
+     * Follows the link provider's events
+     */
+    private final LinkProvider.Listener mLinkListener = new LinkProvider.Listener() {
+        @Override
+        public void onLinkAvailable() {
+            onAccessoryAttached();
+        }
+
+        @Override
+        public void onLinkDetached(AccessoryLink link) {
+            SLog.d(TAG, "ADK device detached");
+            onLinkLost(link);
+        }
+    };
+
+    /**
+     * Gives up on the accessory answering the hello: older firmware never does, so the connection goes on in the
+     * legacy mode
+     */
+    private class HandshakeTimeout implements Runnable {
+        private final LinkState mConnection;
+
+        HandshakeTimeout(LinkState connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            if (mConnection.handshake.complete(Capabilities.LEGACY)) {
+                onNegotiated(mConnection, Capabilities.LEGACY);
+            }
+        }
+    }
+
+    /**
+     * Drains the {@link CommandMailbox} and writes its frames to the ADK device. Frames are written one per transfer,
+     * or as many as fit in the accessory's buffer if it supports batching.
+     * The same buffer is reused for every write
+     */
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    int length = mMailbox.take(mWriteBuffer);
+                    LinkState state = mState.get();
+                    if (!state.isConnected()) {
+                        // taken for a connection that is gone by now
+                        mMailbox.markDropped();
+                        mStaleFrames++;
+                        continue;
                     }
-                }
-            } else if (UsbManager.ACTION_USB_ACCESSORY_ATTACHED.equals(action)) {
-                SLog.d(TAG, "BroadcastReceiver:: USB Attached");
-                connect();
-            } else if (UsbManager.ACTION_USB_ACCESSORY_DETACHED.equals(action)) {
-                UsbAccessory accessory = UsbManager.getAccessory(intent);
-                if (accessory != null && accessory.equals(mAccessory)) {
-                    SLog.d(TAG, "BroadcastReceiver:: USB Detached");
-                    disconnect();
+
+                    if (mWriteBuffer[0] == ADK.COMMAND_HELLO) {
+                        writeFrame(state, mWriteBuffer, length);
+                        mScheduler.schedule(new HandshakeTimeout(state), HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+
+                    if (!state.isReady()) {
+                        // an urgent command posted during the handshake, normal ones are held back until it's over.
+                        // It's written right away, as a single frame that firmware of any version understands
+                        writeFrame(state, mWriteBuffer, length);
+                        continue;
+                    }
+
+                    Capabilities capabilities = state.capabilities;
+                    boolean sequenced = capabilities.isLegacy() ?
+                            mSequencedAcks :
+                            capabilities.supports(ADK.CAPABILITY_SEQUENCED_ACKS);
+                    if (sequenced) {
+                        length = appendSequence(mWriteBuffer, 0, length);
+                    }
+
+                    if (capabilities.supports(ADK.CAPABILITY_BATCHING)) {
+                        length = fillBatch(length, Math.min(capabilities.getBufferSize(), WRITE_BUFFER_SIZE), sequenced);
+                    }
+
+                    writeFrame(state, mWriteBuffer, length);
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,285 @@
+package com.labs.adk;
+
+import android.os.Handler;
+import com.labs.adk.link.LinkProvider;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drives several ADK devices from a single phone, e.g. a drive board and a sensor board on a test rig. <br/>
+ * Every accessory is registered under an id and gets its own {@link ADKManager}: its own writer and reader threads,
+ * reconnect scheduler, flow control and metrics. A board that stalls or reconnects thus never holds back the others,
+ * and throughput grows with the number of boards. Commands are routed by the accessory id without locking
+ *
+ * @author Amir Lazarovich
+ */
+public class AccessoryGroup {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Map<String, ADKManager> mManagers;
+    private final Handler mHandler;
+    private final Object[] mLock;
+    private boolean mConnected;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param handler The handler the callbacks of every accessory are posted to, or null to invoke them on the calling
+     *                thread
+     */
+    public AccessoryGroup(Handler handler) {
+        mHandler = handler;
+        mManagers = new ConcurrentHashMap<String, ADKManager>();
+        mLock = new Object[0];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Register an accessory. If the group is connected, connecting to the accessory starts right away
+     *
+     * @param id       The id commands to this accessory are sent to
+     * @param provider Opens the links to this accessory only, e.g. a
+     *                 {@link com.labs.adk.link.UsbLinkProvider#UsbLinkProvider(android.content.Context, String)}
+     *                 restricted to its model
+     * @param callback Notified about this accessory only
+     * @return The manager of the accessory, to configure it and read its metrics
+     * @throws IllegalArgumentException if <code>id</code> is already registered
+     */
+    public ADKManager add(String id, LinkProvider provider, Callback callback) {
+        ADKManager manager = new ADKManager(provider, callback, mHandler);
+        add(id, manager);
+        return manager;
+    }
+
+    /**
+     * Register an accessory managed by <code>manager</code>. If the group is connected, connecting to the accessory
+     * starts right away
+     *
+     * @param id
+     * @param manager
+     * @throws IllegalArgumentException if <code>id</code> is already registered
+     */
+    public void add(String id, ADKManager manager) {
+        synchronized (mLock) {
+            if (mManagers.containsKey(id)) {
+                throw new IllegalArgumentException("Accessory " + id + " is already registered");
+            }
+
+            mManagers.put(id, manager);
+            if (mConnected) {
+                manager.connect();
+            }
+        }
+    }
+
+    /**
+     * Unregister an accessory and disconnect from it
+     *
+     * @param id
+     * @return The manager of the accessory, or null if <code>id</code> isn't registered
+     */
+    public ADKManager remove(String id) {
+        ADKManager manager;
+        synchronized (mLock) {
+            manager = mManagers.remove(id);
+        }
+
+        if (manager != null) {
+            manager.disconnect();
+        }
+
+        return manager;
+    }
+
+    /**
+     * Connect to every registered accessory, and to every accessory registered from now on.
+     * See {@link ADKManager#connect()}
+     */
+    public void connect() {
+        synchronized (mLock) {
+            mConnected = true;
+            for (ADKManager manager : mManagers.values()) {
+                manager.connect();
+            }
+        }
+    }
+
+    /**
+     * Disconnect from every accessory and stop reconnecting
+     */
+    public void disconnect() {
+        synchronized (mLock) {
+            mConnected = false;
+            for (ADKManager manager : mManagers.values()) {
+                manager.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Notify that an accessory was attached. All the accessories that aren't connected try to connect, as the
+     * attach intent doesn't tell them apart. See {@link ADKManager#onAccessoryAttached()}
+     */
+    public void onAccessoryAttached() {
+        for (ADKManager manager : mManagers.values()) {
+            if (!manager.isConnected()) {
+                manager.onAccessoryAttached();
+            }
+        }
+    }
+
+    /**
+     * Send a command to an accessory. See {@link ADKManager#sendCommand(byte, byte, byte[])}
+     *
+     * @param id
+     * @param command
+     * @param action
+     * @param data    May also be null if there's no data
+     * @throws IllegalArgumentException if <code>id</code> isn't registered
+     */
+    public void sendCommand(String id, byte command, byte action, byte[] data) {
+        route(id).sendCommand(command, action, data);
+    }
+
+    /**
+     * Send a command carrying two data bytes to an accessory, without allocating.
+     * See {@link ADKManager#sendCommand(byte, byte, byte, byte)}
+     *
+     * @param id
+     * @param command
+     * @param action
+     * @param b0
+     * @param b1
+     * @throws IllegalArgumentException if <code>id</code> isn't registered
+     */
+    public void sendCommand(String id, byte command, byte action, byte b0, byte b1) {
+        route(id).sendCommand(command, action, b0, b1);
+    }
+
+    /**
+     * Send an urgent command to an accessory. See {@link ADKManager#sendUrgentCommand(byte, byte, byte[])}
+     *
+     * @param id
+     * @param command
+     * @param action
+     * @param data    May also be null if there's no data
+     * @throws IllegalArgumentException if <code>id</code> isn't registered
+     */
+    public void sendUrgentCommand(String id, byte command, byte action, byte[] data) {
+        route(id).sendUrgentCommand(command, action, data);
+    }
+
+    /**
+     * Send an urgent command carrying two data bytes to an accessory, without allocating.
+     * See {@link ADKManager#sendUrgentCommand(byte, byte, byte, byte)}
+     *
+     * @param id
+     * @param command
+     * @param action
+     * @param b0
+     * @param b1
+     * @throws IllegalArgumentException if <code>id</code> isn't registered
+     */
+    public void sendUrgentCommand(String id, byte command, byte action, byte b0, byte b1) {
+        route(id).sendUrgentCommand(command, action, b0, b1);
+    }
+
+    /**
+     * Send an urgent command to every accessory, e.g. to stop all the motors at once
+     *
+     * @param command
+     * @param action
+     * @param data    May also be null if there's no data
+     */
+    public void broadcastUrgentCommand(byte command, byte action, byte[] data) {
+        for (ADKManager manager : mManagers.values()) {
+            manager.sendUrgentCommand(command, action, data);
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the manager of an accessory, e.g. to read its throughput ({@link ADKManager#getWrittenBytes()}) and
+     * round-trip times ({@link ADKManager#getAckLatency()})
+     *
+     * @param id
+     * @return The manager, or null if <code>id</code> isn't registered
+     */
+    public ADKManager get(String id) {
+        return mManagers.get(id);
+    }
+
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(mManagers.keySet());
+    }
+
+    public int size() {
+        return mManagers.size();
+    }
+
+    /**
+     * Check if connected to an accessory
+     *
+     * @param id
+     * @return False if not connected or if <code>id</code> isn't registered
+     */
+    public boolean isConnected(String id) {
+        ADKManager manager = mManagers.get(id);
+        return manager != null && manager.isConnected();
+    }
+
+    /**
+     * Get the number of registered accessories that are connected
+     *
+     * @return
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (ADKManager manager : mManagers.values()) {
+            if (manager.isConnected()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the number of bytes written to all the accessories
+     *
+     * @return
+     */
+    public long getWrittenBytes() {
+        long bytes = 0;
+        for (ADKManager manager : mManagers.values()) {
+            bytes += manager.getWrittenBytes();
+        }
+
+        return bytes;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private ADKManager route(String id) {
+        ADKManager manager = mManagers.get(id);
+        if (manager == null) {
+            throw new IllegalArgumentException("Unknown accessory " + id);
+        }
+
+        return manager;
+    }
+}
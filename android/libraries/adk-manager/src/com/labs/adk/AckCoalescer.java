@@ -0,0 +1,165 @@
+package com.labs.adk;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers acks to {@link Callback#onAcksReceived(boolean, int, int)} at most once per interval, e.g. once per UI
+ * frame, instead of once per ack. <br/>
+ * Acks received in between are only counted. A delivery is submitted to the executor as soon as the first ack after
+ * the previous delivery arrives, or once the interval since the previous delivery is over, and at most one delivery
+ * is pending at a time. Counting doesn't allocate. <br/>
+ * Delayed deliveries are timed on a thread of their own, so they never wait behind reconnect attempts and a slow
+ * reconnect never holds back the acks
+ *
+ * @author Amir Lazarovich
+ */
+class AckCoalescer implements Runnable {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "AckCoalescer";
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Callback mCallback;
+    private final Executor mExecutor;
+    private final ScheduledExecutorService mScheduler;
+    private final long mIntervalNanos;
+
+    // member-pending: guarded by this
+    private int mAcks;
+    private int mNacks;
+    private boolean mLastAck;
+    private boolean mPending;
+    private long mLastDeliveryAt;
+
+    // member-statistics: guarded by this
+    private long mDeliveries;
+    private long mCoalesced;
+
+    /**
+     * Hands a delayed delivery over to the executor
+     */
+    private final Runnable mSubmitTask = new Runnable() {
+        @Override
+        public void run() {
+            mExecutor.execute(AckCoalescer.this);
+        }
+    };
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param callback
+     * @param executor Runs the deliveries
+     * @param interval The shortest time between deliveries, in milliseconds
+     */
+    AckCoalescer(Callback callback, Executor executor, long interval) {
+        mCallback = callback;
+        mExecutor = executor;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(null, runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Count an ack, and schedule a delivery unless one is already pending
+     *
+     * @param ack
+     */
+    public void onAck(boolean ack) {
+        long delay;
+        synchronized (this) {
+            if (ack) {
+                mAcks++;
+            } else {
+                mNacks++;
+            }
+
+            mLastAck = ack;
+            if (mPending) {
+                mCoalesced++;
+                return;
+            }
+
+            mPending = true;
+            delay = (mLastDeliveryAt != 0) ? mLastDeliveryAt + mIntervalNanos - System.nanoTime() : 0;
+        }
+
+        if (delay > 0) {
+            try {
+                mScheduler.schedule(mSubmitTask, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down, its replacement delivers the next acks
+            }
+        } else {
+            mExecutor.execute(this);
+        }
+    }
+
+    /**
+     * Stop timing deliveries, e.g. once replaced by another coalescer. Acks counted since the last delivery may never
+     * be delivered
+     */
+    public void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public void run() {
+        boolean lastAck;
+        int acks;
+        int nacks;
+        synchronized (this) {
+            lastAck = mLastAck;
+            acks = mAcks;
+            nacks = mNacks;
+            mAcks = 0;
+            mNacks = 0;
+            mPending = false;
+            mLastDeliveryAt = System.nanoTime();
+            mDeliveries++;
+        }
+
+        mCallback.onAcksReceived(lastAck, acks, nacks);
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public synchronized long getDeliveryCount() {
+        return mDeliveries;
+    }
+
+    /**
+     * Get the number of acks that were folded into a pending delivery instead of causing one
+     *
+     * @return
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+}
@@ -0,0 +1,135 @@
+package com.labs.adk;
+
+/**
+ * Matches sequence-numbered acks to the frames they acknowledge and records their round-trip time. <br/>
+ * The accessory acks frames in the order it receives them, so an ack for a sequence number implies that every
+ * older frame still waiting for its ack has been lost
+ *
+ * @author Amir Lazarovich
+ */
+class AckTracker {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int SEQUENCES = 256;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final long[] mSentAt;
+    private final boolean[] mPending;
+    private final LatencyHistogram mLatency;
+    private int mNextSequence;
+    private int mOldestSequence;
+    private int mPendingCount;
+    private long mLastRtt;
+
+    // member-statistics
+    private long mLost;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    AckTracker() {
+        mSentAt = new long[SEQUENCES];
+        mPending = new boolean[SEQUENCES];
+        mLatency = new LatencyHistogram();
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Assign a sequence number to a frame that is about to be written
+     *
+     * @param now {@link System#nanoTime()} at the time of writing
+     * @return The sequence number
+     */
+    public synchronized byte onSend(long now) {
+        int sequence = mNextSequence;
+        mNextSequence = (sequence + 1) % SEQUENCES;
+
+        if (mPending[sequence]) {
+            // wrapped around before this sequence number was ever acked
+            mLost++;
+            mPendingCount--;
+            // the frames just after it are now the oldest; the slots before them belong to newer frames
+            mOldestSequence = mNextSequence;
+        }
+
+        mPending[sequence] = true;
+        mSentAt[sequence] = now;
+        mPendingCount++;
+        return (byte) sequence;
+    }
+
+    /**
+     * Match an ack to the frame it acknowledges
+     *
+     * @param sequence The sequence number echoed by the accessory
+     * @param now      {@link System#nanoTime()} at the time the ack was received
+     * @return The number of frames resolved by this ack: the acknowledged frame plus every older frame that is now
+     * considered lost. 0 if no frame was waiting for this ack
+     */
+    public synchronized int onAck(byte sequence, long now) {
+        int acked = sequence & 0xFF;
+        if (!mPending[acked]) {
+            return 0;
+        }
+
+        int resolved = 1;
+        for (int i = mOldestSequence; i != acked; i = (i + 1) % SEQUENCES) {
+            if (mPending[i]) {
+                mPending[i] = false;
+                mPendingCount--;
+                mLost++;
+                resolved++;
+            }
+        }
+
+        mPending[acked] = false;
+        mPendingCount--;
+        mOldestSequence = (acked + 1) % SEQUENCES;
+
+        mLastRtt = now - mSentAt[acked];
+        mLatency.record(mLastRtt);
+        return resolved;
+    }
+
+    /**
+     * Give up on every frame still waiting for its ack, e.g. when the connection is lost
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < SEQUENCES; i++) {
+            if (mPending[i]) {
+                mPending[i] = false;
+                mLost++;
+            }
+        }
+
+        mPendingCount = 0;
+        mOldestSequence = mNextSequence;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public synchronized long getLostCount() {
+        return mLost;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+
+    public synchronized long getLastRtt() {
+        return mLastRtt;
+    }
+}
@@ -0,0 +1,75 @@
+package com.labs.adk;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff. <br/>
+ * Every call to {@link #nextDelay()} doubles the base delay up to a maximum, and returns a random delay between
+ * half the base delay and the full base delay so that retries don't line up
+ *
+ * @author Amir Lazarovich
+ */
+public class Backoff {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final Random mRandom;
+    private long mDelay;
+    private int mAttempts;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param initialDelay The base delay of the first retry
+     * @param maxDelay     The base delay never grows beyond this value
+     */
+    public Backoff(long initialDelay, long maxDelay) {
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        mRandom = new Random();
+        mDelay = initialDelay;
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the delay before the next retry and grow the base delay
+     *
+     * @return
+     */
+    public synchronized long nextDelay() {
+        long base = mDelay;
+        mDelay = Math.min(mDelay * 2, mMaxDelay);
+        mAttempts++;
+
+        long half = base / 2;
+        return half + (long) (mRandom.nextDouble() * (base - half));
+    }
+
+    /**
+     * Start over from the initial delay, e.g. once a retry succeeded
+     */
+    public synchronized void reset() {
+        mDelay = mInitialDelay;
+        mAttempts = 0;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the number of retries since the last reset
+     *
+     * @return
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
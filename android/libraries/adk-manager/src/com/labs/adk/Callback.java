@@ -11,6 +11,16 @@ public interface Callback {
      */
     void onAckReceived(boolean ack);
 
+    /**
+     * Callback invoked instead of {@link #onAckReceived(boolean)} while acks are coalesced, at most once per interval,
+     * see {@link ADKManager#setAckCoalescing(long)}
+     *
+     * @param lastAck The last ack received
+     * @param acks    The number of positive acks received since the previous call
+     * @param nacks   The number of negative acks received since the previous call
+     */
+    void onAcksReceived(boolean lastAck, int acks, int nacks);
+
     /**
      * Callback invoked when the ADK device is connected
      */
@@ -20,4 +30,11 @@ public interface Callback {
      * Callback invoked when the ADK device is disconnected
      */
     void onDisconnected();
+
+    /**
+     * Callback invoked once the handshake that follows connecting to the ADK device is over
+     *
+     * @param capabilities What the ADK device supports, {@link Capabilities#LEGACY} for firmware without handshake
+     */
+    void onCapabilitiesNegotiated(Capabilities capabilities);
 }
@@ -0,0 +1,98 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+
+/**
+ * What the accessory's firmware supports, as announced in the handshake that follows every connection. <br/>
+ * Firmware that doesn't answer the handshake gets {@link #LEGACY}
+ *
+ * @author Amir Lazarovich
+ */
+public class Capabilities {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    public static final Capabilities LEGACY = new Capabilities(0, ADK.MAX_FRAME_SIZE, 0, 0);
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final int mProtocolVersion;
+    private final int mBufferSize;
+    private final int mFlags;
+    private final int mTelemetryRate;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param protocolVersion
+     * @param bufferSize      The number of bytes the accessory reads at once
+     * @param flags           A combination of the <code>ADK.CAPABILITY_*</code> flags
+     * @param telemetryRate   In Hz, 0 if the accessory sends no telemetry
+     */
+    public Capabilities(int protocolVersion, int bufferSize, int flags, int telemetryRate) {
+        mProtocolVersion = protocolVersion;
+        mBufferSize = bufferSize;
+        mFlags = flags;
+        mTelemetryRate = telemetryRate;
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Check whether the accessory supports <code>capability</code>
+     *
+     * @param capability One of the <code>ADK.CAPABILITY_*</code> flags
+     * @return
+     */
+    public boolean supports(int capability) {
+        return (mFlags & capability) == capability;
+    }
+
+    /**
+     * Check whether the accessory didn't take part in the handshake
+     *
+     * @return
+     */
+    public boolean isLegacy() {
+        return mProtocolVersion == 0;
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public String toString() {
+        if (isLegacy()) {
+            return "legacy";
+        }
+
+        return "version: " + mProtocolVersion + ", buffer: " + mBufferSize + " bytes, flags: 0x"
+                + Integer.toHexString(mFlags) + ", telemetry: " + mTelemetryRate + " Hz";
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getTelemetryRate() {
+        return mTelemetryRate;
+    }
+}
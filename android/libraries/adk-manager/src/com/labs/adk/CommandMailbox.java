@@ -0,0 +1,662 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+
+/**
+ * Coalescing outbound mailbox for ADK commands. <br/>
+ * Pending commands are keyed by (command, action): a newer command for a key that is still waiting
+ * to be written replaces the pending one instead of queueing behind it. The mailbox therefore never holds
+ * more than one frame per key, which caps the latency of any command at a single write. <br/>
+ * Frames are encoded straight into preallocated rings, so posting and taking commands doesn't allocate. <br/>
+ * Commands travel in one of two lanes. Urgent commands (e.g. stopping the motors) are always written before any
+ * pending normal command, and posting one discards the pending normal command with the same key, which would
+ * otherwise undo it. <br/>
+ * Optionally the mailbox enforces a credit-based flow-control window: at most N frames may be written and not
+ * acked yet. Each ack returns a credit, and a credit whose ack never arrives is reclaimed after
+ * {@link #ACK_TIMEOUT_NANOS}. What happens to new normal commands while the window is full is decided by
+ * the {@link WindowPolicy}. Urgent commands never wait for credits. <br/>
+ * Normal commands may also be paced, written no closer together than a given interval; meanwhile they keep being
+ * coalesced, so pacing delays commands without ever writing stale values. Urgent commands are never paced. <br/>
+ * Normal commands may be held back altogether, e.g. until the handshake of a new connection is over, see
+ * {@link #setNormalHeld(boolean)}. <br/>
+ * Several frames may be written in a single transfer: after {@link #take(byte[])}, {@link #poll(byte[], int, int)}
+ * removes whatever else may be written right away
+ *
+ * @author Amir Lazarovich
+ */
+class CommandMailbox {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    static final int DEFAULT_CAPACITY = 16;
+    static final int URGENT_CAPACITY = 4;
+    static final int MAX_WINDOW = 64;
+    static final long ACK_TIMEOUT_NANOS = 250 * 1000000L;
+    static final int MAX_BATCH = 32;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Lane mNormal;
+    private final Lane mUrgent;
+
+    // member-flow-control
+    private int mWindow;
+    private WindowPolicy mPolicy = WindowPolicy.COALESCE;
+    private final long[] mInFlightSince;
+    private int mInFlightHead;
+    private int mInFlight;
+
+    // member-pacing
+    private long mPacingNanos;
+    private long mNextNormalAt;
+    private boolean mNormalHeld;
+
+    // member-taken: the frames taken since the last write, guarded by the writing thread
+    private final Lane[] mTakenFrom;
+    private final long[] mTakenEnqueuedAt;
+    private int mTaken;
+
+    // member-statistics
+    private long mSuperseded;
+    private long mDropped;
+    private long mStalls;
+    private long mPacedWaits;
+    private long mExpiredCredits;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    CommandMailbox(int capacity) {
+        mNormal = new Lane(capacity);
+        mUrgent = new Lane(URGENT_CAPACITY);
+        mInFlightSince = new long[MAX_WINDOW];
+        mTakenFrom = new Lane[MAX_BATCH];
+        mTakenEnqueuedAt = new long[MAX_BATCH];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Post a command. If a command with the same (command, action) is still pending in the same lane, its data is
+     * replaced and it keeps its place in line
+     *
+     * @param command
+     * @param action
+     * @param data    May also be null if there's no data
+     * @param urgent  Whether the command should be written before any pending normal command
+     */
+    public synchronized void offer(byte command, byte action, byte[] data, boolean urgent) {
+        offer(command, action, data, 0, (data != null) ? data.length : 0, urgent);
+    }
+
+    /**
+     * Post a command whose data is a slice of <code>data</code>. Same as
+     * {@link #offer(byte, byte, byte[], boolean)} without the need to allocate an array of the exact length
+     *
+     * @param command
+     * @param action
+     * @param data
+     * @param offset
+     * @param dataLength
+     * @param urgent     Whether the command should be written before any pending normal command
+     */
+    public synchronized void offer(byte command, byte action, byte[] data, int offset, int dataLength,
+                                   boolean urgent) {
+        Lane lane = urgent ? mUrgent : mNormal;
+        int slot = urgent ? acquireUrgentSlot(command, action) : acquireSlot(command, action);
+        if (slot < 0) {
+            return;
+        }
+
+        int frameOffset = lane.encodeHeader(slot, command, action, dataLength);
+        if (dataLength > 0) {
+            System.arraycopy(data, offset, lane.ring, frameOffset, dataLength);
+        }
+    }
+
+    /**
+     * Post a command carrying exactly two data bytes. Same as {@link #offer(byte, byte, byte[], boolean)} without
+     * the need to allocate a data array
+     *
+     * @param command
+     * @param action
+     * @param b0
+     * @param b1
+     * @param urgent  Whether the command should be written before any pending normal command
+     */
+    public synchronized void offer(byte command, byte action, byte b0, byte b1, boolean urgent) {
+        Lane lane = urgent ? mUrgent : mNormal;
+        int slot = urgent ? acquireUrgentSlot(command, action) : acquireSlot(command, action);
+        if (slot < 0) {
+            return;
+        }
+
+        int offset = lane.encodeHeader(slot, command, action, 2);
+        lane.ring[offset] = b0;
+        lane.ring[offset + 1] = b1;
+    }
+
+    /**
+     * Post a command at the head of the urgent lane, so that it's written before any other pending command. If the
+     * urgent lane is full, the command at its tail is dropped to make room
+     *
+     * @param command
+     * @param action
+     * @param data    May also be null if there's no data
+     */
+    public synchronized void offerFirst(byte command, byte action, byte[] data) {
+        int key = keyOf(command, action);
+        int index = mUrgent.indexOf(key);
+        if (index >= 0) {
+            mUrgent.removeAt(index);
+            mSuperseded++;
+        } else if (mUrgent.count == mUrgent.capacity) {
+            mUrgent.removeAt(mUrgent.count - 1);
+            mDropped++;
+        }
+
+        int slot = mUrgent.prepend(key, System.nanoTime());
+        int dataLength = (data != null) ? data.length : 0;
+        int offset = mUrgent.encodeHeader(slot, command, action, dataLength);
+        if (dataLength > 0) {
+            System.arraycopy(data, 0, mUrgent.ring, offset, dataLength);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Block until a command may be written, remove it and copy its encoded frame into <code>out</code>. <br/>
+     * Urgent commands are taken first. Normal commands are taken in order, once the flow-control window allows it.
+     * Call {@link #onWritten(long)} once the frame has been written
+     *
+     * @param out Must be able to hold {@link ADK#MAX_FRAME_SIZE} bytes
+     * @return The length of the frame
+     * @throws InterruptedException
+     */
+    public synchronized int take(byte[] out) throws InterruptedException {
+        boolean stalled = false;
+        boolean paced = false;
+        Lane lane;
+        while (true) {
+            if (mUrgent.count > 0) {
+                lane = mUrgent;
+                break;
+            }
+
+            if (mNormal.count > 0 && !mNormalHeld) {
+                long waitNanos = awaitPacing();
+                if (waitNanos > 0) {
+                    if (!paced) {
+                        paced = true;
+                        mPacedWaits++;
+                    }
+                } else {
+                    waitNanos = awaitCredit();
+                    if (waitNanos == 0) {
+                        lane = mNormal;
+                        break;
+                    }
+
+                    if (!stalled) {
+                        stalled = true;
+                        mStalls++;
+                    }
+                }
+
+                wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } else {
+                wait();
+            }
+        }
+
+        return remove(lane, out, 0);
+    }
+
+    /**
+     * Remove the next command if it may be written right now, without blocking. Meant for filling the rest of a
+     * transfer after {@link #take(byte[])}
+     *
+     * @param out       The transfer being filled
+     * @param offset    Where to copy the frame
+     * @param maxLength The room left in the transfer
+     * @return The length of the frame, or 0 if there's no command that may be written right now or if the next one
+     * doesn't fit
+     */
+    public synchronized int poll(byte[] out, int offset, int maxLength) {
+        if (mTaken == MAX_BATCH) {
+            return 0;
+        }
+
+        Lane lane;
+        if (mUrgent.count > 0) {
+            lane = mUrgent;
+        } else if (mNormal.count > 0 && !mNormalHeld && awaitPacing() == 0 && awaitCredit() == 0) {
+            lane = mNormal;
+        } else {
+            return 0;
+        }
+
+        if (lane.lengths[lane.head] > maxLength) {
+            return 0;
+        }
+
+        return remove(lane, out, offset);
+    }
+
+    /**
+     * Record the time from posting until writing of every frame taken since the last write.
+     * Must be called by the thread that took them
+     *
+     * @param now {@link System#nanoTime()} once the frames were written
+     */
+    public void onWritten(long now) {
+        for (int i = 0; i < mTaken; i++) {
+            mTakenFrom[i].latency.record(now - mTakenEnqueuedAt[i]);
+            mTakenFrom[i] = null;
+        }
+
+        mTaken = 0;
+    }
+
+    /**
+     * Return credits to the flow-control window
+     *
+     * @param credits The number of frames acknowledged, or given up on, by the accessory
+     */
+    public synchronized void onAck(int credits) {
+        credits = Math.min(credits, mInFlight);
+        if (credits <= 0) {
+            return;
+        }
+
+        mInFlightHead = (mInFlightHead + credits) % MAX_WINDOW;
+        mInFlight -= credits;
+        notifyAll();
+    }
+
+    /**
+     * Discard all pending commands. Discarded commands are counted as dropped
+     */
+    public synchronized void clear() {
+        mDropped += mNormal.count + mUrgent.count;
+        mNormal.clear();
+        mUrgent.clear();
+        mInFlight = 0;
+        notifyAll();
+    }
+
+    /**
+     * Count the commands taken since the last write as dropped, since they could not be delivered
+     */
+    public synchronized void markDropped() {
+        mDropped += mTaken;
+        for (int i = 0; i < mTaken; i++) {
+            mTakenFrom[i] = null;
+        }
+
+        mTaken = 0;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Enable or disable flow control
+     *
+     * @param window The maximum number of frames written and not acked yet, or 0 to disable flow control
+     * @param policy What to do with new commands while the window is full
+     */
+    public synchronized void setFlowControl(int window, WindowPolicy policy) {
+        if (window < 0 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("window must be between 0 and " + MAX_WINDOW);
+        }
+
+        mWindow = window;
+        mPolicy = policy;
+        mInFlight = 0;
+        notifyAll();
+    }
+
+    /**
+     * Pace normal commands
+     *
+     * @param intervalNanos The minimum time between writing normal commands, or 0 to write them as fast as possible
+     */
+    public synchronized void setPacing(long intervalNanos) {
+        mPacingNanos = Math.max(0, intervalNanos);
+        if (mPacingNanos == 0) {
+            mNextNormalAt = 0;
+        } else if (mNextNormalAt != 0) {
+            // a shorter interval applies right away
+            mNextNormalAt = Math.min(mNextNormalAt, System.nanoTime() + mPacingNanos);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Hold back normal commands, or release them. Held commands stay pending and keep being coalesced; urgent
+     * commands are never held
+     *
+     * @param held
+     */
+    public synchronized void setNormalHeld(boolean held) {
+        mNormalHeld = held;
+        notifyAll();
+    }
+
+    public synchronized long getPacing() {
+        return mPacingNanos;
+    }
+
+    public synchronized int size() {
+        return mNormal.count + mUrgent.count;
+    }
+
+    public LatencyHistogram getNormalLatency() {
+        return mNormal.latency;
+    }
+
+    public LatencyHistogram getUrgentLatency() {
+        return mUrgent.latency;
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    public synchronized long getStallCount() {
+        return mStalls;
+    }
+
+    public synchronized long getPacedWaitCount() {
+        return mPacedWaits;
+    }
+
+    public synchronized long getExpiredCreditCount() {
+        return mExpiredCredits;
+    }
+
+    public synchronized long getSupersededCount() {
+        return mSuperseded;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Find the slot holding the pending normal command with the same key, or claim a new one at the tail of the lane
+     *
+     * @param command
+     * @param action
+     * @return The slot to encode into, or -1 if the lane is full
+     */
+    private int acquireSlot(byte command, byte action) {
+        int key = keyOf(command, action);
+        while (true) {
+            int index = mNormal.indexOf(key);
+            if (index >= 0) {
+                mSuperseded++;
+                return mNormal.slotAt(index);
+            }
+
+            if (mPolicy != WindowPolicy.BLOCK || mNormal.count == 0 || !isWindowFull()) {
+                break;
+            }
+
+            // wait for room. The lane may change meanwhile, so look for the key again afterwards
+            try {
+                wait(ACK_TIMEOUT_NANOS / 1000000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mDropped++;
+                return -1;
+            }
+        }
+
+        if (mPolicy == WindowPolicy.DROP_OLDEST && mNormal.count > 0 && isWindowFull()) {
+            mNormal.removeAt(0);
+            mDropped++;
+        }
+
+        return append(mNormal, key);
+    }
+
+    /**
+     * Find the slot holding the pending urgent command with the same key, or claim a new one at the tail of the
+     * urgent lane. A pending normal command with the same key is discarded since it's older
+     *
+     * @param command
+     * @param action
+     * @return The slot to encode into, or -1 if the lane is full
+     */
+    private int acquireUrgentSlot(byte command, byte action) {
+        int key = keyOf(command, action);
+        int index = mNormal.indexOf(key);
+        if (index >= 0) {
+            mNormal.removeAt(index);
+            mSuperseded++;
+        }
+
+        index = mUrgent.indexOf(key);
+        if (index >= 0) {
+            mSuperseded++;
+            return mUrgent.slotAt(index);
+        }
+
+        return append(mUrgent, key);
+    }
+
+    /**
+     * Remove the frame at the head of <code>lane</code>, copy it into <code>out</code> and take a credit for it
+     *
+     * @param lane
+     * @param out
+     * @param offset
+     * @return The length of the frame
+     */
+    private int remove(Lane lane, byte[] out, int offset) {
+        int slot = lane.head;
+        int length = lane.lengths[slot];
+        System.arraycopy(lane.ring, slot * ADK.MAX_FRAME_SIZE, out, offset, length);
+        if (mTaken < MAX_BATCH) {
+            mTakenFrom[mTaken] = lane;
+            mTakenEnqueuedAt[mTaken] = lane.enqueuedAt[slot];
+            mTaken++;
+        }
+
+        lane.removeAt(0);
+        notifyAll(); // wakes up senders blocked by WindowPolicy.BLOCK
+
+        if (lane == mNormal && mPacingNanos > 0) {
+            mNextNormalAt = System.nanoTime() + mPacingNanos;
+        }
+
+        if (mWindow > 0) {
+            if (mInFlight == MAX_WINDOW) {
+                // only possible when urgent commands overshoot the window, give up on the oldest credit
+                mInFlightHead = (mInFlightHead + 1) % MAX_WINDOW;
+                mInFlight--;
+                mExpiredCredits++;
+            }
+
+            mInFlightSince[(mInFlightHead + mInFlight) % MAX_WINDOW] = System.nanoTime();
+            mInFlight++;
+        }
+        return length;
+    }
+
+    private int append(Lane lane, int key) {
+        if (lane.count == lane.capacity) {
+            mDropped++;
+            return -1;
+        }
+
+        int slot = lane.append(key, System.nanoTime());
+        notifyAll();
+        return slot;
+    }
+
+    /**
+     * Check whether the flow-control window allows writing a normal frame right now. Credits that waited too long
+     * for their ack are reclaimed on the way
+     *
+     * @return 0 if a frame may be written, otherwise the time to wait until the oldest credit expires
+     */
+    private long awaitCredit() {
+        if (mWindow == 0 || mInFlight < mWindow) {
+            return 0;
+        }
+
+        long age = System.nanoTime() - mInFlightSince[mInFlightHead];
+        if (age >= ACK_TIMEOUT_NANOS) {
+            mInFlightHead = (mInFlightHead + 1) % MAX_WINDOW;
+            mInFlight--;
+            mExpiredCredits++;
+            return 0;
+        }
+
+        return ACK_TIMEOUT_NANOS - age;
+    }
+
+    /**
+     * Check whether pacing allows writing a normal frame right now
+     *
+     * @return 0 if a frame may be written, otherwise the time to wait until it may
+     */
+    private long awaitPacing() {
+        if (mPacingNanos == 0 || mNextNormalAt == 0) {
+            return 0;
+        }
+
+        return Math.max(0, mNextNormalAt - System.nanoTime());
+    }
+
+    private boolean isWindowFull() {
+        return mWindow > 0 && mInFlight >= mWindow;
+    }
+
+    private static int keyOf(byte command, byte action) {
+        return ((command & 0xFF) << 8) | (action & 0xFF);
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * A ring of encoded frames, in the order they should be written. Guarded by the enclosing mailbox
+     */
+    private static class Lane {
+        final int capacity;
+        final byte[] ring;
+        final int[] keys;
+        final int[] lengths;
+        final long[] enqueuedAt;
+        final LatencyHistogram latency;
+        int head;
+        int count;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+            ring = new byte[capacity * ADK.MAX_FRAME_SIZE];
+            keys = new int[capacity];
+            lengths = new int[capacity];
+            enqueuedAt = new long[capacity];
+            latency = new LatencyHistogram();
+        }
+
+        int slotAt(int index) {
+            return (head + index) % capacity;
+        }
+
+        int indexOf(int key) {
+            for (int i = 0; i < count; i++) {
+                if (keys[slotAt(i)] == key) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        int append(int key, long now) {
+            int slot = slotAt(count);
+            keys[slot] = key;
+            enqueuedAt[slot] = now;
+            count++;
+            return slot;
+        }
+
+        /**
+         * Claim the slot in front of the head of the lane. The lane mustn't be full
+         *
+         * @param key
+         * @param now
+         * @return The slot
+         */
+        int prepend(int key, long now) {
+            head = (head + capacity - 1) % capacity;
+            keys[head] = key;
+            enqueuedAt[head] = now;
+            count++;
+            return head;
+        }
+
+        /**
+         * Remove the frame at <code>index</code>, moving the frames behind it one step forward
+         *
+         * @param index
+         */
+        void removeAt(int index) {
+            if (index == 0) {
+                head = (head + 1) % capacity;
+                count--;
+                return;
+            }
+
+            for (int i = index; i < count - 1; i++) {
+                int to = slotAt(i);
+                int from = slotAt(i + 1);
+                System.arraycopy(ring, from * ADK.MAX_FRAME_SIZE, ring, to * ADK.MAX_FRAME_SIZE, lengths[from]);
+                keys[to] = keys[from];
+                lengths[to] = lengths[from];
+                enqueuedAt[to] = enqueuedAt[from];
+            }
+            count--;
+        }
+
+        void clear() {
+            count = 0;
+        }
+
+        /**
+         * Write the frame header into the selected slot
+         *
+         * @param slot
+         * @param command
+         * @param action
+         * @param dataLength
+         * @return The offset in the ring at which the data should be written
+         */
+        int encodeHeader(int slot, byte command, byte action, int dataLength) {
+            int offset = slot * ADK.MAX_FRAME_SIZE;
+            ring[offset] = command;
+            ring[offset + 1] = action;
+            ring[offset + 2] = ADKManager.toUnsignedByte(dataLength);
+            lengths[slot] = ADK.HEADER_SIZE + dataLength;
+            return offset + ADK.HEADER_SIZE;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-cadence writer of the control state. <br/>
+ * Instead of writing commands whenever they happen to be sent, the latest value of every (command, action) is kept
+ * as state, and a dedicated high-priority thread posts the whole state to the {@link CommandMailbox} on every tick.
+ * The accessory thus gets a steady stream of commands, whatever the jitter of whoever sends them. <br/>
+ * Ticks are scheduled against absolute deadlines, so lateness doesn't accumulate. How late every tick wakes up is
+ * recorded as jitter; a tick that wakes up a whole period or more late counts the ticks it skipped as missed
+ * deadlines
+ *
+ * @author Amir Lazarovich
+ */
+class ControlLoop implements Runnable {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "ControlLoop";
+    static final int MAX_STATES = 8;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final CommandMailbox mMailbox;
+    private final long mPeriodNanos;
+    private Thread mThread;
+
+    // member-state: guarded by this
+    private final int[] mKeys;
+    private final byte[] mData;
+    private final int[] mLengths;
+    private int mCount;
+
+    // member-tick: a snapshot of the state, only touched by the loop thread
+    private final int[] mTickKeys;
+    private final byte[] mTickData;
+    private final int[] mTickLengths;
+
+    // member-statistics
+    private final LatencyHistogram mJitter;
+    private volatile long mTicks;
+    private volatile long mMissedDeadlines;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param mailbox Where the state is posted on every tick
+     * @param rate    The number of ticks per second
+     */
+    ControlLoop(CommandMailbox mailbox, int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+
+        mMailbox = mailbox;
+        mPeriodNanos = 1000000000L / rate;
+        mKeys = new int[MAX_STATES];
+        mData = new byte[MAX_STATES * ADK.MAX_DATA_LENGTH];
+        mLengths = new int[MAX_STATES];
+        mTickKeys = new int[MAX_STATES];
+        mTickData = new byte[MAX_STATES * ADK.MAX_DATA_LENGTH];
+        mTickLengths = new int[MAX_STATES];
+        mJitter = new LatencyHistogram();
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        mThread = new Thread(null, this, TAG);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Set the latest value of a command, written from the next tick on
+     *
+     * @param command
+     * @param action
+     * @param data    May also be null if there's no data
+     * @return False if the state has no room for another command
+     */
+    public synchronized boolean update(byte command, byte action, byte[] data) {
+        int length = (data != null) ? data.length : 0;
+        int index = acquire(command, action);
+        if (index < 0) {
+            return false;
+        }
+
+        if (length > 0) {
+            System.arraycopy(data, 0, mData, index * ADK.MAX_DATA_LENGTH, length);
+        }
+        mLengths[index] = length;
+        return true;
+    }
+
+    /**
+     * Set the latest value of a command carrying two data bytes, without allocating
+     *
+     * @param command
+     * @param action
+     * @param b0
+     * @param b1
+     * @return False if the state has no room for another command
+     */
+    public synchronized boolean update(byte command, byte action, byte b0, byte b1) {
+        int index = acquire(command, action);
+        if (index < 0) {
+            return false;
+        }
+
+        mData[index * ADK.MAX_DATA_LENGTH] = b0;
+        mData[index * ADK.MAX_DATA_LENGTH + 1] = b1;
+        mLengths[index] = 2;
+        return true;
+    }
+
+    /**
+     * Forget the state, e.g. when the connection is lost, so that stale commands aren't written to the next one
+     */
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public void run() {
+        long deadline = System.nanoTime() + mPeriodNanos;
+        while (!Thread.currentThread().isInterrupted()) {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+
+            long lateness = System.nanoTime() - deadline;
+            mJitter.record(lateness);
+            if (lateness >= mPeriodNanos) {
+                // skip the ticks that are already over instead of bursting to catch up
+                long missed = lateness / mPeriodNanos;
+                mMissedDeadlines += missed;
+                deadline += missed * mPeriodNanos;
+            }
+
+            tick();
+            mTicks++;
+            deadline += mPeriodNanos;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the time between ticks
+     *
+     * @return The time in nanoseconds
+     */
+    public long getPeriod() {
+        return mPeriodNanos;
+    }
+
+    /**
+     * Get how late ticks woke up, compared with their deadlines
+     *
+     * @return
+     */
+    public LatencyHistogram getJitter() {
+        return mJitter;
+    }
+
+    public long getTickCount() {
+        return mTicks;
+    }
+
+    public long getMissedDeadlineCount() {
+        return mMissedDeadlines;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Post the whole state to the mailbox. The state is copied first, so that senders never wait for the mailbox
+     */
+    private void tick() {
+        int count;
+        synchronized (this) {
+            count = mCount;
+            System.arraycopy(mKeys, 0, mTickKeys, 0, count);
+            System.arraycopy(mLengths, 0, mTickLengths, 0, count);
+            System.arraycopy(mData, 0, mTickData, 0, count * ADK.MAX_DATA_LENGTH);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int key = mTickKeys[i];
+            mMailbox.offer((byte) (key >> 8), (byte) key, mTickData, i * ADK.MAX_DATA_LENGTH, mTickLengths[i], false);
+        }
+    }
+
+    /**
+     * Find the state of (command, action), or claim a new one
+     *
+     * @param command
+     * @param action
+     * @return The index of the state, or -1 if there's no room
+     */
+    private int acquire(byte command, byte action) {
+        int key = ((command & 0xFF) << 8) | (action & 0xFF);
+        for (int i = 0; i < mCount; i++) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+
+        if (mCount == MAX_STATES) {
+            return -1;
+        }
+
+        mKeys[mCount] = key;
+        return mCount++;
+    }
+}
@@ -0,0 +1,252 @@
+package com.labs.adk;
+
+import com.labs.adk.journal.FrameJournal;
+import com.labs.adk.link.AccessoryLink;
+import com.labs.commons.ADK;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental decoder for frames sent by the ADK device. <br/>
+ * Frames use the same layout as commands: [command - 1 byte][action - 1 byte][data length - 1 byte][data - X bytes].
+ * Transfers may hold a fragment of a frame or several frames; whatever is incomplete is kept and decoding resumes with
+ * the next transfer. A byte without the high bit set where a frame should start is a legacy single-byte ack and is
+ * delivered to the {@link ADK#COMMAND_ACK} handler as a frame without data whose action is the byte's value. <br/>
+ * Transfers are read straight into a reused buffer and frames are handed to their handlers without being copied.
+ * A decoder is meant to be used by a single reading thread
+ *
+ * @author Amir Lazarovich
+ */
+public class FrameDecoder {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    public static final int DEFAULT_BUFFER_SIZE = 16384;
+    // the USB bulk packet size: a read asking for less may lose the rest of the packet
+    static final int TRANSFER_SIZE = 512;
+    // room for the longest incomplete frame and a full transfer after it
+    private static final int MIN_BUFFER_SIZE = ADK.HEADER_SIZE + 255 + TRANSFER_SIZE;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final byte[] mBuffer;
+    private final FrameHandler[] mHandlers;
+    private FrameJournal mJournal;
+    private int mStart;
+    private int mEnd;
+
+    // member-statistics
+    private long mFrames;
+    private long mUnhandledFrames;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public FrameDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize Must be able to hold at least one frame of maximum length followed by a full transfer
+     */
+    public FrameDecoder(int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("bufferSize must be at least " + MIN_BUFFER_SIZE);
+        }
+
+        mBuffer = new byte[bufferSize];
+        mHandlers = new FrameHandler[256];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Register the handler that receives all frames of the selected command. Pass null to remove it
+     *
+     * @param command
+     * @param handler
+     */
+    public void setHandler(byte command, FrameHandler handler) {
+        mHandlers[command & 0xFF] = handler;
+    }
+
+    /**
+     * Record every decoded frame, as {@link FrameJournal#DIRECTION_IN}. Pass null to stop recording
+     *
+     * @param journal
+     */
+    public void setJournal(FrameJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Perform a single read from <code>in</code> into the decoder's buffer and dispatch every frame completed by it
+     *
+     * @param in
+     * @return The number of bytes read, or -1 if the end of the stream has been reached
+     * @throws IOException
+     */
+    public int readFrom(InputStream in) throws IOException {
+        makeRoom();
+        int read = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (read > 0) {
+            mEnd += read;
+            decode();
+        }
+
+        return read;
+    }
+
+    /**
+     * Perform a single read from <code>link</code> into the decoder's buffer and dispatch every frame completed by it
+     *
+     * @param link
+     * @return The number of bytes read, or -1 if the link was closed
+     * @throws IOException
+     */
+    public int readFrom(AccessoryLink link) throws IOException {
+        makeRoom();
+        int read = link.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (read > 0) {
+            mEnd += read;
+            decode();
+        }
+
+        return read;
+    }
+
+    /**
+     * Decode a transfer that was already read by someone else
+     *
+     * @param transfer
+     * @param offset
+     * @param length
+     */
+    public void feed(byte[] transfer, int offset, int length) {
+        while (length > 0) {
+            makeRoom();
+            int count = Math.min(length, mBuffer.length - mEnd);
+            System.arraycopy(transfer, offset, mBuffer, mEnd, count);
+            mEnd += count;
+            offset += count;
+            length -= count;
+            decode();
+        }
+    }
+
+    /**
+     * Drop any partially received frame
+     */
+    public void reset() {
+        mStart = 0;
+        mEnd = 0;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the number of complete frames decoded so far, including legacy acks
+     *
+     * @return
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Get the number of frames that were decoded but had no handler registered for their command
+     *
+     * @return
+     */
+    public long getUnhandledFrameCount() {
+        return mUnhandledFrames;
+    }
+
+    /**
+     * Get the number of bytes held for a frame that isn't complete yet
+     *
+     * @return
+     */
+    public int getPendingBytes() {
+        return mEnd - mStart;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Dispatch every complete frame in the buffer
+     */
+    private void decode() {
+        byte[] buffer = mBuffer;
+        while (mStart < mEnd) {
+            byte command = buffer[mStart];
+            if (!ADK.isAccessoryCommand(command)) {
+                // legacy single-byte ack
+                record(mStart, 1);
+                mStart++;
+                dispatch(ADK.COMMAND_ACK, command, mStart, 0);
+                continue;
+            }
+
+            if (mEnd - mStart < ADK.HEADER_SIZE) {
+                break;
+            }
+
+            int dataLength = buffer[mStart + 2] & 0xFF;
+            int frameLength = ADK.HEADER_SIZE + dataLength;
+            if (mEnd - mStart < frameLength) {
+                break;
+            }
+
+            byte action = buffer[mStart + 1];
+            int dataOffset = mStart + ADK.HEADER_SIZE;
+            record(mStart, frameLength);
+            mStart += frameLength;
+            dispatch(command, action, dataOffset, dataLength);
+        }
+
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+    private void dispatch(byte command, byte action, int offset, int length) {
+        mFrames++;
+        FrameHandler handler = mHandlers[command & 0xFF];
+        if (handler != null) {
+            handler.onFrame(action, mBuffer, offset, length);
+        } else {
+            mUnhandledFrames++;
+        }
+    }
+
+    private void record(int offset, int length) {
+        FrameJournal journal = mJournal;
+        if (journal != null) {
+            journal.append(FrameJournal.DIRECTION_IN, mBuffer, offset, length);
+        }
+    }
+
+    /**
+     * Move a partially received frame to the beginning of the buffer once the buffer's tail can't hold a full
+     * transfer, so reads always ask for at least {@link #TRANSFER_SIZE} bytes
+     */
+    private void makeRoom() {
+        if (mStart > 0 && mBuffer.length - mEnd < TRANSFER_SIZE) {
+            int pending = mEnd - mStart;
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+            mStart = 0;
+            mEnd = pending;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.labs.adk;
+
+/**
+ * Receives frames decoded by {@link FrameDecoder} for the command it was registered for
+ *
+ * @author Amir Lazarovich
+ */
+public interface FrameHandler {
+    /**
+     * Callback invoked for every complete frame. The data is not copied: <code>buffer</code> is the decoder's own buffer
+     * and is only valid for the duration of this call
+     *
+     * @param action
+     * @param buffer
+     * @param offset Offset of the frame's data in <code>buffer</code>
+     * @param length Length of the frame's data
+     */
+    void onFrame(byte action, byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,50 @@
+package com.labs.adk;
+
+/**
+ * A single capability exchange with the accessory: the writer sends the hello, and the exchange is completed once
+ * by whichever comes first: the reading thread receiving the answer, the timeout or the connection closing
+ *
+ * @author Amir Lazarovich
+ */
+class Handshake {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private Capabilities mCapabilities;
+    private boolean mDone;
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Complete the handshake. Only the first call counts
+     *
+     * @param capabilities What the accessory announced, or null if the handshake was abandoned
+     * @return Whether this call completed the handshake
+     */
+    public synchronized boolean complete(Capabilities capabilities) {
+        if (mDone) {
+            return false;
+        }
+
+        mDone = true;
+        mCapabilities = capabilities;
+        return true;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * @return What the handshake was completed with, or null while it's still going on or if it was abandoned
+     */
+    public synchronized Capabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+}
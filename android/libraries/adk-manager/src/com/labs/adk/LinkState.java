@@ -0,0 +1,84 @@
+package com.labs.adk;
+
+import com.labs.adk.link.AccessoryLink;
+
+/**
+ * Immutable snapshot of the connection to the ADK device. <br/>
+ * {@link ADKManager} publishes a new snapshot whenever the connection changes, so the threads writing and reading
+ * frames look at a single consistent state without locking. Every connection gets a new generation; a snapshot
+ * from an older generation belongs to a connection that is gone
+ *
+ * @author Amir Lazarovich
+ */
+final class LinkState {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    final long generation;
+    final AccessoryLink link;
+    final Handshake handshake;
+    final Capabilities capabilities;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param generation
+     * @param link         Null while disconnected
+     * @param handshake    The handshake of <code>link</code>, null while disconnected
+     * @param capabilities Null until the handshake is over
+     */
+    LinkState(long generation, AccessoryLink link, Handshake handshake, Capabilities capabilities) {
+        this.generation = generation;
+        this.link = link;
+        this.handshake = handshake;
+        this.capabilities = capabilities;
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the state of a new connection over <code>link</code>, waiting for its handshake
+     *
+     * @param link
+     * @return
+     */
+    LinkState connect(AccessoryLink link) {
+        return new LinkState(generation + 1, link, new Handshake(), null);
+    }
+
+    /**
+     * Get the state once the handshake of this connection is over
+     *
+     * @param capabilities
+     * @return
+     */
+    LinkState negotiated(Capabilities capabilities) {
+        return new LinkState(generation, link, handshake, capabilities);
+    }
+
+    /**
+     * Get the state once this connection is closed
+     *
+     * @return
+     */
+    LinkState disconnect() {
+        return new LinkState(generation + 1, null, null, null);
+    }
+
+    boolean isConnected() {
+        return link != null;
+    }
+
+    /**
+     * Check whether frames other than the hello may be written, i.e. the handshake of this connection is over
+     *
+     * @return
+     */
+    boolean isReady() {
+        return link != null && capabilities != null;
+    }
+}
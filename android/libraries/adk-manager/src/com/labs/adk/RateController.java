@@ -0,0 +1,177 @@
+package com.labs.adk;
+
+/**
+ * AIMD controller of the rate normal commands are written to the ADK device at. <br/>
+ * Every ack is a sample of the link's state: its round-trip time, compared with the lowest round-trip time seen
+ * lately, and the number of commands still waiting to be written. While both stay low the rate grows by
+ * {@link #INCREASE_STEP} per ack; once either builds up, or acks are lost, the rate is cut by
+ * {@link #DECREASE_FACTOR}, at most once per round trip so that a single burst isn't punished twice. <br/>
+ * Writing slower doesn't make the car lag behind: pending commands are coalesced, so whatever is written is always
+ * the latest value
+ *
+ * @author Amir Lazarovich
+ */
+public class RateController {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    public static final double INCREASE_STEP = 1; // in Hz per ack
+    public static final double DECREASE_FACTOR = 0.5;
+    private static final double RTT_TOLERANCE = 2; // times the lowest round-trip time
+    private static final long RTT_SLACK = 2 * 1000000L; // in nanoseconds
+    private static final long MIN_RTT_WINDOW = 10 * 1000000000L; // in nanoseconds
+    private static final int QUEUE_THRESHOLD = 2;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final double mMinRate;
+    private final double mMaxRate;
+    private double mRate;
+    private long mMinRtt;
+    private long mMinRttAt;
+    private long mNextDecreaseAt;
+    private boolean mDecreased; // since the last reset, until then mNextDecreaseAt is meaningless
+
+    // member-statistics
+    private long mIncreases;
+    private long mDecreases;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param minRate The rate never drops below this value, in Hz
+     * @param maxRate The rate never grows beyond this value, in Hz. It's also where the rate starts
+     */
+    public RateController(double minRate, double maxRate) {
+        if (minRate <= 0 || maxRate < minRate) {
+            throw new IllegalArgumentException("Rates must be positive and minRate must not exceed maxRate");
+        }
+
+        mMinRate = minRate;
+        mMaxRate = maxRate;
+        mRate = maxRate;
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Adjust the rate to an ack
+     *
+     * @param rtt        The round-trip time of the acked frame in nanoseconds, or -1 if unknown (legacy acks)
+     * @param queueDepth The number of commands waiting to be written
+     * @param now        {@link System#nanoTime()}
+     * @return The new rate, in Hz
+     */
+    public synchronized double onAck(long rtt, int queueDepth, long now) {
+        boolean congested = queueDepth > QUEUE_THRESHOLD;
+        if (rtt >= 0) {
+            if (mMinRtt == 0 || rtt <= mMinRtt || now - mMinRttAt > MIN_RTT_WINDOW) {
+                mMinRtt = Math.max(1, rtt);
+                mMinRttAt = now;
+            }
+
+            congested |= rtt > mMinRtt * RTT_TOLERANCE + RTT_SLACK;
+        }
+
+        if (congested) {
+            decrease(Math.max(0, rtt), now);
+        } else if (mRate < mMaxRate) {
+            mRate = Math.min(mMaxRate, mRate + INCREASE_STEP);
+            mIncreases++;
+        }
+
+        return mRate;
+    }
+
+    /**
+     * Cut the rate because frames were never acked
+     *
+     * @param now {@link System#nanoTime()}
+     * @return The new rate, in Hz
+     */
+    public synchronized double onLoss(long now) {
+        decrease(mMinRtt, now);
+        return mRate;
+    }
+
+    /**
+     * Start over from the maximum rate, e.g. on a new connection
+     */
+    public synchronized void reset() {
+        mRate = mMaxRate;
+        mMinRtt = 0;
+        mMinRttAt = 0;
+        mNextDecreaseAt = 0;
+        mDecreased = false;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the current rate
+     *
+     * @return The rate in Hz
+     */
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    /**
+     * Get the time to wait between normal commands at the current rate
+     *
+     * @return The time in nanoseconds
+     */
+    public synchronized long getInterval() {
+        return (long) (1000000000L / mRate);
+    }
+
+    /**
+     * Get the lowest round-trip time seen lately, the baseline for detecting congestion
+     *
+     * @return The time in nanoseconds, or 0 if none was seen yet
+     */
+    public synchronized long getMinRtt() {
+        return mMinRtt;
+    }
+
+    public synchronized long getIncreaseCount() {
+        return mIncreases;
+    }
+
+    public synchronized long getDecreaseCount() {
+        return mDecreases;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Cut the rate, unless it was already cut during the last round trip
+     *
+     * @param rtt The round-trip time to wait before cutting again, in nanoseconds
+     * @param now
+     */
+    private void decrease(long rtt, long now) {
+        // nanoTime may be negative or wrap around, only the difference between two readings is meaningful
+        if (mDecreased && now - mNextDecreaseAt < 0) {
+            return;
+        }
+
+        double rate = Math.max(mMinRate, mRate * DECREASE_FACTOR);
+        if (rate < mRate) {
+            mRate = rate;
+            mDecreases++;
+        }
+
+        mNextDecreaseAt = now + Math.max(rtt, (long) (1000000000L / mRate));
+        mDecreased = true;
+    }
+}
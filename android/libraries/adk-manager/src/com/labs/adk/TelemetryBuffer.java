@@ -0,0 +1,172 @@
+package com.labs.adk;
+
+import com.labs.commons.ADK;
+
+/**
+ * Fixed-size ring of timestamped telemetry samples sent by the accessory. <br/>
+ * Decodes {@link ADK#COMMAND_TELEMETRY} frames straight into primitive arrays, so receiving a sample doesn't
+ * allocate. Memory stays bounded however fast samples arrive: once the ring is full the oldest sample is overwritten
+ * and counted as overwritten
+ *
+ * @author Amir Lazarovich
+ */
+public class TelemetryBuffer implements FrameHandler {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    public static final int DEFAULT_CAPACITY = 256;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final long[] mTimes;
+    private final int[] mDistances;
+    private final int[] mSpeeds;
+    private final boolean[] mCollisions;
+    private int mHead;
+    private int mCount;
+
+    // member-statistics
+    private long mSamples;
+    private long mOverwritten;
+    private long mMalformed;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public TelemetryBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TelemetryBuffer(int capacity) {
+        mTimes = new long[capacity];
+        mDistances = new int[capacity];
+        mSpeeds = new int[capacity];
+        mCollisions = new boolean[capacity];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Store a sample
+     *
+     * @param time      {@link System#currentTimeMillis()} at the time the sample was received
+     * @param distance  The distance from the nearest object in front of the car, in mm
+     * @param speed     The change in distance, in cm per second
+     * @param collision Whether the car was stopped to avoid a collision
+     */
+    public synchronized void add(long time, int distance, int speed, boolean collision) {
+        int slot;
+        if (mCount == mTimes.length) {
+            slot = mHead;
+            mHead = (mHead + 1) % mTimes.length;
+            mOverwritten++;
+        } else {
+            slot = (mHead + mCount) % mTimes.length;
+            mCount++;
+        }
+
+        mTimes[slot] = time;
+        mDistances[slot] = distance;
+        mSpeeds[slot] = speed;
+        mCollisions[slot] = collision;
+        mSamples++;
+    }
+
+    /**
+     * Move the pending samples, oldest first, into the given arrays. Samples that don't fit stay pending
+     *
+     * @param times
+     * @param distances
+     * @param speeds
+     * @param collisions
+     * @return The number of samples moved
+     */
+    public synchronized int drain(long[] times, int[] distances, int[] speeds, boolean[] collisions) {
+        int count = Math.min(mCount, times.length);
+        for (int i = 0; i < count; i++) {
+            int slot = (mHead + i) % mTimes.length;
+            times[i] = mTimes[slot];
+            distances[i] = mDistances[slot];
+            speeds[i] = mSpeeds[slot];
+            collisions[i] = mCollisions[slot];
+        }
+
+        mHead = (mHead + count) % mTimes.length;
+        mCount -= count;
+        return count;
+    }
+
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    /**
+     * Decode a {@link ADK#COMMAND_TELEMETRY} frame:
+     * [distance in mm - 2 bytes][speed in cm/s, signed - 2 bytes][collision - 1 byte]
+     */
+    @Override
+    public void onFrame(byte action, byte[] buffer, int offset, int length) {
+        if (action != ADK.ACTION_DISTANCE || length < ADK.TELEMETRY_DISTANCE_LENGTH) {
+            synchronized (this) {
+                mMalformed++;
+            }
+            return;
+        }
+
+        int distance = ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+        int speed = (short) (((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF));
+        add(System.currentTimeMillis(), distance, speed, buffer[offset + 4] != 0);
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    /**
+     * Get the number of samples waiting to be drained
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Get the number of samples received so far
+     *
+     * @return
+     */
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * Get the number of samples overwritten before they were drained
+     *
+     * @return
+     */
+    public synchronized long getOverwrittenCount() {
+        return mOverwritten;
+    }
+
+    /**
+     * Get the number of telemetry frames that couldn't be decoded
+     *
+     * @return
+     */
+    public synchronized long getMalformedCount() {
+        return mMalformed;
+    }
+}
@@ -0,0 +1,26 @@
+package com.labs.adk;
+
+/**
+ * What {@link ADKManager} does with new commands while its flow-control window is full,
+ * i.e. while the maximum number of frames are written but not acked yet
+ *
+ * @author Amir Lazarovich
+ */
+public enum WindowPolicy {
+    /**
+     * Keep queueing. A newer command replaces a pending one with the same (command, action),
+     * so only the latest value of every command is written once credits return
+     */
+    COALESCE,
+
+    /**
+     * Block the sending thread until the window has room again
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest pending command whenever a command with a different (command, action) arrives,
+     * so at most one command waits for credits
+     */
+    DROP_OLDEST
+}
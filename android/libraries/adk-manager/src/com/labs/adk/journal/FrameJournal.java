@@ -0,0 +1,414 @@
+package com.labs.adk.journal;
+
+import com.labs.commons.ADK;
+import com.labs.commons.SLog;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Append-only recording of every frame sent to and received from the ADK device, kept in memory-mapped segment
+ * files. <br/>
+ * Appending doesn't block or touch the file system: writers reserve room in the current segment with a single atomic
+ * add and copy the frame into the mapped memory. Nothing is allocated either, except when a full segment is handed
+ * over to the background thread. The next segment is created and mapped ahead of time
+ * on a background thread, which also flushes full segments and deletes the oldest ones beyond the retention limit.
+ * If the next segment isn't ready by the time the current one is full, frames are dropped and counted rather than
+ * waited for. <br/>
+ * Segment layout: [magic - 4 bytes][version - 4 bytes][wall-clock time in ms - 8 bytes][nanoTime - 8 bytes]
+ * followed by records: [nanoTime - 8 bytes][frame length - 2 bytes][direction - 1 byte][frame - X bytes]. The direction
+ * is written last, so a zero direction marks the end of the written part of a segment. <br/>
+ * Read journals with {@link JournalReader}
+ *
+ * @author Amir Lazarovich
+ */
+public class FrameJournal {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "FrameJournal";
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    // journal-format
+    static final int MAGIC = 0x41444b4a; // "ADKJ"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 11;
+    static final int MAX_RECORD_LENGTH = ADK.HEADER_SIZE + 255;
+    static final String SEGMENT_PREFIX = "adk-";
+    static final String SEGMENT_SUFFIX = ".journal";
+
+    // journal-directions
+    public static final byte DIRECTION_OUT = 1;
+    public static final byte DIRECTION_IN = 2;
+    // set on the direction of a frame that was written in the same transfer as the frame before it
+    public static final byte FLAG_SAME_TRANSFER = 0x40;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final AtomicReference<Segment> mCurrent;
+    private final AtomicReference<Segment> mNext;
+    private final ExecutorService mExecutor;
+    private int mNextIndex; // only touched by the executor once constructed
+
+    // member-statistics
+    private final AtomicLong mRecords;
+    private final AtomicLong mDropped;
+    private final AtomicInteger mSegments;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public FrameJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Start a journal in <code>directory</code>. Segments already there are kept and numbered before the new ones
+     *
+     * @param directory
+     * @param segmentSize The size of every segment file, in bytes
+     * @param maxSegments The number of segment files to keep, older ones are deleted
+     * @throws IOException If the directory or the first segment couldn't be created
+     */
+    public FrameJournal(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("segmentSize is too small to hold a frame");
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = Math.max(1, maxSegments);
+        mRecords = new AtomicLong();
+        mDropped = new AtomicLong();
+        mSegments = new AtomicInteger();
+
+        File[] existing = listSegments(directory);
+        mNextIndex = (existing.length > 0) ? parseIndex(existing[existing.length - 1]) + 1 : 0;
+        mCurrent = new AtomicReference<Segment>(createSegment());
+        mNext = new AtomicReference<Segment>();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(mPrepareTask);
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Record a single frame
+     *
+     * @param direction {@link #DIRECTION_OUT} or {@link #DIRECTION_IN}, optionally with {@link #FLAG_SAME_TRANSFER}
+     * @param buffer
+     * @param offset
+     * @param length    Up to a frame of maximum length, {@link ADK#HEADER_SIZE} + 255 bytes
+     * @return False if the frame was dropped
+     */
+    public boolean append(byte direction, byte[] buffer, int offset, int length) {
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("length must be at most " + MAX_RECORD_LENGTH);
+        }
+
+        long time = System.nanoTime();
+        int size = RECORD_HEADER_SIZE + length;
+        while (true) {
+            Segment current = mCurrent.get();
+            if (current == null) {
+                // closed
+                mDropped.incrementAndGet();
+                return false;
+            }
+
+            int position = current.reserve(size);
+            if (position >= 0) {
+                current.write(position, time, direction, buffer, offset, length);
+                mRecords.incrementAndGet();
+                return true;
+            }
+
+            // the current segment is full, switch to the prepared one if it's there
+            Segment next = mNext.getAndSet(null);
+            if (next == null) {
+                if (mCurrent.get() == current) {
+                    mDropped.incrementAndGet();
+                    return false;
+                }
+
+                // someone else switched already
+                continue;
+            }
+
+            if (mCurrent.compareAndSet(current, next)) {
+                retire(current);
+            } else {
+                mNext.set(next);
+            }
+        }
+    }
+
+    /**
+     * Record every frame in a transfer written to the ADK device, marking all but the first with
+     * {@link #FLAG_SAME_TRANSFER}
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     */
+    public void appendTransfer(byte[] buffer, int offset, int length) {
+        byte direction = DIRECTION_OUT;
+        int end = offset + length;
+        while (offset + ADK.HEADER_SIZE <= end) {
+            int frameLength = Math.min(ADK.HEADER_SIZE + (buffer[offset + 2] & 0xFF), end - offset);
+            append(direction, buffer, offset, frameLength);
+            direction = DIRECTION_OUT | FLAG_SAME_TRANSFER;
+            offset += frameLength;
+        }
+    }
+
+    /**
+     * Flush what was recorded and stop recording. Frames appended afterwards are dropped
+     */
+    public void close() {
+        final Segment current = mCurrent.getAndSet(null);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (current != null) {
+                    current.close();
+                }
+
+                // the prepared segment was never written to
+                Segment next = mNext.getAndSet(null);
+                if (next != null) {
+                    next.close();
+                    if (!next.mFile.delete()) {
+                        SLog.w(TAG, "Couldn't delete unused segment %s", next.mFile);
+                    }
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Get the number of frames recorded so far
+     *
+     * @return
+     */
+    public long getRecordCount() {
+        return mRecords.get();
+    }
+
+    /**
+     * Get the number of frames dropped because no segment had room for them
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Get the number of segments created so far
+     *
+     * @return
+     */
+    public int getSegmentCount() {
+        return mSegments.get();
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Flush a full segment and prepare the one after the segment that replaced it
+     *
+     * @param segment
+     */
+    private void retire(final Segment segment) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                segment.close();
+            }
+        });
+        mExecutor.execute(mPrepareTask);
+    }
+
+    private Segment createSegment() throws IOException {
+        File file = new File(mDirectory, String.format("%s%06d%s", SEGMENT_PREFIX, mNextIndex++, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, mSegmentSize);
+        mSegments.incrementAndGet();
+        return segment;
+    }
+
+    /**
+     * Delete the oldest segments, keeping the prepared one and those before it up to the retention limit
+     */
+    private void deleteOldSegments() {
+        File[] segments = listSegments(mDirectory);
+        for (int i = 0; i < segments.length - mMaxSegments - 1; i++) {
+            if (!segments[i].delete()) {
+                SLog.w(TAG, "Couldn't delete old segment %s", segments[i]);
+            }
+        }
+    }
+
+    /**
+     * List the segment files in <code>directory</code>, oldest first
+     *
+     * @param directory
+     * @return
+     */
+    static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        if (segments == null) {
+            return new File[0];
+        }
+
+        // the index is zero-padded, so names sort in the order segments were created
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static int parseIndex(File segment) {
+        String name = segment.getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Prepares the next segment on the executor
+     */
+    private final Runnable mPrepareTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Segment next = createSegment();
+                if (!mNext.compareAndSet(null, next)) {
+                    next.close();
+                }
+
+                deleteOldSegments();
+            } catch (IOException e) {
+                SLog.e(TAG, "Couldn't prepare the next segment", e);
+            }
+        }
+    };
+
+    /**
+     * A single mapped segment file
+     */
+    private static class Segment {
+        private final File mFile;
+        private final RandomAccessFile mRandomAccessFile;
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+        private final AtomicInteger mPosition;
+
+        Segment(File file, int size) throws IOException {
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "rw");
+            mRandomAccessFile.setLength(size);
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mCapacity = size;
+
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putLong(8, System.currentTimeMillis());
+            mBuffer.putLong(16, System.nanoTime());
+            mPosition = new AtomicInteger(SEGMENT_HEADER_SIZE);
+        }
+
+        /**
+         * Reserve room for a record
+         *
+         * @param size
+         * @return Where the record starts, or -1 if the segment is full
+         */
+        int reserve(int size) {
+            if (mPosition.get() >= mCapacity) {
+                return -1;
+            }
+
+            int position = mPosition.getAndAdd(size);
+            return (position + size <= mCapacity) ? position : -1;
+        }
+
+        /**
+         * Write a record into reserved room. Records are written with absolute puts, so writers of different records
+         * don't interfere
+         */
+        void write(int position, long time, byte direction, byte[] buffer, int offset, int length) {
+            MappedByteBuffer mapped = mBuffer;
+            mapped.putLong(position, time);
+            mapped.putShort(position + 8, (short) length);
+            int dataPosition = position + RECORD_HEADER_SIZE;
+            for (int i = 0; i < length; i++) {
+                mapped.put(dataPosition + i, buffer[offset + i]);
+            }
+
+            mapped.put(position + 10, direction);
+        }
+
+        void close() {
+            try {
+                mBuffer.force();
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                SLog.e(TAG, "Couldn't close segment " + mFile, e);
+            }
+        }
+    }
+}
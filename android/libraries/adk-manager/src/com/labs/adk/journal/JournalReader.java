@@ -0,0 +1,245 @@
+package com.labs.adk.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads back the frames recorded by a {@link FrameJournal}, oldest first, across all of its segments. <br/>
+ * Iterate with {@link #next()}; the current frame is kept in a reused buffer, so copy it if it's needed past the next
+ * call. Meant for journals that are no longer written to. <br/>
+ * A directory may hold segments of several runs, recorded by different processes or even across reboots, whose
+ * {@link System#nanoTime()} values don't line up. Frame times are therefore converted to the wall clock with the
+ * times stored in the header of the first segment of their run, and every run is numbered, see {@link #getRun()}.
+ * A segment starts a new run if it was created after the last frame read so far, or if its header doesn't agree with
+ * the current run's clock
+ *
+ * @author Amir Lazarovich
+ */
+public class JournalReader {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    // how far a segment's wall-clock time may be from the one its nanoTime gives on the run's clock
+    private static final long CLOCK_TOLERANCE = TimeUnit.SECONDS.toNanos(1);
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final File[] mSegments;
+    private int mNextSegment;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private long mSegmentStartTime;
+
+    // member-run: the clock of the run the current segment belongs to
+    private int mRun = -1;
+    private long mRunWallTime; // in nanoseconds since the epoch
+    private long mRunNanoTime;
+    private long mLastNanoTime;
+    private boolean mRunHasFrames;
+
+    // member-record
+    private final byte[] mFrame;
+    private long mTime;
+    private byte mDirection;
+    private int mLength;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param directory The directory a {@link FrameJournal} was recording to
+     */
+    public JournalReader(File directory) {
+        mSegments = FrameJournal.listSegments(directory);
+        mFrame = new byte[FrameJournal.MAX_RECORD_LENGTH];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Move to the next frame
+     *
+     * @return False once there are no more frames
+     * @throws IOException If a segment couldn't be read or isn't a journal segment
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (mBuffer == null && !openNextSegment()) {
+                return false;
+            }
+
+            MappedByteBuffer buffer = mBuffer;
+            int position = buffer.position();
+            if (position + FrameJournal.RECORD_HEADER_SIZE <= buffer.limit()) {
+                byte direction = buffer.get(position + 10);
+                int length = buffer.getShort(position + 8) & 0xFFFF;
+                if (direction != 0 && length <= mFrame.length
+                        && position + FrameJournal.RECORD_HEADER_SIZE + length <= buffer.limit()) {
+                    mTime = buffer.getLong(position);
+                    mLastNanoTime = mTime;
+                    mRunHasFrames = true;
+                    mDirection = direction;
+                    mLength = length;
+                    buffer.position(position + FrameJournal.RECORD_HEADER_SIZE);
+                    buffer.get(mFrame, 0, length);
+                    return true;
+                }
+            }
+
+            // the end of what was written to this segment
+            closeSegment();
+        }
+    }
+
+    public void close() throws IOException {
+        closeSegment();
+        mNextSegment = mSegments.length;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the time the current frame was recorded at, on the wall clock of its run. Times of frames of the same run
+     * are exactly as far apart as they were recorded
+     *
+     * @return The time in nanoseconds since the epoch
+     */
+    public long getTime() {
+        return mRunWallTime + (mTime - mRunNanoTime);
+    }
+
+    /**
+     * Get the time the current frame was recorded at, as recorded
+     *
+     * @return {@link System#nanoTime()} on the recording device, only comparable within the same run
+     */
+    public long getRecordedTime() {
+        return mTime;
+    }
+
+    /**
+     * Get the run the current frame was recorded in. Runs are numbered from 0 in the order they were read
+     *
+     * @return
+     */
+    public int getRun() {
+        return mRun;
+    }
+
+    /**
+     * Get the direction of the current frame, without {@link FrameJournal#FLAG_SAME_TRANSFER}
+     *
+     * @return {@link FrameJournal#DIRECTION_OUT} or {@link FrameJournal#DIRECTION_IN}
+     */
+    public byte getDirection() {
+        return (byte) (mDirection & ~FrameJournal.FLAG_SAME_TRANSFER);
+    }
+
+    /**
+     * Check whether the current frame was written in the same transfer as the frame before it
+     *
+     * @return
+     */
+    public boolean isSameTransfer() {
+        return (mDirection & FrameJournal.FLAG_SAME_TRANSFER) != 0;
+    }
+
+    /**
+     * Get the current frame. Only the first {@link #getLength()} bytes belong to it
+     *
+     * @return
+     */
+    public byte[] getFrame() {
+        return mFrame;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Get the wall-clock time the segment holding the current frame was started at
+     *
+     * @return The time in milliseconds
+     */
+    public long getSegmentStartTime() {
+        return mSegmentStartTime;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private boolean openNextSegment() throws IOException {
+        if (mNextSegment >= mSegments.length) {
+            return false;
+        }
+
+        File segment = mSegments[mNextSegment++];
+        mFile = new RandomAccessFile(segment, "r");
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mFile.length());
+        if (mBuffer.limit() < FrameJournal.SEGMENT_HEADER_SIZE || mBuffer.getInt(0) != FrameJournal.MAGIC) {
+            closeSegment();
+            throw new IOException(segment + " isn't a journal segment");
+        }
+
+        if (mBuffer.getInt(4) != FrameJournal.VERSION) {
+            closeSegment();
+            throw new IOException(segment + " has an unsupported version: " + mBuffer.getInt(4));
+        }
+
+        mSegmentStartTime = mBuffer.getLong(8);
+        long wallTime = TimeUnit.MILLISECONDS.toNanos(mSegmentStartTime);
+        long nanoTime = mBuffer.getLong(16);
+        if (isNewRun(wallTime, nanoTime)) {
+            mRun++;
+            mRunWallTime = wallTime;
+            mRunNanoTime = nanoTime;
+            mRunHasFrames = false;
+        }
+
+        mBuffer.position(FrameJournal.SEGMENT_HEADER_SIZE);
+        return true;
+    }
+
+    /**
+     * Check whether a segment belongs to a run of its own. Within a run the next segment is created ahead of time,
+     * before the last frame of the segment before it was recorded
+     *
+     * @param wallTime The segment's wall-clock time, in nanoseconds since the epoch
+     * @param nanoTime The segment's {@link System#nanoTime()}
+     * @return
+     */
+    private boolean isNewRun(long wallTime, long nanoTime) {
+        if (mRun < 0) {
+            return true;
+        }
+
+        // another boot, its nanoTime counts from somewhere else
+        long expectedWallTime = mRunWallTime + (nanoTime - mRunNanoTime);
+        if (Math.abs(expectedWallTime - wallTime) > CLOCK_TOLERANCE) {
+            return true;
+        }
+
+        // the same clock, but another process started recording after this run's last frame
+        return mRunHasFrames && nanoTime > mLastNanoTime;
+    }
+
+    private void closeSegment() throws IOException {
+        mBuffer = null;
+        if (mFile != null) {
+            mFile.close();
+            mFile = null;
+        }
+    }
+}
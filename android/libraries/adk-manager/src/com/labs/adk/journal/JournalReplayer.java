@@ -0,0 +1,194 @@
+package com.labs.adk.journal;
+
+import com.labs.adk.link.AccessoryLink;
+import com.labs.commons.SLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the frames of a journal over an {@link AccessoryLink}, keeping the time between transfers as recorded or
+ * scaled by a speed factor. <br/>
+ * Replaying {@link FrameJournal#DIRECTION_OUT} over a link to a real accessory, or to an
+ * {@link com.labs.adk.sim.AccessorySimulator} through a {@link com.labs.adk.link.LoopbackLinkProvider}, reproduces the
+ * load the phone put on it. Frames recorded in the same transfer are written together again. The time between runs
+ * recorded into the same directory isn't kept, the first frame of every run is written right after the last frame of
+ * the run before it. Whatever the accessory sends back is read and discarded on a separate thread until the link is
+ * closed
+ *
+ * @author Amir Lazarovich
+ */
+public class JournalReplayer {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "JournalReplayer";
+    private static final int TRANSFER_SIZE = 16384;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final AccessoryLink mLink;
+    private final byte[] mTransfer;
+    private Thread mDrainThread;
+
+    // member-statistics
+    private long mFrames;
+    private long mTransfers;
+    private long mMaxLag; // in nanoseconds
+    private volatile long mReceivedBytes;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public JournalReplayer(AccessoryLink link) {
+        mLink = link;
+        mTransfer = new byte[TRANSFER_SIZE];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Replay every frame of <code>direction</code> left in <code>reader</code>, blocking until done
+     *
+     * @param reader
+     * @param direction {@link FrameJournal#DIRECTION_OUT} or {@link FrameJournal#DIRECTION_IN}
+     * @param speed     1 to replay in real time, 2 for twice as fast and so on, or 0 for as fast as possible
+     * @return The number of frames replayed
+     * @throws IOException If the journal couldn't be read or the link broke
+     */
+    public long replay(JournalReader reader, byte direction, double speed) throws IOException {
+        startDraining();
+
+        long frames = 0;
+        long firstTime = 0;
+        long runStartedAt = 0;
+        long startedAt = System.nanoTime();
+        int run = -1;
+        int length = 0;
+        while (reader.next()) {
+            if (reader.getDirection() != direction) {
+                continue;
+            }
+
+            int frameLength = reader.getLength();
+            boolean newRun = reader.getRun() != run;
+            if (length > 0 && (newRun || !reader.isSameTransfer() || length + frameLength > mTransfer.length)) {
+                writeTransfer(length);
+                length = 0;
+            }
+
+            if (length == 0) {
+                // a new transfer, wait until it's due
+                long now = System.nanoTime();
+                if (newRun) {
+                    // times of another run only line up with the ones before it on the wall clock, keeping the
+                    // gap between them would just stall the replay
+                    run = reader.getRun();
+                    firstTime = reader.getTime();
+                    runStartedAt = now;
+                } else if (speed > 0) {
+                    long due = runStartedAt + (long) ((reader.getTime() - firstTime) / speed);
+                    if (due > now) {
+                        sleepUntil(due);
+                    } else {
+                        mMaxLag = Math.max(mMaxLag, now - due);
+                    }
+                }
+            }
+
+            System.arraycopy(reader.getFrame(), 0, mTransfer, length, frameLength);
+            length += frameLength;
+            frames++;
+        }
+
+        if (length > 0) {
+            writeTransfer(length);
+        }
+
+        mFrames += frames;
+        SLog.i(TAG, "Replayed %d frames in %d ms", frames,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        return frames;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getTransferCount() {
+        return mTransfers;
+    }
+
+    /**
+     * Get the longest time a transfer was written past its due time
+     *
+     * @return The time in nanoseconds
+     */
+    public long getMaxLag() {
+        return mMaxLag;
+    }
+
+    /**
+     * Get the number of bytes the accessory sent back
+     *
+     * @return
+     */
+    public long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private void writeTransfer(int length) throws IOException {
+        mLink.write(mTransfer, 0, length);
+        mTransfers++;
+    }
+
+    private static void sleepUntil(long due) throws InterruptedIOException {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while replaying");
+            }
+        }
+    }
+
+    /**
+     * Keep reading the link, so that the accessory never blocks on a full link while frames are replayed
+     */
+    private synchronized void startDraining() {
+        if (mDrainThread != null) {
+            return;
+        }
+
+        mDrainThread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[TRANSFER_SIZE];
+                try {
+                    int read;
+                    while ((read = mLink.read(buffer, 0, buffer.length)) >= 0) {
+                        mReceivedBytes += read;
+                    }
+                } catch (IOException e) {
+                    SLog.d(TAG, "Stopped draining: %s", e.getMessage());
+                }
+            }
+        }, TAG + "-drain");
+        mDrainThread.setDaemon(true);
+        mDrainThread.start();
+    }
+}
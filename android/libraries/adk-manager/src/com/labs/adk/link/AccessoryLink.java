@@ -0,0 +1,37 @@
+package com.labs.adk.link;
+
+import java.io.IOException;
+
+/**
+ * Byte transport between the Android device and an accessory. <br/>
+ * Reads and writes are blocking. A link is opened by its {@link LinkProvider} and is useless once closed
+ *
+ * @author Amir Lazarovich
+ */
+public interface AccessoryLink {
+    /**
+     * Block until the accessory sends something and read it. A single read never returns more than one transfer
+     *
+     * @param buffer
+     * @param offset
+     * @param length The maximum number of bytes to read
+     * @return The number of bytes read, or -1 if the link was closed
+     * @throws IOException
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Send bytes to the accessory as a single transfer
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Close the link. Blocked reads return -1 and further writes fail
+     */
+    void close();
+}
@@ -0,0 +1,45 @@
+package com.labs.adk.link;
+
+/**
+ * Finds accessories and opens {@link AccessoryLink}s to them
+ *
+ * @author Amir Lazarovich
+ */
+public interface LinkProvider {
+    /**
+     * Start watching for accessories
+     *
+     * @param listener Notified when an accessory becomes available or goes away
+     */
+    void start(Listener listener);
+
+    /**
+     * Stop watching for accessories
+     */
+    void stop();
+
+    /**
+     * Try to open a link to the accessory
+     *
+     * @return The opened link, or null if no accessory is available yet. In that case the provider may call
+     * {@link Listener#onLinkAvailable()} once it becomes available, e.g. after the user granted permission
+     */
+    AccessoryLink open();
+
+    /**
+     * Listener for accessory events
+     */
+    interface Listener {
+        /**
+         * Callback invoked when it's worth calling {@link #open()} right away
+         */
+        void onLinkAvailable();
+
+        /**
+         * Callback invoked when the accessory behind <code>link</code> went away
+         *
+         * @param link
+         */
+        void onLinkDetached(AccessoryLink link);
+    }
+}
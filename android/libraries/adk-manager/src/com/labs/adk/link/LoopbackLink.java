@@ -0,0 +1,234 @@
+package com.labs.adk.link;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory {@link AccessoryLink}. Every loopback link has a peer, see {@link #getPeer()}: whatever is written to
+ * one end is read from the other. <br/>
+ * Each direction can simulate the characteristics of a real link: a fixed latency added to every transfer, and a
+ * bandwidth limit that keeps the writer busy while the transfer is on the wire. Transfer boundaries are kept, so a
+ * read never returns more than one transfer, just like a USB bulk read
+ *
+ * @author Amir Lazarovich
+ */
+public class LoopbackLink implements AccessoryLink {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_TRANSFERS = 1024;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Pipe mIn;
+    private final Pipe mOut;
+    private final LoopbackLink mPeer;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * Create a link without latency or bandwidth limit
+     */
+    public LoopbackLink() {
+        this(0, TimeUnit.NANOSECONDS, 0);
+    }
+
+    /**
+     * @param latency        Added to every transfer, in each direction
+     * @param unit           The unit of <code>latency</code>
+     * @param bytesPerSecond The bandwidth of each direction, or 0 for unlimited
+     */
+    public LoopbackLink(long latency, TimeUnit unit, long bytesPerSecond) {
+        long latencyNanos = unit.toNanos(latency);
+        mOut = new Pipe(latencyNanos, bytesPerSecond);
+        mIn = new Pipe(latencyNanos, bytesPerSecond);
+        mPeer = new LoopbackLink(mOut, mIn, this);
+    }
+
+    private LoopbackLink(Pipe in, Pipe out, LoopbackLink peer) {
+        mIn = in;
+        mOut = out;
+        mPeer = peer;
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mIn.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mOut.write(buffer, offset, length);
+    }
+
+    /**
+     * Close both directions. Transfers that weren't read yet are lost, as if the cable was pulled
+     */
+    @Override
+    public void close() {
+        mIn.close();
+        mOut.close();
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the other end of this link, e.g. for a simulated accessory
+     *
+     * @return
+     */
+    public LoopbackLink getPeer() {
+        return mPeer;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * One direction of a loopback link: a ring of bytes plus a ring of the transfers stored in it
+     */
+    private static class Pipe {
+        private final long mLatency;
+        private final long mBytesPerSecond;
+        private final byte[] mRing;
+        private int mRingHead;
+        private int mRingCount;
+        private final long[] mReadyAt;
+        private final int[] mLengths;
+        private int mTransferHead;
+        private int mTransferCount;
+        private int mHeadConsumed;
+        private long mWireFreeAt;
+        private boolean mClosed;
+
+        Pipe(long latency, long bytesPerSecond) {
+            mLatency = latency;
+            mBytesPerSecond = bytesPerSecond;
+            mRing = new byte[BUFFER_SIZE];
+            mReadyAt = new long[MAX_TRANSFERS];
+            mLengths = new int[MAX_TRANSFERS];
+        }
+
+        int read(byte[] buffer, int offset, int length) throws IOException {
+            synchronized (this) {
+                while (true) {
+                    if (mClosed) {
+                        return -1;
+                    }
+
+                    if (mTransferCount > 0) {
+                        long waitNanos = mReadyAt[mTransferHead] - System.nanoTime();
+                        if (waitNanos <= 0) {
+                            break;
+                        }
+
+                        await(waitNanos);
+                    } else {
+                        await(0);
+                    }
+                }
+
+                int count = Math.min(length, mLengths[mTransferHead] - mHeadConsumed);
+                int first = Math.min(count, BUFFER_SIZE - mRingHead);
+                System.arraycopy(mRing, mRingHead, buffer, offset, first);
+                System.arraycopy(mRing, 0, buffer, offset + first, count - first);
+                mRingHead = (mRingHead + count) % BUFFER_SIZE;
+                mRingCount -= count;
+
+                mHeadConsumed += count;
+                if (mHeadConsumed == mLengths[mTransferHead]) {
+                    mTransferHead = (mTransferHead + 1) % MAX_TRANSFERS;
+                    mTransferCount--;
+                    mHeadConsumed = 0;
+                }
+
+                notifyAll();
+                return count;
+            }
+        }
+
+        void write(byte[] buffer, int offset, int length) throws IOException {
+            if (length > BUFFER_SIZE) {
+                throw new IOException("Transfer of " + length + " bytes is too large for a loopback link");
+            }
+
+            long busyUntil;
+            synchronized (this) {
+                while (!mClosed && (BUFFER_SIZE - mRingCount < length || mTransferCount == MAX_TRANSFERS)) {
+                    await(0);
+                }
+
+                if (mClosed) {
+                    throw new IOException("Link closed");
+                }
+
+                long now = System.nanoTime();
+                long transmitNanos = (mBytesPerSecond > 0) ? length * 1000000000L / mBytesPerSecond : 0;
+                mWireFreeAt = Math.max(now, mWireFreeAt) + transmitNanos;
+                busyUntil = mWireFreeAt;
+
+                int tail = (mRingHead + mRingCount) % BUFFER_SIZE;
+                int first = Math.min(length, BUFFER_SIZE - tail);
+                System.arraycopy(buffer, offset, mRing, tail, first);
+                System.arraycopy(buffer, offset + first, mRing, 0, length - first);
+                mRingCount += length;
+
+                int transfer = (mTransferHead + mTransferCount) % MAX_TRANSFERS;
+                mLengths[transfer] = length;
+                mReadyAt[transfer] = busyUntil + mLatency;
+                mTransferCount++;
+                notifyAll();
+            }
+
+            // the writer is busy until the transfer has left, which is what limits the bandwidth
+            long remaining = busyUntil - System.nanoTime();
+            if (remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            mRingCount = 0;
+            mTransferCount = 0;
+            mHeadConsumed = 0;
+            notifyAll();
+        }
+
+        /**
+         * Wait on this pipe's monitor
+         *
+         * @param nanos How long to wait, or 0 to wait until notified
+         * @throws InterruptedIOException
+         */
+        private void await(long nanos) throws InterruptedIOException {
+            try {
+                if (nanos > 0) {
+                    wait(nanos / 1000000, (int) (nanos % 1000000));
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
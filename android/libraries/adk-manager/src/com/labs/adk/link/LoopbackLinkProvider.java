@@ -0,0 +1,141 @@
+package com.labs.adk.link;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a fresh {@link LoopbackLink} on every {@link #open()}, handing its other end to a {@link PeerListener}
+ * playing the accessory. <br/>
+ * Plugging and unplugging the accessory is simulated with {@link #attach()} and {@link #detach()}
+ *
+ * @author Amir Lazarovich
+ */
+public class LoopbackLinkProvider implements LinkProvider {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final long mLatency;
+    private final TimeUnit mUnit;
+    private final long mBytesPerSecond;
+    private Listener mListener;
+    private PeerListener mPeerListener;
+    private LoopbackLink mLink;
+    private boolean mAttached;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * See {@link LoopbackLink#LoopbackLink(long, TimeUnit, long)}. The accessory starts out attached
+     *
+     * @param latency
+     * @param unit
+     * @param bytesPerSecond
+     */
+    public LoopbackLinkProvider(long latency, TimeUnit unit, long bytesPerSecond) {
+        mLatency = latency;
+        mUnit = unit;
+        mBytesPerSecond = bytesPerSecond;
+        mAttached = true;
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Simulate plugging the accessory in
+     */
+    public void attach() {
+        Listener listener;
+        synchronized (this) {
+            mAttached = true;
+            listener = mListener;
+        }
+
+        if (listener != null) {
+            listener.onLinkAvailable();
+        }
+    }
+
+    /**
+     * Simulate unplugging the accessory: the open link is closed on both ends and {@link #open()} fails until
+     * {@link #attach()} is called
+     */
+    public void detach() {
+        Listener listener;
+        LoopbackLink link;
+        synchronized (this) {
+            mAttached = false;
+            link = mLink;
+            mLink = null;
+            listener = mListener;
+        }
+
+        if (link != null) {
+            link.close();
+            if (listener != null) {
+                listener.onLinkDetached(link);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public synchronized void start(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public synchronized void stop() {
+        mListener = null;
+    }
+
+    @Override
+    public AccessoryLink open() {
+        LoopbackLink link;
+        PeerListener peerListener;
+        synchronized (this) {
+            if (!mAttached) {
+                return null;
+            }
+
+            link = new LoopbackLink(mLatency, mUnit, mBytesPerSecond);
+            mLink = link;
+            peerListener = mPeerListener;
+        }
+
+        if (peerListener != null) {
+            peerListener.onPeerOpened(link.getPeer());
+        }
+
+        return link;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public synchronized void setPeerListener(PeerListener peerListener) {
+        mPeerListener = peerListener;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Listener for the accessory's end of opened links
+     */
+    public interface PeerListener {
+        /**
+         * Callback invoked whenever a link is opened, before it's handed to the host
+         *
+         * @param accessoryEnd Read what the host writes and write what the host should read
+         */
+        void onPeerOpened(AccessoryLink accessoryEnd);
+    }
+}
@@ -0,0 +1,85 @@
+package com.labs.adk.link;
+
+import android.os.ParcelFileDescriptor;
+import com.android.future.usb.UsbAccessory;
+import com.labs.commons.SLog;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link AccessoryLink} over a USB accessory opened through {@link com.android.future.usb.UsbManager}
+ *
+ * @author Amir Lazarovich
+ */
+public class UsbAccessoryLink implements AccessoryLink {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "UsbAccessoryLink";
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final UsbAccessory mAccessory;
+    private final ParcelFileDescriptor mFileDescriptor;
+    private final FileInputStream mInputStream;
+    private final FileOutputStream mOutputStream;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public UsbAccessoryLink(UsbAccessory accessory, ParcelFileDescriptor fileDescriptor) {
+        mAccessory = accessory;
+        mFileDescriptor = fileDescriptor;
+        FileDescriptor fd = fileDescriptor.getFileDescriptor();
+        mInputStream = new FileInputStream(fd);
+        mOutputStream = new FileOutputStream(fd);
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mInputStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mOutputStream.write(buffer, offset, length);
+    }
+
+    @Override
+    public void close() {
+        try {
+            mFileDescriptor.close();
+        } catch (IOException e) {
+            SLog.e(TAG, e, "Couldn't close file descriptor");
+        }
+
+        try {
+            mInputStream.close();
+        } catch (IOException e) {
+            SLog.e(TAG, e, "Couldn't close input stream");
+        }
+
+        try {
+            mOutputStream.close();
+        } catch (IOException e) {
+            SLog.e(TAG, e, "Couldn't close output stream");
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public UsbAccessory getAccessory() {
+        return mAccessory;
+    }
+}
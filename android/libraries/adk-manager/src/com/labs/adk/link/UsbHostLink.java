@@ -0,0 +1,285 @@
+package com.labs.adk.link;
+
+import com.labs.commons.SLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AccessoryLink} that keeps several asynchronous bulk transfers queued in each direction. <br/>
+ * Every IN transfer is queued up front and queued again as soon as its bytes were read, so the device never waits
+ * for the phone to ask for more. Writes only wait for the OUT transfer to be queued, not for it to complete, so up to
+ * {@link UsbTransferQueue#getDepth()} transfers are in flight at once. With a depth of 1 the link behaves like the
+ * blocking accessory streams. <br/>
+ * A dedicated thread collects the completions
+ *
+ * @author Amir Lazarovich
+ */
+public class UsbHostLink implements AccessoryLink {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "UsbHostLink";
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_TRANSFER_SIZE = 512;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final UsbTransferQueue mQueue;
+    private final int mDepth;
+    private final ByteBuffer[] mBuffers;
+    private final Object[] mLock;
+    private final Thread mReaper;
+    private int mReading = -1; // the IN transfer being read, only touched by the reading thread
+
+    // member-transfers: guarded by mLock
+    private final int[] mCompleted; // completed IN transfers, in order
+    private int mCompletedHead;
+    private int mCompletedCount;
+    private final int[] mIdle; // OUT transfers that may be queued
+    private int mIdleCount;
+    private boolean mClosed;
+
+    // member-statistics
+    private volatile long mWrittenTransfers;
+    private volatile long mReadTransfers;
+    private volatile long mWriteStalls;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * Queue every IN transfer and start collecting completions
+     *
+     * @param queue
+     * @param transferSize The largest number of bytes a single transfer carries
+     * @throws IOException if the IN transfers couldn't be queued. The queue is closed
+     */
+    public UsbHostLink(UsbTransferQueue queue, int transferSize) throws IOException {
+        mQueue = queue;
+        mDepth = queue.getDepth();
+        mLock = new Object[0];
+        mBuffers = new ByteBuffer[2 * mDepth];
+        mCompleted = new int[mDepth];
+        mIdle = new int[mDepth];
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(transferSize);
+        }
+
+        for (int i = 0; i < mDepth; i++) {
+            mIdle[mIdleCount++] = mDepth + i;
+            if (!queue.queue(i, mBuffers[i], transferSize)) {
+                queue.close();
+                throw new IOException("Couldn't queue IN transfer");
+            }
+        }
+
+        mReaper = new Thread(null, new Reaper(), TAG + "-reaper");
+        mReaper.setDaemon(true);
+        mReaper.start();
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        while (mReading < 0) {
+            int transfer;
+            synchronized (mLock) {
+                while (mCompletedCount == 0 && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while reading");
+                    }
+                }
+
+                if (mCompletedCount == 0) {
+                    return -1;
+                }
+
+                transfer = mCompleted[mCompletedHead];
+                mCompletedHead = (mCompletedHead + 1) % mDepth;
+                mCompletedCount--;
+            }
+
+            mReadTransfers++;
+            ByteBuffer received = mBuffers[transfer];
+            received.flip();
+            if (received.hasRemaining()) {
+                mReading = transfer;
+            } else {
+                // zero-length packet
+                requeue(transfer);
+            }
+        }
+
+        // a transfer larger than the caller's buffer is read in several calls, never mixed with the next one
+        ByteBuffer received = mBuffers[mReading];
+        int count = Math.min(length, received.remaining());
+        received.get(buffer, offset, count);
+        if (!received.hasRemaining()) {
+            int transfer = mReading;
+            mReading = -1;
+            requeue(transfer);
+        }
+
+        return count;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int transfer = acquire();
+            ByteBuffer sent = mBuffers[transfer];
+            int count = Math.min(length, sent.capacity());
+            sent.clear();
+            sent.put(buffer, offset, count);
+            if (!mQueue.queue(transfer, sent, count)) {
+                release(transfer);
+                throw new IOException("Couldn't queue OUT transfer");
+            }
+
+            mWrittenTransfers++;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            mLock.notifyAll();
+        }
+
+        mQueue.close();
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Get the number of OUT transfers queued and not completed yet
+     *
+     * @return
+     */
+    public int getInFlightCount() {
+        synchronized (mLock) {
+            return mDepth - mIdleCount;
+        }
+    }
+
+    public long getWrittenTransferCount() {
+        return mWrittenTransfers;
+    }
+
+    public long getReadTransferCount() {
+        return mReadTransfers;
+    }
+
+    /**
+     * Get the number of times a write had to wait because every OUT transfer was in flight
+     *
+     * @return
+     */
+    public long getWriteStallCount() {
+        return mWriteStalls;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Take an OUT transfer that isn't in flight, waiting for one to complete if needed
+     *
+     * @return
+     * @throws IOException if the link was closed
+     */
+    private int acquire() throws IOException {
+        synchronized (mLock) {
+            if (mIdleCount == 0 && !mClosed) {
+                mWriteStalls++;
+                do {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while writing");
+                    }
+                } while (mIdleCount == 0 && !mClosed);
+            }
+
+            if (mClosed) {
+                throw new IOException("Link is closed");
+            }
+
+            return mIdle[--mIdleCount];
+        }
+    }
+
+    private void release(int transfer) {
+        synchronized (mLock) {
+            mIdle[mIdleCount++] = transfer;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue an IN transfer again once its bytes were read
+     *
+     * @param transfer
+     * @throws IOException if it couldn't be queued. The link is closed
+     */
+    private void requeue(int transfer) throws IOException {
+        ByteBuffer buffer = mBuffers[transfer];
+        buffer.clear();
+        if (!mQueue.queue(transfer, buffer, buffer.capacity())) {
+            close();
+            throw new IOException("Couldn't queue IN transfer");
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Collects completed transfers: IN transfers are handed to the reader, OUT transfers may be queued again
+     */
+    private class Reaper implements Runnable {
+        @Override
+        public void run() {
+            int transfer;
+            while ((transfer = mQueue.awaitCompletion()) >= 0) {
+                synchronized (mLock) {
+                    if (transfer < mDepth) {
+                        mCompleted[(mCompletedHead + mCompletedCount) % mDepth] = transfer;
+                        mCompletedCount++;
+                    } else {
+                        mIdle[mIdleCount++] = transfer;
+                    }
+
+                    mLock.notifyAll();
+                }
+            }
+
+            SLog.d(TAG, "Transfer queue closed");
+            close();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.labs.adk.link;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import com.labs.commons.SLog;
+
+import java.io.IOException;
+
+/**
+ * Opens {@link UsbHostLink}s to a USB device, with the phone acting as the USB host, asking the user for permission
+ * when needed. <br/>
+ * The first interface of the device that has a bulk IN and a bulk OUT endpoint carries the frames. Requires API
+ * level 12 and a phone that supports USB host mode
+ *
+ * @author Amir Lazarovich
+ */
+public class UsbHostLinkProvider implements LinkProvider {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "UsbHostLinkProvider";
+    private static final String ACTION_USB_PERMISSION = "com.labs.adk.action.USB_HOST_PERMISSION";
+    public static final int ANY_PRODUCT = -1;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Context mContext;
+    private final UsbManager mUsbManager;
+    private final int mVendorId;
+    private final int mProductId;
+    private final int mDepth;
+    private BroadcastReceiver mUsbReceiver;
+    private Listener mListener;
+    private volatile UsbDevice mDevice;
+    private volatile UsbHostLink mLink;
+    private boolean mPermissionRequested;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public UsbHostLinkProvider(Context context, int vendorId, int productId) {
+        this(context, vendorId, productId, UsbHostLink.DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param context
+     * @param vendorId  The vendor id of the device
+     * @param productId The product id of the device, or {@link #ANY_PRODUCT}
+     * @param depth     The number of transfers kept queued in each direction
+     */
+    public UsbHostLinkProvider(Context context, int vendorId, int productId, int depth) {
+        mContext = context;
+        mUsbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        mVendorId = vendorId;
+        mProductId = productId;
+        mDepth = depth;
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    /**
+     * Register the receiver listening for USB events. It lives until {@link #stop()}
+     *
+     * @param listener
+     */
+    @Override
+    public synchronized void start(Listener listener) {
+        mListener = listener;
+        if (mUsbReceiver != null) {
+            return;
+        }
+
+        IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        mUsbReceiver = new UsbReceiver();
+        mContext.registerReceiver(mUsbReceiver, filter);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mUsbReceiver != null) {
+            try {
+                mContext.unregisterReceiver(mUsbReceiver);
+            } catch (Exception e) {
+                SLog.e(TAG, e, "Couldn't unregister receiver");
+            } finally {
+                mUsbReceiver = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized AccessoryLink open() {
+        UsbDevice device = findDevice();
+        if (device == null) {
+            return null;
+        }
+
+        if (!mUsbManager.hasPermission(device)) {
+            if (!mPermissionRequested) {
+                // the permission broadcast notifies the listener, until then retries are only a fallback
+                PendingIntent permissionIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
+                mUsbManager.requestPermission(device, permissionIntent);
+                mPermissionRequested = true;
+            }
+
+            return null;
+        }
+
+        SLog.d(TAG, "Trying to open USB device %s", device.getDeviceName());
+        UsbDeviceConnection connection = mUsbManager.openDevice(device);
+        if (connection == null) {
+            SLog.d(TAG, "open: device open failed");
+            return null;
+        }
+
+        mPermissionRequested = false;
+        UsbHostLink link = openLink(device, connection);
+        if (link == null) {
+            connection.close();
+            return null;
+        }
+
+        mDevice = device;
+        mLink = link;
+        return link;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Find the selected device among the attached ones
+     *
+     * @return The device, or null if it isn't attached
+     */
+    private UsbDevice findDevice() {
+        for (UsbDevice device : mUsbManager.getDeviceList().values()) {
+            if (device.getVendorId() == mVendorId && (mProductId == ANY_PRODUCT || device.getProductId() == mProductId)) {
+                return device;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Claim the first interface with a bulk endpoint in each direction and start transferring over it
+     *
+     * @param device
+     * @param connection
+     * @return The link, or null if the device has no such interface or it couldn't be claimed
+     */
+    private UsbHostLink openLink(UsbDevice device, UsbDeviceConnection connection) {
+        for (int i = 0; i < device.getInterfaceCount(); i++) {
+            UsbInterface usbInterface = device.getInterface(i);
+            UsbEndpoint in = null;
+            UsbEndpoint out = null;
+            for (int j = 0; j < usbInterface.getEndpointCount(); j++) {
+                UsbEndpoint endpoint = usbInterface.getEndpoint(j);
+                if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                    continue;
+                }
+
+                if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                    in = endpoint;
+                } else {
+                    out = endpoint;
+                }
+            }
+
+            if (in == null || out == null) {
+                continue;
+            }
+
+            if (!connection.claimInterface(usbInterface, true)) {
+                SLog.w(TAG, "Couldn't claim interface %d", usbInterface.getId());
+                return null;
+            }
+
+            try {
+                return new UsbHostLink(new UsbHostTransferQueue(connection, usbInterface, in, out, mDepth),
+                        UsbHostLink.DEFAULT_TRANSFER_SIZE);
+            } catch (IllegalStateException e) {
+                SLog.e(TAG, e, "Couldn't set up transfers");
+            } catch (IOException e) {
+                SLog.e(TAG, e, "Couldn't set up transfers");
+            }
+
+            connection.releaseInterface(usbInterface);
+            return null;
+        }
+
+        SLog.w(TAG, "USB device %s has no bulk interface", device.getDeviceName());
+        return null;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Listens for the following events:
+     * {@link #ACTION_USB_PERMISSION}, {@link UsbManager#ACTION_USB_DEVICE_ATTACHED}, {@link UsbManager#ACTION_USB_DEVICE_DETACHED}
+     */
+    private class UsbReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            SLog.d(TAG, "Got USB intent %s", action);
+
+            Listener listener;
+            synchronized (UsbHostLinkProvider.this) {
+                listener = mListener;
+            }
+
+            if (ACTION_USB_PERMISSION.equals(action)) {
+                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                    listener.onLinkAvailable();
+                } else {
+                    SLog.d(TAG, "USB permission denied");
+                }
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                SLog.d(TAG, "BroadcastReceiver:: USB device attached");
+                listener.onLinkAvailable();
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+                synchronized (UsbHostLinkProvider.this) {
+                    // ask again once the device is plugged back in
+                    mPermissionRequested = false;
+                }
+
+                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                UsbHostLink link = mLink;
+                if (device != null && link != null && device.equals(mDevice)) {
+                    SLog.d(TAG, "BroadcastReceiver:: USB device detached");
+                    listener.onLinkDetached(link);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.labs.adk.link;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link UsbTransferQueue} over a USB device opened in host mode, with one {@link UsbRequest} per transfer.
+ * Requires API level 12
+ *
+ * @author Amir Lazarovich
+ */
+public class UsbHostTransferQueue implements UsbTransferQueue {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final UsbDeviceConnection mConnection;
+    private final UsbInterface mInterface;
+    private final UsbRequest[] mRequests;
+    private final int mDepth;
+    private volatile boolean mClosed;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param connection
+     * @param usbInterface Already claimed. Released when the queue is closed
+     * @param in           The bulk endpoint to read from
+     * @param out          The bulk endpoint to write to
+     * @param depth        The number of transfers that may be queued in each direction
+     * @throws IllegalStateException if the requests couldn't be initialized
+     */
+    public UsbHostTransferQueue(UsbDeviceConnection connection, UsbInterface usbInterface, UsbEndpoint in,
+                                UsbEndpoint out, int depth) {
+        mConnection = connection;
+        mInterface = usbInterface;
+        mDepth = depth;
+        mRequests = new UsbRequest[2 * depth];
+        for (int i = 0; i < mRequests.length; i++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(connection, (i < depth) ? in : out)) {
+                throw new IllegalStateException("Couldn't initialize USB request");
+            }
+
+            // boxed once, completions only read it back
+            request.setClientData(Integer.valueOf(i));
+            mRequests[i] = request;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public boolean queue(int transfer, ByteBuffer buffer, int length) {
+        return !mClosed && mRequests[transfer].queue(buffer, length);
+    }
+
+    @Override
+    public int awaitCompletion() {
+        if (mClosed) {
+            return -1;
+        }
+
+        UsbRequest request = mConnection.requestWait();
+        if (request == null || mClosed) {
+            return -1;
+        }
+
+        return (Integer) request.getClientData();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+
+        mClosed = true;
+        for (UsbRequest request : mRequests) {
+            request.cancel();
+        }
+
+        mConnection.releaseInterface(mInterface);
+        mConnection.close();
+        for (UsbRequest request : mRequests) {
+            request.close();
+        }
+    }
+}
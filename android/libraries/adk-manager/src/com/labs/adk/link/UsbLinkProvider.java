@@ -0,0 +1,188 @@
+package com.labs.adk.link;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.ParcelFileDescriptor;
+import com.android.future.usb.UsbAccessory;
+import com.android.future.usb.UsbManager;
+import com.labs.commons.SLog;
+
+/**
+ * Opens {@link UsbAccessoryLink}s to the USB accessory, asking the user for permission when needed. <br/>
+ * A provider may be restricted to accessories of a single model, so that a board is never mistaken for another one
+ *
+ * @author Amir Lazarovich
+ */
+public class UsbLinkProvider implements LinkProvider {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "UsbLinkProvider";
+    private static final String ACTION_USB_PERMISSION = "com.labs.adk.action.USB_PERMISSION";
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Context mContext;
+    private final UsbManager mUsbManager;
+    private final String mModel;
+    private BroadcastReceiver mUsbReceiver;
+    private Listener mListener;
+    private volatile UsbAccessoryLink mLink;
+    private boolean mPermissionRequested;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public UsbLinkProvider(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param context
+     * @param model   Only open accessories whose {@link UsbAccessory#getModel()} is this, or null to open any accessory
+     */
+    public UsbLinkProvider(Context context, String model) {
+        mContext = context;
+        mUsbManager = UsbManager.getInstance(context);
+        mModel = model;
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    /**
+     * Register the receiver listening for USB events. It lives until {@link #stop()}
+     *
+     * @param listener
+     */
+    @Override
+    public synchronized void start(Listener listener) {
+        mListener = listener;
+        if (mUsbReceiver != null) {
+            return;
+        }
+
+        IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_ACCESSORY_DETACHED);
+        filter.addAction(UsbManager.ACTION_USB_ACCESSORY_ATTACHED);
+        mUsbReceiver = new UsbReceiver();
+        mContext.registerReceiver(mUsbReceiver, filter);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mUsbReceiver != null) {
+            try {
+                mContext.unregisterReceiver(mUsbReceiver);
+            } catch (Exception e) {
+                SLog.e(TAG, e, "Couldn't unregister receiver");
+            } finally {
+                mUsbReceiver = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized AccessoryLink open() {
+        UsbAccessory accessory = findAccessory();
+        if (accessory == null) {
+            return null;
+        }
+
+        if (!mUsbManager.hasPermission(accessory)) {
+            if (!mPermissionRequested) {
+                // the permission broadcast notifies the listener, until then retries are only a fallback
+                PendingIntent permissionIntent = PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
+                mUsbManager.requestPermission(accessory, permissionIntent);
+                mPermissionRequested = true;
+            }
+
+            return null;
+        }
+
+        SLog.d(TAG, "Trying to attach ADK device");
+        ParcelFileDescriptor fileDescriptor = mUsbManager.openAccessory(accessory);
+        if (fileDescriptor == null) {
+            SLog.d(TAG, "open: accessory open failed");
+            return null;
+        }
+
+        mPermissionRequested = false;
+        mLink = new UsbAccessoryLink(accessory, fileDescriptor);
+        return mLink;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Find the first attached accessory of the selected model
+     *
+     * @return The accessory, or null if none is attached
+     */
+    private UsbAccessory findAccessory() {
+        UsbAccessory[] accessories = mUsbManager.getAccessoryList();
+        if (accessories == null) {
+            return null;
+        }
+
+        for (UsbAccessory accessory : accessories) {
+            if (accessory != null && (mModel == null || mModel.equals(accessory.getModel()))) {
+                return accessory;
+            }
+        }
+
+        return null;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Listens for the following events:
+     * {@link #ACTION_USB_PERMISSION}, {@link com.android.future.usb.UsbManager#ACTION_USB_ACCESSORY_ATTACHED}, {@link com.android.future.usb.UsbManager#ACTION_USB_ACCESSORY_DETACHED}
+     */
+    private class UsbReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            SLog.d(TAG, "Got USB intent %s", action);
+
+            Listener listener;
+            synchronized (UsbLinkProvider.this) {
+                listener = mListener;
+            }
+
+            if (ACTION_USB_PERMISSION.equals(action)) {
+                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                    listener.onLinkAvailable();
+                } else {
+                    SLog.d(TAG, "USB permission denied");
+                }
+            } else if (UsbManager.ACTION_USB_ACCESSORY_ATTACHED.equals(action)) {
+                SLog.d(TAG, "BroadcastReceiver:: USB Attached");
+                listener.onLinkAvailable();
+            } else if (UsbManager.ACTION_USB_ACCESSORY_DETACHED.equals(action)) {
+                synchronized (UsbLinkProvider.this) {
+                    // ask again once the accessory is plugged back in
+                    mPermissionRequested = false;
+                }
+
+                UsbAccessory accessory = UsbManager.getAccessory(intent);
+                UsbAccessoryLink link = mLink;
+                if (accessory != null && link != null && accessory.equals(link.getAccessory())) {
+                    SLog.d(TAG, "BroadcastReceiver:: USB Detached");
+                    listener.onLinkDetached(link);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.labs.adk.link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous bulk transfers to and from a USB device, the way {@link android.hardware.usb.UsbRequest} works: transfers
+ * are queued without blocking and their completions are collected, in whatever order, by a single thread. <br/>
+ * Transfers are identified by an index: transfers 0 to <code>getDepth() - 1</code> read from the IN endpoint, and
+ * transfers <code>getDepth()</code> to <code>2 * getDepth() - 1</code> write to the OUT endpoint. Every transfer may be
+ * queued again once it completed. <br/>
+ * {@link UsbHostTransferQueue} runs over the USB host APIs; {@link com.labs.adk.sim.SimulatedTransferQueue} stands in
+ * for the USB layer off the device
+ *
+ * @author Amir Lazarovich
+ */
+public interface UsbTransferQueue {
+    /**
+     * Get the number of transfers that may be queued in each direction
+     *
+     * @return
+     */
+    int getDepth();
+
+    /**
+     * Queue a transfer over the first <code>length</code> bytes of <code>buffer</code>. Returns right away
+     *
+     * @param transfer
+     * @param buffer   Must not be touched until the transfer completes
+     * @param length
+     * @return False if the transfer couldn't be queued
+     */
+    boolean queue(int transfer, ByteBuffer buffer, int length);
+
+    /**
+     * Block until a queued transfer completes. The position of its buffer is then the number of bytes transferred
+     *
+     * @return The completed transfer, or -1 once the queue is closed
+     */
+    int awaitCompletion();
+
+    /**
+     * Cancel every queued transfer and release the device. {@link #awaitCompletion()} returns -1 from now on
+     */
+    void close();
+}
@@ -0,0 +1,624 @@
+package com.labs.adk.sim;
+
+import com.labs.adk.link.AccessoryLink;
+import com.labs.adk.link.LoopbackLinkProvider;
+import com.labs.commons.ADK;
+import com.labs.commons.SLog;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM stand-in for the motordroid firmware (arduino/motordroid/motordroid.ino). <br/>
+ * Mirrors the firmware's protocol loop: every read takes up to {@link #BUFFER_SIZE} bytes, walks the messages in it
+ * the way <code>handleMsgFromDevice</code> does, applies <code>onCommandControl</code>'s mapping to throttle and turn,
+ * and acks the read. A message cut by the end of a read is lost, just like on the board. The hello is answered with
+ * the capabilities set by {@link #setCapabilities(int, int)}, or ignored like older firmware does. When telemetry is
+ * agreed on, the collision check sends its samples at the agreed rate, like <code>sendTelemetry</code>. <br/>
+ * The firmware handles at most one read per loop, so {@link #setLoopDelay(long, TimeUnit)} paces reads as well as
+ * the collision check. Since link reads block, the collision check runs on its own thread instead of in between
+ * reads. <br/>
+ * Attach it to a {@link LoopbackLinkProvider} with {@link LoopbackLinkProvider#setPeerListener} to run the whole
+ * ADK path against it
+ *
+ * @author Amir Lazarovich
+ */
+public class AccessorySimulator implements LoopbackLinkProvider.PeerListener {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "AccessorySimulator";
+    public static final int BUFFER_SIZE = 16;
+
+    private static final int INPUT_MIN = -100;
+    private static final int INPUT_MAX = 100;
+    private static final int THROTTLE_MIN = -255;
+    private static final int THROTTLE_MAX = 255;
+    private static final int TURN_MIN = -255;
+    private static final int TURN_MAX = 255;
+    private static final float MAX_DISTANCE_TO_AVOID_COLLISION = 70; // in cm
+    public static final int FIRMWARE_CAPABILITIES = ADK.CAPABILITY_SEQUENCED_ACKS | ADK.CAPABILITY_DUAL_AXIS
+            | ADK.CAPABILITY_BATCHING | ADK.CAPABILITY_TELEMETRY;
+    public static final int TELEMETRY_MAX_RATE = 20; // in Hz
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Object[] mLock;
+    private volatile long mLoopDelayNanos;
+    private DistanceSensor mDistanceSensor;
+    private Listener mListener;
+    private Thread mLoopThread;
+    private volatile int mProtocolVersion;
+    private volatile int mCapabilities;
+
+    // member-control
+    private int mThrottle;
+    private int mTurn;
+    private boolean mStandby;
+
+    // member-collision
+    private long mLastDistanceSampleTime;
+    private float mLastDistance;
+
+    // member-telemetry: the link that said hello last and the rate agreed on with it
+    private volatile AccessoryLink mTelemetryLink;
+    private volatile int mTelemetryRate;
+    private long mLastTelemetryTime;
+    private final byte[] mTelemetryFrame;
+
+    // member-statistics
+    private long mReads;
+    private long mMessages;
+    private long mAcks;
+    private long mTruncatedMessages;
+    private long mTelemetrySamples;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public AccessorySimulator() {
+        mLock = new Object[0];
+        mProtocolVersion = ADK.PROTOCOL_VERSION;
+        mCapabilities = FIRMWARE_CAPABILITIES;
+        mTelemetryFrame = new byte[ADK.HEADER_SIZE + ADK.TELEMETRY_DISTANCE_LENGTH];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Start serving <code>link</code> on a new thread, until it's closed
+     *
+     * @param link The accessory's end of the link
+     */
+    public void attach(final AccessoryLink link) {
+        Thread reader = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                serve(link);
+            }
+        }, TAG + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Start the loop that samples the distance sensor and stops the car before a collision, as the firmware's
+     * <code>onLoop</code> does. Does nothing without a {@link DistanceSensor}
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mLoopThread != null || mDistanceSensor == null) {
+                return;
+            }
+
+            mLastDistanceSampleTime = System.currentTimeMillis();
+            mLoopThread = new Thread(null, new Runnable() {
+                @Override
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        onDetectCollision();
+                        if (!pause()) {
+                            break;
+                        }
+                    }
+                }
+            }, TAG + "-loop");
+            mLoopThread.setDaemon(true);
+            mLoopThread.start();
+        }
+    }
+
+    /**
+     * Stop the loop started by {@link #start()}. Attached links are served until they're closed
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (mLoopThread != null) {
+                mLoopThread.interrupt();
+                mLoopThread = null;
+            }
+        }
+    }
+
+    /**
+     * Map <code>value</code> from one range to another using integer math, exactly like Arduino's <code>map</code>
+     *
+     * @param value
+     * @param fromLow
+     * @param fromHigh
+     * @param toLow
+     * @param toHigh
+     * @return
+     */
+    public static int map(int value, int fromLow, int fromHigh, int toLow, int toHigh) {
+        return (int) ((long) (value - fromLow) * (toHigh - toLow) / (fromHigh - fromLow) + toLow);
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public void onPeerOpened(AccessoryLink accessoryEnd) {
+        attach(accessoryEnd);
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Set the time every loop takes on the board, which limits how often the link is read
+     *
+     * @param delay
+     * @param unit
+     */
+    public void setLoopDelay(long delay, TimeUnit unit) {
+        mLoopDelayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Set the sensor sampled by the loop, see {@link #start()}
+     *
+     * @param distanceSensor
+     */
+    public void setDistanceSensor(DistanceSensor distanceSensor) {
+        synchronized (mLock) {
+            mDistanceSensor = distanceSensor;
+        }
+    }
+
+    /**
+     * Set what the simulated firmware announces in the handshake
+     *
+     * @param protocolVersion 0 to ignore the hello, like firmware from before the handshake
+     * @param capabilities    A combination of the <code>ADK.CAPABILITY_*</code> flags
+     */
+    public void setCapabilities(int protocolVersion, int capabilities) {
+        mProtocolVersion = protocolVersion;
+        mCapabilities = capabilities;
+    }
+
+    public void setListener(Listener listener) {
+        synchronized (mLock) {
+            mListener = listener;
+        }
+    }
+
+    /**
+     * Get the throttle the motors are driven with, between -255 and 255
+     *
+     * @return
+     */
+    public int getThrottle() {
+        synchronized (mLock) {
+            return mThrottle;
+        }
+    }
+
+    /**
+     * Get the turn the motors are driven with, between -255 and 255
+     *
+     * @return
+     */
+    public int getTurn() {
+        synchronized (mLock) {
+            return mTurn;
+        }
+    }
+
+    /**
+     * Check whether the motors are in standby
+     *
+     * @return
+     */
+    public boolean isStandby() {
+        synchronized (mLock) {
+            return mStandby;
+        }
+    }
+
+    public long getReadCount() {
+        synchronized (mLock) {
+            return mReads;
+        }
+    }
+
+    public long getMessageCount() {
+        synchronized (mLock) {
+            return mMessages;
+        }
+    }
+
+    public long getAckCount() {
+        synchronized (mLock) {
+            return mAcks;
+        }
+    }
+
+    /**
+     * Get the number of telemetry samples sent
+     *
+     * @return
+     */
+    public long getTelemetrySampleCount() {
+        synchronized (mLock) {
+            return mTelemetrySamples;
+        }
+    }
+
+    /**
+     * Get the number of messages lost because they didn't fit in the read holding their start
+     *
+     * @return
+     */
+    public long getTruncatedMessageCount() {
+        synchronized (mLock) {
+            return mTruncatedMessages;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * The firmware's read loop
+     *
+     * @param link
+     */
+    private void serve(AccessoryLink link) {
+        byte[] msg = new byte[BUFFER_SIZE];
+        byte[] ack = new byte[ADK.HEADER_SIZE + 1];
+        try {
+            while (true) {
+                int len = link.read(msg, 0, BUFFER_SIZE);
+                if (len < 0) {
+                    break;
+                }
+
+                if (len > 0) {
+                    onRead(link, msg, len, ack);
+                }
+
+                if (!pause()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            SLog.d(TAG, "Link broke: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Handle a single read, see the firmware's <code>loop</code>
+     *
+     * @param link
+     * @param msg
+     * @param len
+     * @param ack  Scratch buffer for acks
+     * @throws IOException
+     */
+    private void onRead(AccessoryLink link, byte[] msg, int len, byte[] ack) throws IOException {
+        synchronized (mLock) {
+            mReads++;
+        }
+
+        // a single read may hold several messages
+        boolean legacyAck = false;
+        int offset = 0;
+        while (offset + ADK.HEADER_SIZE <= len) {
+            int msgLength = handleMsgFromDevice(link, msg, offset, len - offset, ack);
+            if (msgLength == 0) {
+                synchronized (mLock) {
+                    mTruncatedMessages++;
+                }
+                break;
+            }
+
+            // the capabilities sent back are the hello's ack
+            byte command = msg[offset];
+            if ((command & ADK.FLAG_SEQUENCED) == 0 && (command != ADK.COMMAND_HELLO || mProtocolVersion == 0)) {
+                legacyAck = true;
+            }
+            offset += msgLength;
+        }
+
+        if (legacyAck || offset == 0) {
+            ack[0] = 1;
+            write(link, ack, 1);
+        }
+    }
+
+    /**
+     * See the firmware's <code>handleMsgFromDevice</code>
+     *
+     * @return The length of the handled message, or 0 if it isn't complete
+     */
+    private int handleMsgFromDevice(AccessoryLink link, byte[] msg, int offset, int available, byte[] ack)
+            throws IOException {
+        byte command = msg[offset];
+        byte action = msg[offset + 1];
+        int dataLength = msg[offset + 2] & 0xFF;
+        if (ADK.HEADER_SIZE + dataLength > available) {
+            return 0;
+        }
+
+        int dataOffset = offset + ADK.HEADER_SIZE;
+        if ((command & ADK.FLAG_SEQUENCED) != 0) {
+            // the last data byte is a sequence number to echo back
+            byte sequence = msg[dataOffset + dataLength - 1];
+            onMessageReceived((byte) (command & ~ADK.FLAG_SEQUENCED), action, msg, dataOffset, dataLength - 1);
+
+            ack[0] = ADK.COMMAND_ACK;
+            ack[1] = ADK.ACTION_ACK;
+            ack[2] = 1;
+            ack[3] = sequence;
+            write(link, ack, ADK.HEADER_SIZE + 1);
+        } else if (command == ADK.COMMAND_HELLO) {
+            onHello(link, msg, dataOffset, dataLength);
+        } else {
+            onMessageReceived(command, action, msg, dataOffset, dataLength);
+        }
+
+        return ADK.HEADER_SIZE + dataLength;
+    }
+
+    /**
+     * See the firmware's <code>sendCapabilities</code>
+     */
+    private void onHello(AccessoryLink link, byte[] data, int offset, int length) throws IOException {
+        synchronized (mLock) {
+            mMessages++;
+        }
+
+        int protocolVersion = mProtocolVersion;
+        if (protocolVersion == 0) {
+            return;
+        }
+
+        // [protocol version][capabilities][requested telemetry rate in Hz]
+        int telemetryRate = 0;
+        if ((mCapabilities & ADK.CAPABILITY_TELEMETRY) != 0 && length > 2) {
+            telemetryRate = Math.min(data[offset + 2] & 0xFF, TELEMETRY_MAX_RATE);
+        }
+
+        mTelemetryRate = telemetryRate;
+        mTelemetryLink = link;
+
+        byte[] capabilities = new byte[ADK.HEADER_SIZE + 4];
+        capabilities[0] = ADK.COMMAND_CAPABILITIES;
+        capabilities[1] = ADK.ACTION_HELLO;
+        capabilities[2] = 4;
+        capabilities[3] = (byte) protocolVersion;
+        capabilities[4] = BUFFER_SIZE;
+        capabilities[5] = (byte) mCapabilities;
+        capabilities[6] = (byte) telemetryRate;
+        write(link, capabilities, capabilities.length);
+    }
+
+    /**
+     * See the firmware's <code>onMessageReceived</code> and <code>onCommandControl</code>
+     */
+    private void onMessageReceived(byte command, byte action, byte[] data, int offset, int length) {
+        Listener listener;
+        int throttle;
+        int turn;
+        boolean standby;
+        synchronized (mLock) {
+            mMessages++;
+            if (command != ADK.COMMAND_CONTROL) {
+                return;
+            }
+
+            // the board reads whatever is in its buffer when the data is too short, treat it as 0 here
+            byte first = (length > 0) ? data[offset] : 0;
+            byte second = (length > 1) ? data[offset + 1] : 0;
+            switch (action) {
+                case ADK.ACTION_LEFT_STICK:
+                    mThrottle = map(first, INPUT_MIN, INPUT_MAX, THROTTLE_MIN, THROTTLE_MAX);
+                    break;
+
+                case ADK.ACTION_RIGHT_STICK:
+                    mTurn = map(second, INPUT_MIN, INPUT_MAX, TURN_MIN, TURN_MAX);
+                    break;
+
+                case ADK.ACTION_STANDBY:
+                    mStandby = first != 0;
+                    break;
+
+                case ADK.ACTION_DRIVE:
+                    if (length < 2) {
+                        return;
+                    }
+
+                    mThrottle = map(first, INPUT_MIN, INPUT_MAX, THROTTLE_MIN, THROTTLE_MAX);
+                    mTurn = map(second, INPUT_MIN, INPUT_MAX, TURN_MIN, TURN_MAX);
+                    if (length > 2) {
+                        mStandby = data[offset + 2] != 0;
+                    }
+                    break;
+
+                default:
+                    return;
+            }
+
+            listener = mListener;
+            throttle = mThrottle;
+            turn = mTurn;
+            standby = mStandby;
+        }
+
+        if (listener != null) {
+            listener.onControlChanged(throttle, turn, standby);
+        }
+    }
+
+    /**
+     * See the firmware's <code>onDetectCollision</code>
+     */
+    private void onDetectCollision() {
+        DistanceSensor sensor;
+        Listener listener;
+        int throttle;
+        synchronized (mLock) {
+            sensor = mDistanceSensor;
+            listener = mListener;
+            throttle = mThrottle;
+        }
+
+        if (sensor == null) {
+            return;
+        }
+
+        float distance = sensor.getDistance();
+        long now = System.currentTimeMillis();
+        boolean collision = distance < MAX_DISTANCE_TO_AVOID_COLLISION && throttle >= 0;
+        float speed;
+        float approachSpeed;
+        synchronized (mLock) {
+            long deltaTime = Math.max(1, now - mLastDistanceSampleTime);
+            speed = Math.abs(distance - mLastDistance) * 1000 / deltaTime;
+            approachSpeed = (distance - mLastDistance) * 1000 / deltaTime;
+            mLastDistanceSampleTime = now;
+            mLastDistance = distance;
+
+            if (collision) {
+                mThrottle = 0;
+                mTurn = 0;
+            }
+        }
+
+        if (listener != null) {
+            listener.onDistanceSample(distance, speed, collision);
+            if (collision) {
+                listener.onControlChanged(0, 0, isStandby());
+            }
+        }
+
+        int telemetryRate = mTelemetryRate;
+        if (telemetryRate > 0 && now - mLastTelemetryTime >= 1000 / telemetryRate) {
+            mLastTelemetryTime = now;
+            sendTelemetry((int) (distance * 10), (int) approachSpeed, collision);
+        }
+    }
+
+    /**
+     * See the firmware's <code>sendTelemetry</code>. Only called by the loop thread
+     *
+     * @param distance  In mm
+     * @param speed     The change in distance in cm/s, negative while getting closer
+     * @param collision
+     */
+    private void sendTelemetry(int distance, int speed, boolean collision) {
+        AccessoryLink link = mTelemetryLink;
+        if (link == null) {
+            return;
+        }
+
+        byte[] frame = mTelemetryFrame;
+        frame[0] = ADK.COMMAND_TELEMETRY;
+        frame[1] = ADK.ACTION_DISTANCE;
+        frame[2] = ADK.TELEMETRY_DISTANCE_LENGTH;
+        frame[3] = (byte) (distance >> 8);
+        frame[4] = (byte) distance;
+        frame[5] = (byte) (speed >> 8);
+        frame[6] = (byte) speed;
+        frame[7] = (byte) (collision ? 1 : 0);
+        try {
+            link.write(frame, 0, frame.length);
+            synchronized (mLock) {
+                mTelemetrySamples++;
+            }
+        } catch (IOException e) {
+            // the link is gone, stop sending until the next hello
+            mTelemetryLink = null;
+        }
+    }
+
+    private void write(AccessoryLink link, byte[] buffer, int length) throws IOException {
+        link.write(buffer, 0, length);
+        synchronized (mLock) {
+            mAcks++;
+        }
+    }
+
+    /**
+     * Wait for the duration of a single loop
+     *
+     * @return False if interrupted
+     */
+    private boolean pause() {
+        long delay = mLoopDelayNanos;
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * The ultrasonic sensor in front of the car
+     */
+    public interface DistanceSensor {
+        /**
+         * @return The distance from the nearest object in front of the car, in cm
+         */
+        float getDistance();
+    }
+
+    /**
+     * Listener for what the simulated board does
+     */
+    public interface Listener {
+        /**
+         * Callback invoked whenever the values driving the motors change
+         *
+         * @param throttle Between -255 and 255
+         * @param turn     Between -255 and 255
+         * @param standby
+         */
+        void onControlChanged(int throttle, int turn, boolean standby);
+
+        /**
+         * Callback invoked on every distance sample
+         *
+         * @param distance  In cm
+         * @param speed     The change in distance, in cm per second
+         * @param collision Whether the car was stopped to avoid a collision
+         */
+        void onDistanceSample(float distance, float speed, boolean collision);
+    }
+}
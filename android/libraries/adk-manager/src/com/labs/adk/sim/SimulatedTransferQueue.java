@@ -0,0 +1,257 @@
+package com.labs.adk.sim;
+
+import com.labs.adk.link.UsbTransferQueue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * JVM stand-in for the USB layer under a {@link com.labs.adk.link.UsbHostLink}: a device that echoes every OUT
+ * transfer back in IN transfers. <br/>
+ * Transfers in each direction go over the bus one after the other at a limited bandwidth, and every transfer
+ * completes a fixed latency after it has left the bus. Echoed bytes are ready once their OUT transfer completes and
+ * fill the IN transfers in the order they were queued, which completes them another latency later. A round trip thus
+ * takes twice the latency plus the time on the bus. <br/>
+ * Meant for benchmarks and tests off the device
+ *
+ * @author Amir Lazarovich
+ */
+public class SimulatedTransferQueue implements UsbTransferQueue {
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final int mDepth;
+    private final long mLatency; // in nanoseconds
+    private final long mBytesPerSecond;
+    private final ByteBuffer[] mBuffers;
+    private final int[] mLengths;
+    private final ReentrantLock mLock;
+    private final Condition mChanged;
+
+    // member-bus: guarded by mLock
+    private final PriorityQueue<Completion> mCompletions;
+    private final ArrayDeque<Integer> mWaitingIn;
+    private final ArrayDeque<Echo> mEchoes;
+    private long mOutFreeAt;
+    private long mInFreeAt;
+    private boolean mClosed;
+
+    // member-statistics
+    private long mTransfers;
+    private long mBytes;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param depth          The number of transfers that may be queued in each direction
+     * @param latency        Added to every transfer
+     * @param unit           The unit of <code>latency</code>
+     * @param bytesPerSecond The bandwidth of each direction, or 0 for unlimited
+     */
+    public SimulatedTransferQueue(int depth, long latency, TimeUnit unit, long bytesPerSecond) {
+        mDepth = depth;
+        mLatency = unit.toNanos(latency);
+        mBytesPerSecond = bytesPerSecond;
+        mBuffers = new ByteBuffer[2 * depth];
+        mLengths = new int[2 * depth];
+        mLock = new ReentrantLock();
+        mChanged = mLock.newCondition();
+        mCompletions = new PriorityQueue<Completion>();
+        mWaitingIn = new ArrayDeque<Integer>();
+        mEchoes = new ArrayDeque<Echo>();
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public boolean queue(int transfer, ByteBuffer buffer, int length) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+
+            mBuffers[transfer] = buffer;
+            mLengths[transfer] = length;
+            if (transfer < mDepth) {
+                mWaitingIn.add(transfer);
+            } else {
+                byte[] data = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    data[i] = buffer.get(i);
+                }
+
+                mOutFreeAt = Math.max(System.nanoTime(), mOutFreeAt) + transmitTime(length);
+                long completesAt = mOutFreeAt + mLatency;
+                buffer.position(length);
+                mCompletions.add(new Completion(completesAt, transfer));
+                mEchoes.add(new Echo(completesAt, data));
+            }
+
+            fillIn();
+            mChanged.signalAll();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int awaitCompletion() {
+        mLock.lock();
+        try {
+            while (!mClosed) {
+                Completion next = mCompletions.peek();
+                if (next == null) {
+                    mChanged.awaitUninterruptibly();
+                    continue;
+                }
+
+                long remaining = next.mAt - System.nanoTime();
+                if (remaining > 0) {
+                    try {
+                        mChanged.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                    continue;
+                }
+
+                mCompletions.poll();
+                mTransfers++;
+                mBytes += mBuffers[next.mTransfer].position();
+                return next.mTransfer;
+            }
+
+            return -1;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mCompletions.clear();
+            mWaitingIn.clear();
+            mEchoes.clear();
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the number of transfers completed in both directions
+     *
+     * @return
+     */
+    public long getTransferCount() {
+        mLock.lock();
+        try {
+            return mTransfers;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes carried by completed transfers in both directions
+     *
+     * @return
+     */
+    public long getByteCount() {
+        mLock.lock();
+        try {
+            return mBytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Get the time <code>length</code> bytes spend on the bus
+     *
+     * @param length
+     * @return The time in nanoseconds
+     */
+    private long transmitTime(int length) {
+        return (mBytesPerSecond > 0) ? length * 1000000000L / mBytesPerSecond : 0;
+    }
+
+    /**
+     * Move echoed bytes into waiting IN transfers, one echo per transfer. An echo larger than the transfer is split
+     */
+    private void fillIn() {
+        while (!mWaitingIn.isEmpty() && !mEchoes.isEmpty()) {
+            int transfer = mWaitingIn.poll();
+            Echo echo = mEchoes.peek();
+            ByteBuffer buffer = mBuffers[transfer];
+            int count = Math.min(mLengths[transfer], echo.mData.length - echo.mConsumed);
+            buffer.clear();
+            buffer.put(echo.mData, echo.mConsumed, count);
+            echo.mConsumed += count;
+            if (echo.mConsumed == echo.mData.length) {
+                mEchoes.poll();
+            }
+
+            // the device can't send the echo before it got it
+            mInFreeAt = Math.max(echo.mReadyAt, mInFreeAt) + transmitTime(count);
+            mCompletions.add(new Completion(mInFreeAt + mLatency, transfer));
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    private static class Completion implements Comparable<Completion> {
+        private final long mAt;
+        private final int mTransfer;
+
+        Completion(long at, int transfer) {
+            mAt = at;
+            mTransfer = transfer;
+        }
+
+        @Override
+        public int compareTo(Completion other) {
+            return (mAt < other.mAt) ? -1 : ((mAt == other.mAt) ? 0 : 1);
+        }
+    }
+
+    private static class Echo {
+        private final long mReadyAt;
+        private final byte[] mData;
+        private int mConsumed;
+
+        Echo(long readyAt, byte[] data) {
+            mReadyAt = readyAt;
+            mData = data;
+        }
+    }
+}
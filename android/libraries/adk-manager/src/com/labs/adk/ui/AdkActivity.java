@@ -1,9 +1,12 @@
 package com.labs.adk.ui;
 
 import android.app.Activity;
+import android.content.Intent;
 import android.os.Bundle;
+import com.android.future.usb.UsbManager;
 import com.labs.adk.ADKManager;
 import com.labs.adk.Callback;
+import com.labs.adk.Capabilities;
 
 /**
  * Abstract base class for screens that communicate with an ADK device
@@ -29,6 +32,7 @@ public abstract class AdkActivity extends Activity implements Callback {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mADKManager = new ADKManager(this, this);
+        mADKManager.setAckCoalescing(ADKManager.FRAME_INTERVAL);
     }
 
     @Override
@@ -39,6 +43,14 @@ public abstract class AdkActivity extends Activity implements Callback {
         }
     }
 
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        if (UsbManager.ACTION_USB_ACCESSORY_ATTACHED.equals(intent.getAction())) {
+            mADKManager.onAccessoryAttached();
+        }
+    }
+
     @Override
     public void onPause() {
         super.onPause();
@@ -62,6 +74,31 @@ public abstract class AdkActivity extends Activity implements Callback {
         mADKManager.sendCommand(command, action, data);
     }
 
+    /**
+     * Send command carrying two data bytes to the ADK, without allocating
+     *
+     * @param command
+     * @param action
+     * @param b0
+     * @param b1
+     */
+    protected final void sendCommand(byte command, byte action, byte b0, byte b1) {
+        onSendCommand();
+        mADKManager.sendCommand(command, action, b0, b1);
+    }
+
+    /**
+     * Send an urgent command to the ADK, such as stopping the motors. It's written before any pending command
+     *
+     * @param command
+     * @param action
+     * @param data
+     */
+    protected final void sendUrgentCommand(byte command, byte action, byte[] data) {
+        onSendCommand();
+        mADKManager.sendUrgentCommand(command, action, data);
+    }
+
     /**
      * Fired before sending a command to the ADK.<br/>
      * Override this method in order to handle all requests to communicate with the ADK device in a centralized place.
@@ -89,6 +126,18 @@ public abstract class AdkActivity extends Activity implements Callback {
 
     }
 
+    /**
+     * Acks are coalesced to one per frame, only the last one is passed on to {@link #onAckReceived(boolean)}
+     *
+     * @param lastAck
+     * @param acks
+     * @param nacks
+     */
+    @Override
+    public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        onAckReceived(lastAck);
+    }
+
     @Override
     public void onConnected() {
 
@@ -98,4 +147,9 @@ public abstract class AdkActivity extends Activity implements Callback {
     public void onDisconnected() {
 
     }
+
+    @Override
+    public void onCapabilitiesNegotiated(Capabilities capabilities) {
+
+    }
 }
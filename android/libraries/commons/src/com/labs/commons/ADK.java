@@ -8,13 +8,53 @@ public class ADK {
     // Constants
     ///////////////////////////////////////////////
 
+    // adk-framing: [command - 1 byte][action - 1 byte][data length - 1 byte][data - X bytes]
+    public static final int HEADER_SIZE = 3;
+    public static final int MAX_FRAME_SIZE = 16; // the accessory reads BUFFER_SIZE (16) bytes at a time
+    public static final int MAX_DATA_LENGTH = MAX_FRAME_SIZE - HEADER_SIZE - 1; // leaves room for a sequence number
+
+    // adk-protocol: the version announced in the handshake. Firmware that doesn't answer the handshake is version 0
+    public static final int PROTOCOL_VERSION = 1;
+
+    // adk-flags: set on the command of a frame whose last data byte is a sequence number the accessory should ack
+    public static final byte FLAG_SEQUENCED = 0x40;
+
     // adk-commands
     public static final byte COMMAND_CONTROL = 1;
+    // sent once per connection: [protocol version][capabilities][requested telemetry rate in Hz]
+    public static final byte COMMAND_HELLO = 2;
+
+    // adk-commands sent by the accessory. These always have the high bit set; any other byte found where a frame
+    // should start is a legacy single-byte ack
+    public static final byte COMMAND_ACK = (byte) 0x80;
+    // the answer to COMMAND_HELLO: [protocol version][read buffer size][capabilities][telemetry rate in Hz]
+    public static final byte COMMAND_CAPABILITIES = (byte) 0x81;
+    // sent at the telemetry rate agreed on in the handshake
+    public static final byte COMMAND_TELEMETRY = (byte) 0x82;
 
     // adk-actions
     public static final byte ACTION_LEFT_STICK = 1;
     public static final byte ACTION_RIGHT_STICK = 2;
     public static final byte ACTION_STANDBY = 3;
+    // both axes in one frame: [throttle][turn], optionally followed by [standby]
+    public static final byte ACTION_DRIVE = 4;
+
+    // adk-actions of COMMAND_ACK. The data holds the sequence number of the acknowledged frame
+    public static final byte ACTION_ACK = 1;
+
+    // adk-actions of COMMAND_HELLO and COMMAND_CAPABILITIES
+    public static final byte ACTION_HELLO = 1;
+
+    // adk-actions of COMMAND_TELEMETRY
+    // [distance in mm - 2 bytes][speed in cm/s, signed - 2 bytes][collision - 1 byte]
+    public static final byte ACTION_DISTANCE = 1;
+    public static final int TELEMETRY_DISTANCE_LENGTH = 5;
+
+    // adk-capabilities: flags exchanged in the handshake
+    public static final int CAPABILITY_SEQUENCED_ACKS = 0x01;
+    public static final int CAPABILITY_DUAL_AXIS = 0x02;
+    public static final int CAPABILITY_BATCHING = 0x04;
+    public static final int CAPABILITY_TELEMETRY = 0x08;
 
 
     ///////////////////////////////////////////////
@@ -25,11 +65,33 @@ public class ADK {
             case COMMAND_CONTROL:
                 return "Control";
 
+            case COMMAND_HELLO:
+                return "Hello";
+
+            case COMMAND_ACK:
+                return "Ack";
+
+            case COMMAND_CAPABILITIES:
+                return "Capabilities";
+
+            case COMMAND_TELEMETRY:
+                return "Telemetry";
+
             default:
                 return "Unknown";
         }
     }
 
+    /**
+     * Check whether <code>command</code> belongs to the accessory-to-device direction
+     *
+     * @param command
+     * @return
+     */
+    public static boolean isAccessoryCommand(byte command) {
+        return (command & 0x80) != 0;
+    }
+
     public static String parseAction(byte action) {
         switch (action) {
             case ACTION_LEFT_STICK:
@@ -41,6 +103,9 @@ public class ADK {
             case ACTION_STANDBY:
                 return "Standby";
 
+            case ACTION_DRIVE:
+                return "Drive";
+
             default:
                 return "Unknown";
         }
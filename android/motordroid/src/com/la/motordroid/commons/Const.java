@@ -2,8 +2,10 @@ package com.la.motordroid.commons;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import com.la.motordroid.BuildConfig;
 import com.la.motordroid.R;
 import com.la.motordroid.ui.SettingsActivity;
 import com.labs.commons.SLog;
@@ -16,11 +18,21 @@ public class Const {
     // Constants
     ///////////////////////////////////////////////
     private static final String TAG = "Const";
+    private static final int DEFAULT_TELEMETRY_RATE = 2; // in Hz
+    private static final int DEFAULT_CONTROL_LOOP_RATE = 0; // off
+    private static final int DEFAULT_STREAM_RATE = 0; // off
+    public static final String LINK_MODE_ACCESSORY = "accessory";
+    public static final String LINK_MODE_HOST = "host";
 
     ///////////////////////////////////////////////
     // Members
     ///////////////////////////////////////////////
     public String SERVER_ADDRESS;
+    public boolean DUAL_AXIS_CONTROL;
+    public int TELEMETRY_RATE;
+    public int CONTROL_LOOP_RATE;
+    public String LINK_MODE;
+    public int STREAM_RATE;
 
     ///////////////////////////////////////////////
     // Constructors
@@ -33,7 +45,85 @@ public class Const {
         }
 
         SERVER_ADDRESS = serverAddress;
+        DUAL_AXIS_CONTROL = sharedPref.getBoolean(SettingsActivity.KEY_DUAL_AXIS_CONTROL, false);
+        TELEMETRY_RATE = parseTelemetryRate(sharedPref.getString(SettingsActivity.KEY_TELEMETRY_RATE, null));
+        CONTROL_LOOP_RATE = parseControlLoopRate(sharedPref.getString(SettingsActivity.KEY_CONTROL_LOOP_RATE, null));
+        LINK_MODE = parseLinkMode(sharedPref.getString(SettingsActivity.KEY_LINK_MODE, null));
+        STREAM_RATE = parseStreamRate(sharedPref.getString(SettingsActivity.KEY_STREAM_RATE, null));
 
         SLog.i(TAG, "Server address: %s", serverAddress);
     }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Parse the telemetry rate preference, which is stored as a string
+     *
+     * @param value
+     * @return The number of telemetry batches sent to the server per second, 0 for none
+     */
+    public static int parseTelemetryRate(String value) {
+        return parseRate(value, DEFAULT_TELEMETRY_RATE);
+    }
+
+    /**
+     * Parse the control loop rate preference, which is stored as a string
+     *
+     * @param value
+     * @return The number of times per second the control state is written to the ADK, 0 for no control loop
+     */
+    public static int parseControlLoopRate(String value) {
+        return parseRate(value, DEFAULT_CONTROL_LOOP_RATE);
+    }
+
+    /**
+     * Parse the camera stream rate preference, which is stored as a string
+     *
+     * @param value
+     * @return The target number of frames streamed to the server per second, 0 for no stream
+     */
+    public static int parseStreamRate(String value) {
+        return parseRate(value, DEFAULT_STREAM_RATE);
+    }
+
+    /**
+     * Parse the link mode preference. Host mode is only available in debug builds: the firmware doesn't serve frames
+     * on the board's USB serial port yet, and its debug output there would be taken for acks. It also needs API
+     * level 12, older devices stay with the accessory mode
+     *
+     * @param value
+     * @return {@link #LINK_MODE_ACCESSORY} or {@link #LINK_MODE_HOST}
+     */
+    public static String parseLinkMode(String value) {
+        if (LINK_MODE_HOST.equals(value)) {
+            if (!BuildConfig.DEBUG) {
+                SLog.w(TAG, "USB host mode is only available in debug builds");
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+                return LINK_MODE_HOST;
+            }
+
+            SLog.w(TAG, "USB host mode isn't supported before API level 12");
+        }
+
+        return LINK_MODE_ACCESSORY;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    private static int parseRate(String value, int defaultRate) {
+        if (TextUtils.isEmpty(value)) {
+            return defaultRate;
+        }
+
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            SLog.w(TAG, "Invalid rate: %s", value);
+            return defaultRate;
+        }
+    }
 }
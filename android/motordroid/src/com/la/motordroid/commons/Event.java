@@ -1,32 +1,55 @@
 package com.la.motordroid.commons;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
 * @author Amir Lazarovich
 */
 public enum Event {
     CONTROL("control"),
     FUNCTION("function"),
+    FRAME("frame"),
     KEEP_ALIVE("keep_alive"),
+    TELEMETRY("telemetry"),
     UNKNOWN("");
 
+    private static final Map<String, Event> sByValue = new HashMap<String, Event>();
+
+    static {
+        for (Event candidate : values()) {
+            if (candidate != UNKNOWN) {
+                sByValue.put(candidate.mValue, candidate);
+            }
+        }
+    }
+
     private String mValue;
 
     Event(String value) {
         mValue = value;
     }
 
+    /**
+     * Get the constant the given value stands for. Values are matched exactly first, and case-insensitively only if
+     * that fails
+     *
+     * @param value
+     * @return The constant, or {@link #UNKNOWN}
+     */
     public static Event getByValue(String value) {
-        Event event = UNKNOWN;
-        for (Event candidate : values()) {
-            if (candidate.mValue.equalsIgnoreCase(value)) {
-                event = candidate;
-                break;
-            }
+        if (value == null) {
+            return UNKNOWN;
         }
 
-        return event;
-    }
+        Event event = sByValue.get(value);
+        if (event == null) {
+            event = sByValue.get(value.toLowerCase(Locale.US));
+        }
 
+        return (event != null) ? event : UNKNOWN;
+    }
 
     public String getValue() {
         return mValue;
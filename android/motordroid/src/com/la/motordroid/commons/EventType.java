@@ -1,11 +1,16 @@
 package com.la.motordroid.commons;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
 * @author Amir Lazarovich
 */
 public enum EventType {
     LEFT_STICK("left_stick"),
     RIGHT_STICK("right_stick"),
+    STANDBY("standby"),
     POWER("power"),
     TAKE_PICTURE("take_picture"),
     TOGGLE_MUSIC("toggle_music"),
@@ -13,24 +18,41 @@ public enum EventType {
     UNKNOWN("");
 
 
+    private static final Map<String, EventType> sByValue = new HashMap<String, EventType>();
+
+    static {
+        for (EventType candidate : values()) {
+            if (candidate != UNKNOWN) {
+                sByValue.put(candidate.mValue, candidate);
+            }
+        }
+    }
+
     private String mValue;
 
     EventType(String value) {
         mValue = value;
     }
 
+    /**
+     * Get the constant the given value stands for. Values are matched exactly first, and case-insensitively only if
+     * that fails
+     *
+     * @param value
+     * @return The constant, or {@link #UNKNOWN}
+     */
     public static EventType getByValue(String value) {
-        EventType event = UNKNOWN;
-        for (EventType candidate : values()) {
-            if (candidate.mValue.equalsIgnoreCase(value)) {
-                event = candidate;
-                break;
-            }
+        if (value == null) {
+            return UNKNOWN;
         }
 
-        return event;
-    }
+        EventType eventType = sByValue.get(value);
+        if (eventType == null) {
+            eventType = sByValue.get(value.toLowerCase(Locale.US));
+        }
 
+        return (eventType != null) ? eventType : UNKNOWN;
+    }
 
     public String getValue() {
         return mValue;
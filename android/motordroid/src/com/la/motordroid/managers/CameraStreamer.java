@@ -0,0 +1,621 @@
+package com.la.motordroid.managers;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
+import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import com.labs.adk.LatencyHistogram;
+import com.labs.commons.SLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the camera and streams its preview as a sequence of JPEG frames. <br/>
+ * The camera is opened on a thread of its own, so preview and picture callbacks arrive on that thread's looper rather
+ * than the UI thread's, and every call to the camera is made on that thread. <br/>
+ * Preview frames are captured into {@link #BUFFER_COUNT} buffers allocated up front, see
+ * {@link Camera#setPreviewCallbackWithBuffer(Camera.PreviewCallback)}, and handed through a queue to an encoder
+ * thread. Only the latest frame waits in the queue: a newer frame replaces it, and frames that come sooner than the
+ * target frame rate allows are skipped. The encoder hands the buffers it's done with back through another queue, and
+ * they're given back to the camera with the next preview frame. A single frame is on its way to the server at a time;
+ * the next one is encoded once the {@link Sink} reports the previous one delivered, or after
+ * {@link #DELIVERY_TIMEOUT}. <br/>
+ * The latency recorded for every frame is the time from its capture until its delivery was reported. <br/>
+ * Needs API level 11 for a preview without a surface on screen
+ *
+ * @author Amir Lazarovich
+ */
+public class CameraStreamer implements Camera.PreviewCallback {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "CameraStreamer";
+    private static final int BUFFER_COUNT = 3;
+    private static final int PREFERRED_WIDTH = 640;
+    private static final int PREFERRED_HEIGHT = 480;
+    private static final long DELIVERY_TIMEOUT = 1000; // in milliseconds
+    public static final int JPEG_QUALITY = 50;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Camera mCamera;
+    private final Handler mCameraHandler;
+    private final Sink mSink;
+    private final Object[] mLock;
+
+    // member-queues: the latest frame waiting for the encoder, and the buffers it's done with
+    private final BlockingQueue<Frame> mFrames;
+    private final BlockingQueue<byte[]> mEncodedBuffers;
+
+    // member-camera: only touched on the camera thread
+    private Object mPreviewTexture; // a SurfaceTexture, kept as an Object so that the class loads before API level 11
+    private Frame[] mBuffers; // those of the current stream
+    private long mPeriodNanos;
+    private long mLastAcceptedAt;
+
+    // member-stream: guarded by mLock
+    private boolean mStreaming;
+    private Thread mEncoder;
+    private int mWidth;
+    private int mHeight;
+    private int mSequence;
+    private int mInFlight = -1;
+    private long mInFlightCapturedAt;
+    private long mInFlightSentAt;
+
+    // member-statistics
+    private final LatencyHistogram mLatency;
+    private final LatencyHistogram mEncodeTime;
+    private volatile long mCaptured;
+    private volatile long mSkipped;
+    private volatile long mReplaced;
+    private volatile long mSent;
+    private volatile long mDelivered;
+    private volatile long mLost;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * Open the camera on a thread of its own. Blocks until it's open
+     *
+     * @param sink Where encoded frames are sent
+     * @throws RuntimeException if the camera couldn't be opened, see {@link Camera#open()}
+     */
+    public CameraStreamer(Sink sink) {
+        HandlerThread cameraThread = new HandlerThread(TAG + "-camera");
+        cameraThread.start();
+        mCameraHandler = new Handler(cameraThread.getLooper());
+        mCamera = openCamera(mCameraHandler);
+        mSink = sink;
+        mLock = new Object[0];
+        mFrames = new ArrayBlockingQueue<Frame>(1);
+        mEncodedBuffers = new ArrayBlockingQueue<byte[]>(BUFFER_COUNT);
+        mLatency = new LatencyHistogram();
+        mEncodeTime = new LatencyHistogram();
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Start streaming, replacing any previous stream. Also restarts the preview after a picture was taken. Returns
+     * right away, the camera is started on its thread
+     *
+     * @param frameRate The target number of frames per second, 0 to stop streaming
+     */
+    public void start(final int frameRate) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startStream(frameRate);
+            }
+        });
+    }
+
+    /**
+     * Stop streaming. Returns right away, the camera is stopped on its thread
+     */
+    public void stop() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopStream();
+            }
+        });
+    }
+
+    /**
+     * Take a picture on the camera thread, where its callbacks are invoked too. Stops the preview, see
+     * {@link #start(int)}
+     *
+     * @param shutter
+     * @param raw
+     * @param jpeg
+     */
+    public void takePicture(final Camera.ShutterCallback shutter, final Camera.PictureCallback raw,
+                            final Camera.PictureCallback jpeg) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCamera.takePicture(shutter, raw, null, jpeg);
+                } catch (RuntimeException e) {
+                    // e.g. the previous picture is still being taken
+                    SLog.e(TAG, "Couldn't take picture", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Notify that a frame reached its destination, so that the next one may be sent
+     *
+     * @param sequence The frame's sequence number, as given to the {@link Sink}
+     */
+    public void onFrameDelivered(int sequence) {
+        long latency;
+        synchronized (mLock) {
+            if (sequence != mInFlight) {
+                // a frame that was already given up on
+                return;
+            }
+
+            mInFlight = -1;
+            latency = System.nanoTime() - mInFlightCapturedAt;
+            mLock.notifyAll();
+        }
+
+        mDelivered++;
+        mLatency.record(latency);
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    /**
+     * Hand the frame over to the encoder, or give its buffer back to the camera right away if it isn't wanted.
+     * Invoked on the camera thread, which is also where the buffers the encoder is done with are given back
+     *
+     * @param data
+     * @param camera
+     */
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            return;
+        }
+
+        byte[] encoded;
+        while ((encoded = mEncodedBuffers.poll()) != null) {
+            if (find(encoded) != null) {
+                camera.addCallbackBuffer(encoded);
+            }
+        }
+
+        Frame frame = find(data);
+        if (frame == null) {
+            // a buffer of a previous stream
+            return;
+        }
+
+        mCaptured++;
+        long now = System.nanoTime();
+        if (mLastAcceptedAt != 0 && now - mLastAcceptedAt < mPeriodNanos) {
+            mSkipped++;
+            camera.addCallbackBuffer(data);
+            return;
+        }
+
+        mLastAcceptedAt = now;
+        frame.mCapturedAt = now;
+        Frame replaced = mFrames.poll();
+        if (replaced != null) {
+            mReplaced++;
+            camera.addCallbackBuffer(replaced.mData);
+        }
+
+        mFrames.offer(frame);
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public boolean isStreaming() {
+        synchronized (mLock) {
+            return mStreaming;
+        }
+    }
+
+    /**
+     * Get the camera, e.g. to set its parameters before streaming. Its callbacks are invoked on the camera thread
+     *
+     * @return
+     */
+    public Camera getCamera() {
+        return mCamera;
+    }
+
+    /**
+     * Get the times from capturing frames until their delivery was reported, in nanoseconds
+     *
+     * @return
+     */
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Get the times it took to encode frames to JPEG, in nanoseconds
+     *
+     * @return
+     */
+    public LatencyHistogram getEncodeTime() {
+        return mEncodeTime;
+    }
+
+    public long getCapturedCount() {
+        return mCaptured;
+    }
+
+    /**
+     * Get the number of frames skipped to keep to the target frame rate
+     *
+     * @return
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    /**
+     * Get the number of frames replaced by a newer one before they were encoded
+     *
+     * @return
+     */
+    public long getReplacedCount() {
+        return mReplaced;
+    }
+
+    public long getSentCount() {
+        return mSent;
+    }
+
+    public long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /**
+     * Get the number of frames whose delivery wasn't reported within {@link #DELIVERY_TIMEOUT}
+     *
+     * @return
+     */
+    public long getLostCount() {
+        return mLost;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Open the camera on the thread of <code>handler</code>, so that its callbacks are invoked on that thread
+     *
+     * @param handler
+     * @return
+     */
+    private static Camera openCamera(Handler handler) {
+        final Camera[] camera = new Camera[1];
+        final RuntimeException[] failure = new RuntimeException[1];
+        final CountDownLatch opened = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    camera[0] = Camera.open();
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                } finally {
+                    opened.countDown();
+                }
+            }
+        });
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                opened.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure[0] != null) {
+            handler.getLooper().quit();
+            throw failure[0];
+        }
+
+        return camera[0];
+    }
+
+    /**
+     * Start streaming on the camera thread, see {@link #start(int)}
+     *
+     * @param frameRate
+     */
+    private void startStream(int frameRate) {
+        stopStream();
+        if (frameRate <= 0) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            SLog.w(TAG, "Streaming isn't supported before API level 11");
+            return;
+        }
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        Camera.Size size = chooseSize(parameters.getSupportedPreviewSizes());
+        if (size != null) {
+            parameters.setPreviewSize(size.width, size.height);
+        }
+        parameters.setPreviewFormat(ImageFormat.NV21);
+        mCamera.setParameters(parameters);
+
+        Camera.Size previewSize = mCamera.getParameters().getPreviewSize();
+        int bufferSize = previewSize.width * previewSize.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        try {
+            SurfaceTexture texture = new SurfaceTexture(0);
+            mCamera.setPreviewTexture(texture);
+            mPreviewTexture = texture;
+        } catch (IOException e) {
+            SLog.e(TAG, "Couldn't set the preview texture", e);
+            return;
+        }
+
+        mBuffers = new Frame[BUFFER_COUNT];
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mBuffers[i] = new Frame(bufferSize);
+            mCamera.addCallbackBuffer(mBuffers[i].mData);
+        }
+
+        mPeriodNanos = TimeUnit.SECONDS.toNanos(1) / frameRate;
+        mLastAcceptedAt = 0;
+        Thread encoder = new Thread(null, new Encoder(), TAG + "-encoder");
+        encoder.setDaemon(true);
+        synchronized (mLock) {
+            mStreaming = true;
+            mEncoder = encoder;
+            mWidth = previewSize.width;
+            mHeight = previewSize.height;
+            mInFlight = -1;
+        }
+
+        mCamera.setPreviewCallbackWithBuffer(this);
+        mCamera.startPreview();
+        encoder.start();
+        SLog.d(TAG, "Streaming %dx%d at %d fps", previewSize.width, previewSize.height, frameRate);
+    }
+
+    /**
+     * Stop streaming on the camera thread, see {@link #stop()}
+     */
+    private void stopStream() {
+        Thread encoder;
+        synchronized (mLock) {
+            if (!mStreaming) {
+                return;
+            }
+
+            mStreaming = false;
+            encoder = mEncoder;
+            mEncoder = null;
+            mLock.notifyAll();
+        }
+
+        encoder.interrupt();
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mCamera.stopPreview();
+        if (mPreviewTexture != null) {
+            ((SurfaceTexture) mPreviewTexture).release();
+            mPreviewTexture = null;
+        }
+
+        // buffers the encoder still holds come back later, and are told apart from those of the next stream
+        mBuffers = null;
+        mFrames.clear();
+        mEncodedBuffers.clear();
+    }
+
+    /**
+     * Find the frame of a buffer of the current stream
+     *
+     * @param data
+     * @return The frame, or null if <code>data</code> belongs to a previous stream
+     */
+    private Frame find(byte[] data) {
+        Frame[] buffers = mBuffers;
+        if (buffers == null) {
+            return null;
+        }
+
+        for (Frame buffer : buffers) {
+            if (buffer.mData == data) {
+                return buffer;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Choose the supported preview size closest in area to {@link #PREFERRED_WIDTH} x {@link #PREFERRED_HEIGHT}
+     *
+     * @param sizes
+     * @return The size, or null if none is given
+     */
+    private static Camera.Size chooseSize(List<Camera.Size> sizes) {
+        if (sizes == null) {
+            return null;
+        }
+
+        Camera.Size chosen = null;
+        long chosenDistance = Long.MAX_VALUE;
+        for (Camera.Size size : sizes) {
+            long distance = Math.abs((long) size.width * size.height - PREFERRED_WIDTH * PREFERRED_HEIGHT);
+            if (distance < chosenDistance) {
+                chosen = size;
+                chosenDistance = distance;
+            }
+        }
+
+        return chosen;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    public interface Sink {
+        /**
+         * Send an encoded frame. {@link #onFrameDelivered(int)} is expected once it reached its destination
+         *
+         * @param sequence The frame's sequence number
+         * @param jpeg     Holds the frame in its first <code>length</code> bytes, valid only during this call
+         * @param length
+         * @return False if the frame couldn't be sent, so that the next one doesn't wait for it
+         */
+        boolean onFrame(int sequence, byte[] jpeg, int length);
+    }
+
+    /**
+     * A preview buffer and the time the frame in it was captured at
+     */
+    private static class Frame {
+        private final byte[] mData;
+        private long mCapturedAt; // written on the camera thread before the frame is queued
+
+        Frame(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose buffer is read in place
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(64 * 1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Takes the latest frame out of the queue once the previous one was delivered, encodes and sends it
+     */
+    private class Encoder implements Runnable {
+        private final FrameBuffer mJpeg = new FrameBuffer();
+        private final Rect mRect = new Rect();
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            long timeout = TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT);
+            while (true) {
+                synchronized (mLock) {
+                    while (true) {
+                        if (mEncoder != thread) {
+                            return;
+                        }
+
+                        long waitFor = 0;
+                        if (mInFlight >= 0) {
+                            waitFor = mInFlightSentAt + timeout - System.nanoTime();
+                            if (waitFor <= 0) {
+                                mLost++;
+                                mInFlight = -1;
+                            }
+                        }
+
+                        if (mInFlight < 0) {
+                            break;
+                        }
+
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(mLock, waitFor);
+                        } catch (InterruptedException e) {
+                            // stopped, checked right above
+                        }
+                    }
+                }
+
+                Frame frame;
+                try {
+                    frame = mFrames.take();
+                } catch (InterruptedException e) {
+                    // stopped
+                    return;
+                }
+
+                int sequence;
+                int width;
+                int height;
+                synchronized (mLock) {
+                    if (mEncoder != thread) {
+                        return;
+                    }
+
+                    sequence = ++mSequence;
+                    mInFlight = sequence;
+                    mInFlightCapturedAt = frame.mCapturedAt;
+                    width = mWidth;
+                    height = mHeight;
+                }
+
+                long start = System.nanoTime();
+                mJpeg.reset();
+                mRect.set(0, 0, width, height);
+                boolean encoded = new YuvImage(frame.mData, ImageFormat.NV21, width, height, null)
+                        .compressToJpeg(mRect, JPEG_QUALITY, mJpeg);
+                // given back to the camera on its own thread, with the next preview frame
+                mEncodedBuffers.offer(frame.mData);
+                mEncodeTime.record(System.nanoTime() - start);
+
+                boolean sent = encoded && mSink.onFrame(sequence, mJpeg.getBuffer(), mJpeg.size());
+                synchronized (mLock) {
+                    if (sent) {
+                        mInFlightSentAt = System.nanoTime();
+                    } else if (mInFlight == sequence) {
+                        mInFlight = -1;
+                    }
+                }
+
+                if (sent) {
+                    mSent++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.la.motordroid.managers;
+
+import com.la.motordroid.commons.Event;
+import com.la.motordroid.commons.EventType;
+import com.labs.adk.ADKManager;
+import com.labs.commons.ADK;
+import com.labs.commons.SLog;
+
+/**
+ * Turns "control" events into ADK commands. <br/>
+ * Kept apart from {@link SocketManager} so that the control path doesn't depend on the socket, camera or media
+ * player, and can be driven off the device. <br/>
+ * The state of both sticks is tracked, so with {@link #setDualAxis(boolean)} every stick event is sent as a single
+ * {@link ADK#ACTION_DRIVE} frame carrying throttle and turn together. <br/>
+ * Putting the motors in standby, like dropping to zero throttle, is sent ahead of any pending command
+ *
+ * @author Amir Lazarovich
+ */
+public class ControlHandler implements EventDispatcher.Handler {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "ControlHandler";
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final ADKManager mADKManager;
+    private final Listener mListener;
+    private volatile boolean mDualAxis;
+
+    // member-sticks
+    private int mThrottle;
+    private int mTurn;
+    private boolean mStopped; // whether the last throttle sent was zero
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public ControlHandler(ADKManager adkManager, Listener listener) {
+        mADKManager = adkManager;
+        mListener = listener;
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Handle a "control" event
+     *
+     * @param eventType
+     * @param args      The event's arguments: [event type, first value, second value]
+     */
+    public void onControl(EventType eventType, Object[] args) {
+        if (args.length >= 3) {
+            // numbers arrive boxed as whatever the JSON parser chose, unboxed without going through strings
+            if (args[1] instanceof Number && args[2] instanceof Number) {
+                int firstValue = ((Number) args[1]).intValue();
+                int secondValue = ((Number) args[2]).intValue();
+                SLog.i(TAG, "Control:: [%s], firstValue: %s, secondValue: %s", eventType.getValue(), firstValue, secondValue);
+                onControlAction(eventType, firstValue, secondValue);
+            } else {
+                SLog.w(TAG, "Missing either firstValue or secondValue to process command Control");
+            }
+        } else {
+            SLog.w(TAG, "Missing either firstValue or secondValue to process command Control");
+        }
+    }
+
+    /**
+     * Handle actions directed to the motors
+     *
+     * @param eventType
+     * @param firstValue
+     * @param secondValue
+     */
+    public void onControlAction(EventType eventType, int firstValue, int secondValue) {
+        switch (eventType) {
+            case LEFT_STICK:
+                mThrottle = firstValue;
+                if (mDualAxis) {
+                    sendDrive();
+                } else if (isStopping()) {
+                    // zero throttle stops the car, it mustn't wait behind queued stick updates
+                    sendUrgentCommand(ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, (byte) firstValue, (byte) secondValue);
+                } else {
+                    sendCommand(ADK.COMMAND_CONTROL, ADK.ACTION_LEFT_STICK, (byte) firstValue, (byte) secondValue);
+                }
+                break;
+
+            case RIGHT_STICK:
+                mTurn = secondValue;
+                if (mDualAxis) {
+                    sendDrive();
+                } else {
+                    sendCommand(ADK.COMMAND_CONTROL, ADK.ACTION_RIGHT_STICK, (byte) firstValue, (byte) secondValue);
+                }
+                break;
+
+            case STANDBY:
+                setStandby(firstValue != 0);
+                break;
+
+            default:
+                SLog.w(TAG, "Unknown event type detected: %s", eventType);
+        }
+    }
+
+    /**
+     * Put the motors in standby, or take them out of it
+     *
+     * @param standby
+     */
+    public void setStandby(boolean standby) {
+        sendUrgentCommand(ADK.COMMAND_CONTROL, ADK.ACTION_STANDBY, (byte) (standby ? 1 : 0), (byte) 0);
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    @Override
+    public void onEvent(Event event, EventType eventType, Object[] args) {
+        onControl(eventType, args);
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    /**
+     * Send both axes in a single {@link ADK#ACTION_DRIVE} frame instead of a frame per stick. <br/>
+     * Only enable this if the accessory's firmware understands {@link ADK#ACTION_DRIVE}
+     *
+     * @param dualAxis
+     */
+    public void setDualAxis(boolean dualAxis) {
+        mDualAxis = dualAxis;
+    }
+
+    public boolean isDualAxis() {
+        return mDualAxis;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Send the current state of both sticks. Pending drive frames are replaced rather than queued, so throttle and
+     * turn always reach the accessory together
+     */
+    private void sendDrive() {
+        if (isStopping()) {
+            // zero throttle stops the car, it mustn't wait behind queued stick updates
+            sendUrgentCommand(ADK.COMMAND_CONTROL, ADK.ACTION_DRIVE, (byte) mThrottle, (byte) mTurn);
+        } else {
+            sendCommand(ADK.COMMAND_CONTROL, ADK.ACTION_DRIVE, (byte) mThrottle, (byte) mTurn);
+        }
+    }
+
+    /**
+     * Check whether the throttle just dropped to zero. Only that update is urgent: once the car stopped, further
+     * updates at zero throttle, e.g. steering at standstill, are paced and flow-controlled like any other
+     *
+     * @return
+     */
+    private boolean isStopping() {
+        boolean stopped = mStopped;
+        mStopped = (mThrottle == 0);
+        return mStopped && !stopped;
+    }
+
+    /**
+     * Send command carrying two data bytes to the ADK
+     *
+     * @param command
+     * @param action
+     * @param firstValue
+     * @param secondValue
+     */
+    private void sendCommand(byte command, byte action, byte firstValue, byte secondValue) {
+        mADKManager.sendCommand(command, action, firstValue, secondValue);
+        mListener.onSentCommand(command, action, firstValue, secondValue);
+    }
+
+    /**
+     * Send urgent command carrying two data bytes to the ADK. It's written before any pending command
+     *
+     * @param command
+     * @param action
+     * @param firstValue
+     * @param secondValue
+     */
+    private void sendUrgentCommand(byte command, byte action, byte firstValue, byte secondValue) {
+        mADKManager.sendUrgentCommand(command, action, firstValue, secondValue);
+        mListener.onSentCommand(command, action, firstValue, secondValue);
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    public interface Listener {
+        /**
+         * Callback invoked after a command was handed to the ADK
+         *
+         * @param command
+         * @param action
+         * @param firstValue
+         * @param secondValue
+         */
+        void onSentCommand(byte command, byte action, byte firstValue, byte secondValue);
+    }
+}
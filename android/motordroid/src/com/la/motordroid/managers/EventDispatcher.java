@@ -0,0 +1,139 @@
+package com.la.motordroid.managers;
+
+import com.la.motordroid.commons.Event;
+import com.la.motordroid.commons.EventType;
+import com.labs.commons.SLog;
+
+/**
+ * Routes events received from the socket to the handler registered for their {@link Event} and {@link EventType}.
+ * <br/>
+ * Handlers are kept in a table indexed by both constants, so routing an event costs the two value lookups and an
+ * array access. Events nobody handles are only counted, they arrive at controller rates and logging each of them
+ * would cost more than handling it
+ *
+ * @author Amir Lazarovich
+ */
+public class EventDispatcher {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "EventDispatcher";
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Handler[][] mHandlers;
+
+    // member-statistics: written by the dispatching thread only
+    private volatile long mDispatched;
+    private volatile long mUnknownEvents;
+    private volatile long mUnhandled;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public EventDispatcher() {
+        mHandlers = new Handler[Event.values().length][EventType.values().length];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Handle events of the given event and type, replacing the handler registered for them, if any. Handlers are
+     * registered before events are dispatched, the table isn't guarded
+     *
+     * @param event
+     * @param eventType
+     * @param handler
+     */
+    public void register(Event event, EventType eventType, Handler handler) {
+        mHandlers[event.ordinal()][eventType.ordinal()] = handler;
+    }
+
+    /**
+     * Handle events of the given event whatever their type, including {@link EventType#UNKNOWN}. Handlers registered
+     * for a specific type are replaced
+     *
+     * @param event
+     * @param handler
+     */
+    public void register(Event event, Handler handler) {
+        for (EventType eventType : EventType.values()) {
+            mHandlers[event.ordinal()][eventType.ordinal()] = handler;
+        }
+    }
+
+    /**
+     * Route an event to its handler. Should be called from a single thread, e.g. the socket's
+     *
+     * @param rawEvent The event's name
+     * @param args     The event's arguments, the first of which is its type
+     * @return true if the event was handled
+     */
+    public boolean dispatch(String rawEvent, Object[] args) {
+        Event event = Event.getByValue(rawEvent);
+        if (event == Event.UNKNOWN) {
+            mUnknownEvents++;
+            SLog.d(TAG, "Unknown event received: %s", rawEvent);
+            return false;
+        }
+
+        EventType eventType = (args.length > 0 && args[0] instanceof String)
+                ? EventType.getByValue((String) args[0])
+                : EventType.UNKNOWN;
+        Handler handler = mHandlers[event.ordinal()][eventType.ordinal()];
+        if (handler == null) {
+            mUnhandled++;
+            SLog.d(TAG, "Unhandled event received: %s, %s", rawEvent, eventType);
+            return false;
+        }
+
+        mDispatched++;
+        handler.onEvent(event, eventType, args);
+        return true;
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public long getDispatchedCount() {
+        return mDispatched;
+    }
+
+    /**
+     * Get the number of events received whose name didn't match any {@link Event}
+     *
+     * @return
+     */
+    public long getUnknownEventCount() {
+        return mUnknownEvents;
+    }
+
+    /**
+     * Get the number of known events received that no handler was registered for
+     *
+     * @return
+     */
+    public long getUnhandledCount() {
+        return mUnhandled;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    public interface Handler {
+        /**
+         * Handle an event
+         *
+         * @param event
+         * @param eventType
+         * @param args      The event's arguments, the first of which is its type
+         */
+        void onEvent(Event event, EventType eventType, Object[] args);
+    }
+}
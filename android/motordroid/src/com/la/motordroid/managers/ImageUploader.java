@@ -0,0 +1,319 @@
+package com.la.motordroid.managers;
+
+import com.labs.adk.Backoff;
+import com.labs.adk.LatencyHistogram;
+import com.labs.commons.SLog;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads pictures to the server one after the other over a single persistent connection. <br/>
+ * Pictures wait in a bounded queue, a {@link Lane} of their own, so a burst of pictures never holds more than
+ * {@link #QUEUE_CAPACITY} of them in memory; once it's full the oldest waiting picture is dropped. The bytes are
+ * streamed from the picture's own array, without copying it. A failed upload is retried with a jittered
+ * exponential backoff, up to {@link #MAX_ATTEMPTS} times. Stopping the uploader cuts short a backoff and closes the
+ * connection, it may be started again afterwards over a new one. <br/>
+ * The time every upload took and the time from queuing a picture until it was uploaded are recorded, along with the
+ * number of bytes uploaded
+ *
+ * @author Amir Lazarovich
+ */
+public class ImageUploader {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "ImageUploader";
+    private static final String CONTENT_TYPE = "binary/octet-stream";
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_INITIAL_DELAY = 500; // in milliseconds
+    private static final long RETRY_MAX_DELAY = 8000; // in milliseconds
+    private static final int CONNECTION_TIMEOUT = 5000; // in milliseconds
+    private static final int SOCKET_TIMEOUT = 10000; // in milliseconds
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final Lane mLane;
+    private final HttpParams mParams;
+    private final Backoff mBackoff; // only used by the lane's thread
+    private volatile String mServerAddress;
+
+    // member-lifecycle: guarded by mLock, the client is created on start and shut down on stop
+    private final Object[] mLock = new Object[0];
+    private boolean mStarted;
+    private volatile DefaultHttpClient mClient;
+
+    // member-statistics: written by the lane's thread only
+    private final LatencyHistogram mUploadTime;
+    private final LatencyHistogram mLatency;
+    private volatile long mUploaded;
+    private volatile long mFailed;
+    private volatile long mRetries;
+    private volatile long mBytes;
+    private volatile long mTransferTime; // in nanoseconds, of the successful uploads
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param serverAddress Where pictures are posted to
+     */
+    public ImageUploader(String serverAddress) {
+        mServerAddress = serverAddress;
+        mLane = new Lane("upload", QUEUE_CAPACITY, Lane.Overflow.DROP_OLDEST, Thread.MIN_PRIORITY);
+        mBackoff = new Backoff(RETRY_INITIAL_DELAY, RETRY_MAX_DELAY);
+        mUploadTime = new LatencyHistogram();
+        mLatency = new LatencyHistogram();
+
+        mParams = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(mParams, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(mParams, SOCKET_TIMEOUT);
+        HttpConnectionParams.setTcpNoDelay(mParams, true);
+        // the server takes the body right away, waiting for it to say so would cost a round trip per picture
+        HttpProtocolParams.setUseExpectContinue(mParams, false);
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Start uploading over a new connection. Does nothing if already started
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted) {
+                return;
+            }
+
+            mStarted = true;
+            mClient = new DefaultHttpClient(mParams);
+            mLane.start();
+        }
+    }
+
+    /**
+     * Stop uploading and close the connection. Pictures still waiting are dropped, an upload waiting to be retried
+     * is given up on right away
+     */
+    public void stop() {
+        DefaultHttpClient client;
+        synchronized (mLock) {
+            if (!mStarted) {
+                return;
+            }
+
+            mStarted = false;
+            client = mClient;
+            mLane.stop();
+            // wake a backoff up
+            mLock.notifyAll();
+        }
+
+        // aborts an upload in progress as well
+        client.getConnectionManager().shutdown();
+    }
+
+    /**
+     * Queue a picture for upload. The array is uploaded as is, it mustn't be modified afterwards
+     *
+     * @param jpeg
+     * @return False if the picture was dropped because the uploader isn't started
+     */
+    public boolean upload(final byte[] jpeg) {
+        final long queuedAt = System.nanoTime();
+        return mLane.offer(new Runnable() {
+            @Override
+            public void run() {
+                if (send(jpeg)) {
+                    mLatency.record(System.nanoTime() - queuedAt);
+                }
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public void setServerAddress(String serverAddress) {
+        mServerAddress = serverAddress;
+    }
+
+    /**
+     * Get the number of pictures waiting to be uploaded
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return mLane.getDepth();
+    }
+
+    /**
+     * Get the number of pictures dropped because the queue was full
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return mLane.getDroppedCount();
+    }
+
+    /**
+     * Get the times single uploads took, from sending the request until the response was read, in nanoseconds
+     *
+     * @return
+     */
+    public LatencyHistogram getUploadTime() {
+        return mUploadTime;
+    }
+
+    /**
+     * Get the times from queuing pictures until they were uploaded, retries included, in nanoseconds
+     *
+     * @return
+     */
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public long getUploadedCount() {
+        return mUploaded;
+    }
+
+    /**
+     * Get the number of pictures given up on after {@link #MAX_ATTEMPTS} attempts
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return mFailed;
+    }
+
+    public long getRetryCount() {
+        return mRetries;
+    }
+
+    public long getUploadedBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Get the average rate pictures were uploaded at, while uploading
+     *
+     * @return The rate in bytes per second, or 0 if nothing was uploaded yet
+     */
+    public long getThroughput() {
+        long transferTime = mTransferTime;
+        return (transferTime > 0) ? mBytes * TimeUnit.SECONDS.toNanos(1) / transferTime : 0;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Upload a picture, retrying on failure
+     *
+     * @param jpeg
+     * @return true if it was uploaded
+     */
+    private boolean send(byte[] jpeg) {
+        mBackoff.reset();
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                if (post(jpeg)) {
+                    long uploadTime = System.nanoTime() - start;
+                    mUploadTime.record(uploadTime);
+                    mTransferTime += uploadTime;
+                    mBytes += jpeg.length;
+                    mUploaded++;
+                    return true;
+                }
+            } catch (IOException e) {
+                SLog.e(TAG, "Couldn't upload picture", e);
+            }
+
+            if (attempt == MAX_ATTEMPTS) {
+                SLog.w(TAG, "Giving up on a picture after %d attempts", attempt);
+                mFailed++;
+                return false;
+            }
+
+            if (!backOff(mBackoff.nextDelay())) {
+                // stopped
+                mFailed++;
+                return false;
+            }
+
+            mRetries++;
+        }
+    }
+
+    /**
+     * Wait before retrying an upload
+     *
+     * @param delay in milliseconds
+     * @return False if the uploader was stopped meanwhile
+     */
+    private boolean backOff(long delay) {
+        long deadline = System.currentTimeMillis() + delay;
+        synchronized (mLock) {
+            try {
+                while (mStarted) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return true;
+                    }
+
+                    mLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Post a picture over the persistent connection
+     *
+     * @param jpeg
+     * @return true if the server accepted it
+     * @throws IOException
+     */
+    private boolean post(byte[] jpeg) throws IOException {
+        ByteArrayEntity entity = new ByteArrayEntity(jpeg);
+        entity.setContentType(CONTENT_TYPE);
+        HttpPost request = new HttpPost(mServerAddress);
+        request.setEntity(entity);
+
+        HttpResponse response = mClient.execute(request);
+        HttpEntity responseEntity = response.getEntity();
+        if (responseEntity != null) {
+            // the connection is only reused once the response was read to its end
+            responseEntity.consumeContent();
+        }
+
+        int status = response.getStatusLine().getStatusCode();
+        if (status / 100 != 2) {
+            SLog.w(TAG, "Server refused picture: %d", status);
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,429 @@
+package com.la.motordroid.managers;
+
+import com.la.motordroid.commons.Event;
+import com.la.motordroid.commons.EventType;
+import com.labs.adk.LatencyHistogram;
+import com.labs.commons.SLog;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A thread of its own with a bounded queue, so that work of one kind never waits behind work of another. <br/>
+ * Once the queue is full, either the oldest queued task or the new one is dropped, see {@link Overflow}, and the
+ * drop is counted. How long tasks wait in the queue and how long they run is recorded. Queuing a task doesn't
+ * allocate. <br/>
+ * Events are handled on a lane through {@link #wrap(EventDispatcher.Handler)}, which keeps one preallocated task per
+ * (event, type) and coalesces events of the same kind that arrive while it's queued, or through
+ * {@link #wrapEach(EventDispatcher.Handler)}, which queues every event as a task of its own. <br/>
+ * Lifecycle tasks, such as starting or stopping what the other tasks work with, are posted with
+ * {@link #offerLifecycle(Runnable)}. They wait outside the queue and are never dropped for lack of room
+ *
+ * @author Amir Lazarovich
+ */
+public class Lane implements Executor {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "Lane";
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final String mName;
+    private final Overflow mOverflow;
+    private final int mPriority;
+    private final Object[] mLock;
+    private Thread mThread;
+
+    // member-queue: guarded by mLock
+    private final Runnable[] mTasks;
+    private final long[] mQueuedAt;
+    private int mHead;
+    private int mCount;
+    private int mMaxDepth;
+    private Runnable mLifecycleTask;
+    private long mLifecycleQueuedAt;
+
+    // member-statistics
+    private final LatencyHistogram mWaitTime;
+    private final LatencyHistogram mRunTime;
+    private volatile long mExecuted;
+    private volatile long mDropped;
+    private volatile long mCoalesced;
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    /**
+     * @param name     Names the lane's thread
+     * @param capacity The number of tasks that may wait in the queue
+     * @param overflow What to drop once the queue is full
+     * @param priority The priority of the lane's thread, see {@link Thread#setPriority(int)}
+     */
+    public Lane(String name, int capacity, Overflow overflow, int priority) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        mName = name;
+        mOverflow = overflow;
+        mPriority = priority;
+        mLock = new Object[0];
+        mTasks = new Runnable[capacity];
+        mQueuedAt = new long[capacity];
+        mWaitTime = new LatencyHistogram();
+        mRunTime = new LatencyHistogram();
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    public void start() {
+        synchronized (mLock) {
+            if (mThread != null) {
+                return;
+            }
+
+            mThread = new Thread(null, new Worker(), TAG + "-" + mName);
+            mThread.setPriority(mPriority);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop the lane's thread once the running task is done. Queued tasks are dropped
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (mThread != null) {
+                mThread.interrupt();
+                mThread = null;
+            }
+
+            while (mCount > 0) {
+                onDropped(poll());
+            }
+
+            mLifecycleTask = null;
+        }
+    }
+
+    /**
+     * Queue a task
+     *
+     * @param task
+     * @return False if the task was dropped, either because the queue is full or because the lane isn't started
+     */
+    public boolean offer(Runnable task) {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mDropped++;
+                return false;
+            }
+
+            if (mCount == mTasks.length) {
+                mDropped++;
+                if (mOverflow == Overflow.DROP_NEWEST) {
+                    return false;
+                }
+
+                onDropped(poll());
+            }
+
+            int tail = (mHead + mCount) % mTasks.length;
+            mTasks[tail] = task;
+            mQueuedAt[tail] = System.nanoTime();
+            mCount++;
+            if (mCount > mMaxDepth) {
+                mMaxDepth = mCount;
+            }
+
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Queue a lifecycle task. It runs before any queued task and isn't dropped when the queue is full; only the latest
+     * lifecycle task waits, so posting one replaces the one still waiting, if any. Meant for tasks that apply the
+     * latest wanted state, e.g. starting or stopping a stream, where only the last of them matters
+     *
+     * @param task
+     * @return False if the task was dropped because the lane isn't started
+     */
+    public boolean offerLifecycle(Runnable task) {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mDropped++;
+                return false;
+            }
+
+            if (mLifecycleTask == null) {
+                mLifecycleQueuedAt = System.nanoTime();
+            }
+
+            mLifecycleTask = task;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Get a handler that handles events on this lane instead of on the dispatching thread, without allocating. <br/>
+     * Every (event, type) has a task of its own, created here, that holds the arguments of the latest event. It's
+     * queued when an event arrives unless it's queued already, in which case the event replaces the arguments of the
+     * one still waiting. So only the latest event of every kind is handled, and the queue never holds more than one
+     * task per kind: give the lane room for all of them and it never overflows
+     *
+     * @param handler
+     * @return
+     */
+    public EventDispatcher.Handler wrap(final EventDispatcher.Handler handler) {
+        final Slot[][] slots = new Slot[Event.values().length][EventType.values().length];
+        for (Event event : Event.values()) {
+            for (EventType eventType : EventType.values()) {
+                slots[event.ordinal()][eventType.ordinal()] = new Slot(handler, event, eventType);
+            }
+        }
+
+        return new EventDispatcher.Handler() {
+            @Override
+            public void onEvent(Event event, EventType eventType, Object[] args) {
+                Slot slot = slots[event.ordinal()][eventType.ordinal()];
+                synchronized (mLock) {
+                    slot.mArgs = args;
+                    if (slot.mQueued) {
+                        mCoalesced++;
+                        return;
+                    }
+
+                    slot.mQueued = offer(slot);
+                }
+            }
+        };
+    }
+
+    /**
+     * Get a handler that handles events on this lane instead of on the dispatching thread. Every event is queued
+     * as a task of its own, allocated per event, so use it for rare events that mustn't be coalesced, e.g. toggles
+     *
+     * @param handler
+     * @return
+     */
+    public EventDispatcher.Handler wrapEach(final EventDispatcher.Handler handler) {
+        return new EventDispatcher.Handler() {
+            @Override
+            public void onEvent(final Event event, final EventType eventType, final Object[] args) {
+                offer(new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.onEvent(event, eventType, args);
+                    }
+                });
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////
+    // Overrides & Implementations
+    ///////////////////////////////////////////////
+
+    /**
+     * Same as {@link #offer(Runnable)}, ignoring whether the task was dropped
+     *
+     * @param task
+     */
+    @Override
+    public void execute(Runnable task) {
+        offer(task);
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the number of tasks waiting in the queue
+     *
+     * @return
+     */
+    public int getDepth() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    /**
+     * Get the largest number of tasks that ever waited in the queue at once
+     *
+     * @return
+     */
+    public int getMaxDepth() {
+        synchronized (mLock) {
+            return mMaxDepth;
+        }
+    }
+
+    /**
+     * Get the times tasks waited in the queue before they ran, in nanoseconds
+     *
+     * @return
+     */
+    public LatencyHistogram getWaitTime() {
+        return mWaitTime;
+    }
+
+    /**
+     * Get the times tasks ran for, in nanoseconds
+     *
+     * @return
+     */
+    public LatencyHistogram getRunTime() {
+        return mRunTime;
+    }
+
+    public long getExecutedCount() {
+        return mExecuted;
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Get the number of events that replaced the arguments of a queued event of the same kind, see
+     * {@link #wrap(EventDispatcher.Handler)}
+     *
+     * @return
+     */
+    public long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Take the oldest task out of the queue. Must be called while holding mLock
+     *
+     * @return
+     */
+    private Runnable poll() {
+        Runnable task = mTasks[mHead];
+        mTasks[mHead] = null;
+        mHead = (mHead + 1) % mTasks.length;
+        mCount--;
+        return task;
+    }
+
+    /**
+     * Let a dropped slot be queued again by the next event of its kind. Must be called while holding mLock
+     *
+     * @param task
+     */
+    private static void onDropped(Runnable task) {
+        if (task instanceof Slot) {
+            Slot slot = (Slot) task;
+            slot.mQueued = false;
+            slot.mArgs = null;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    public enum Overflow {
+        /**
+         * Drop the oldest queued task, for work where only the latest matters
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drop the new task, for work that is useless to repeat while it's already queued
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * The task of a single (event, type) of a wrapped handler. Its fields are guarded by mLock
+     */
+    private class Slot implements Runnable {
+        private final EventDispatcher.Handler mHandler;
+        private final Event mEvent;
+        private final EventType mEventType;
+        private Object[] mArgs;
+        private boolean mQueued;
+
+        Slot(EventDispatcher.Handler handler, Event event, EventType eventType) {
+            mHandler = handler;
+            mEvent = event;
+            mEventType = eventType;
+        }
+
+        @Override
+        public void run() {
+            Object[] args;
+            synchronized (mLock) {
+                // taken off the queue, events arriving from now on queue it again
+                args = mArgs;
+                mArgs = null;
+                mQueued = false;
+            }
+
+            mHandler.onEvent(mEvent, mEventType, args);
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            while (true) {
+                Runnable task;
+                long queuedAt;
+                synchronized (mLock) {
+                    while (mCount == 0 && mLifecycleTask == null && mThread == thread) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // stopped, checked right below
+                        }
+                    }
+
+                    if (mThread != thread) {
+                        return;
+                    }
+
+                    if (mLifecycleTask != null) {
+                        queuedAt = mLifecycleQueuedAt;
+                        task = mLifecycleTask;
+                        mLifecycleTask = null;
+                    } else {
+                        queuedAt = mQueuedAt[mHead];
+                        task = poll();
+                    }
+                }
+
+                long startedAt = System.nanoTime();
+                mWaitTime.record(startedAt - queuedAt);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    SLog.e(TAG, "Task failed on lane " + mName, e);
+                }
+
+                mRunTime.record(System.nanoTime() - startedAt);
+                mExecuted++;
+            }
+        }
+    }
+}
@@ -5,52 +5,77 @@ import android.content.res.AssetFileDescriptor;
 import android.hardware.Camera;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.util.Base64;
 import android.text.TextUtils;
 import com.la.motordroid.App;
 import com.la.motordroid.R;
+import com.la.motordroid.commons.Const;
 import com.la.motordroid.commons.Event;
 import com.la.motordroid.commons.EventType;
 import com.labs.adk.ADKManager;
 import com.labs.adk.Callback;
+import com.labs.adk.Capabilities;
+import com.labs.adk.LatencyHistogram;
+import com.labs.adk.RateController;
+import com.labs.adk.link.LinkProvider;
+import com.labs.adk.link.UsbHostLinkProvider;
+import com.labs.adk.link.UsbLinkProvider;
 import com.labs.commons.ADK;
 import com.labs.commons.SLog;
 import io.socket.IOAcknowledge;
 import io.socket.IOCallback;
 import io.socket.SocketIO;
 import io.socket.SocketIOException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Amir Lazarovich
  */
-public class SocketManager implements IOCallback, Callback {
+public class SocketManager implements IOCallback, Callback, TelemetryReporter.Sink, CameraStreamer.Sink {
     ///////////////////////////////////////////////
     // Constants
     ///////////////////////////////////////////////
     private static final String TAG = "SocketManager";
     private static final int PERIOD = 10000; // 10 seconds
+    private static final int KEEP_ALIVE_TIMEOUT = 2 * PERIOD;
+    private static final int ACCESSORY_TELEMETRY_RATE = 20; // in Hz, downsampled by the reporter
+    private static final double MIN_SEND_RATE = 10; // in Hz
+    private static final double MAX_SEND_RATE = 200; // in Hz
+    private static final int ARDUINO_VENDOR_ID = 0x2341;
+    private static final int CONTROL_LANE_CAPACITY = 64;
+    private static final int MEDIA_LANE_CAPACITY = 2;
 
     ///////////////////////////////////////////////
     // Members
     ///////////////////////////////////////////////
     private ADKManager mADKManager;
-    private Camera mCamera;
+    private ControlHandler mControlHandler;
+    private EventDispatcher mEventDispatcher;
+    private Lane mControlLane;
+    private Lane mCameraLane;
+    private Lane mAudioLane;
+    private TelemetryReporter mTelemetryReporter;
+    private volatile int mTelemetryRate;
+    private CameraStreamer mCameraStreamer;
+    private ImageUploader mImageUploader;
+    private volatile int mStreamRate;
+    private volatile boolean mStreamWanted; // while the socket is connected
     private MediaPlayer mPlayer;
     private Timer mTimer;
     private SocketIO mSocket;
+    private final LatencyHistogram mKeepAliveRtt = new LatencyHistogram();
+    private volatile long mLastKeepAliveRtt = -1;
+
+    private Context mContext;
+    private String mLinkMode;
 
     // member-listeners
     private SocketListener mListener;
@@ -61,9 +86,34 @@ public class SocketManager implements IOCallback, Callback {
 
     public SocketManager(Context context, SocketListener listener) {
         mListener = listener;
-        mADKManager = new ADKManager(context, this);
+        mContext = context.getApplicationContext();
+        mLinkMode = App.sConsts.LINK_MODE;
+        mADKManager = new ADKManager(createLinkProvider(mLinkMode), this, new Handler());
+        mADKManager.setRateController(new RateController(MIN_SEND_RATE, MAX_SEND_RATE));
+
+        // the activity posts whatever it shows to its own handler, so callbacks are kept off the UI thread,
+        // and acks reach it at most once per frame however fast commands are sent
+        mADKManager.setCallbackExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(null, runnable, TAG + "-callbacks");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        mADKManager.setAckCoalescing(ADKManager.FRAME_INTERVAL);
+        mControlHandler = new ControlHandler(mADKManager, listener);
+        mControlHandler.setDualAxis(App.sConsts.DUAL_AXIS_CONTROL);
+        initLanes();
+        initEventDispatcher();
+        mTelemetryReporter = new TelemetryReporter(mADKManager.getTelemetry(), this);
+        setTelemetryRate(App.sConsts.TELEMETRY_RATE);
+        setControlLoopRate(App.sConsts.CONTROL_LOOP_RATE);
         initPlayer(context);
         initCamera();
+        // started with every connection, the same uploader serves them all
+        mImageUploader = new ImageUploader(App.sConsts.SERVER_ADDRESS);
+        mStreamRate = App.sConsts.STREAM_RATE;
 
         //Timer getPic = new Timer();
         //getPic.schedule(new TakePicTask(), 1000*3);
@@ -90,14 +140,75 @@ public class SocketManager implements IOCallback, Callback {
     }
 
     /**
-     * Initialize the camera object
+     * Start the threads events are handled on, so that neither the socket's thread nor steering ever waits for the
+     * camera or the media player. <br/>
+     * Control events are coalesced per stick and for standby, so the control lane holds at most one task for each
+     * and never overflows: the latest value of a stick always reaches ControlHandler, a stop included unless a newer
+     * value of the same stick replaced it. A picture or a music toggle requested while two are already pending is dropped
+     */
+    private void initLanes() {
+        mControlLane = new Lane("control", CONTROL_LANE_CAPACITY, Lane.Overflow.DROP_OLDEST, Thread.MAX_PRIORITY);
+        mCameraLane = new Lane("camera", MEDIA_LANE_CAPACITY, Lane.Overflow.DROP_NEWEST, Thread.NORM_PRIORITY);
+        mAudioLane = new Lane("audio", MEDIA_LANE_CAPACITY, Lane.Overflow.DROP_NEWEST, Thread.NORM_PRIORITY);
+        mControlLane.start();
+        mCameraLane.start();
+        mAudioLane.start();
+    }
+
+    /**
+     * Register the handlers of the events received from the server, each on its lane
+     */
+    private void initEventDispatcher() {
+        mEventDispatcher = new EventDispatcher();
+        EventDispatcher.Handler controlHandler = mControlLane.wrap(mControlHandler);
+        mEventDispatcher.register(Event.CONTROL, EventType.LEFT_STICK, controlHandler);
+        mEventDispatcher.register(Event.CONTROL, EventType.RIGHT_STICK, controlHandler);
+        mEventDispatcher.register(Event.CONTROL, EventType.STANDBY, controlHandler);
+
+        EventDispatcher.Handler functionHandler = new EventDispatcher.Handler() {
+            @Override
+            public void onEvent(Event event, EventType eventType, Object[] args) {
+                onFunctionAction(eventType, (args.length > 1) ? args[1] : null);
+            }
+        };
+        mEventDispatcher.register(Event.FUNCTION, EventType.TAKE_PICTURE, mCameraLane.wrapEach(functionHandler));
+        mEventDispatcher.register(Event.FUNCTION, EventType.TOGGLE_MUSIC, mAudioLane.wrapEach(functionHandler));
+
+        // sent to every client by servers that still serve keep-alives over HTTP
+        mEventDispatcher.register(Event.KEEP_ALIVE, new EventDispatcher.Handler() {
+            @Override
+            public void onEvent(Event event, EventType eventType, Object[] args) {
+                SLog.d(TAG, "Keeping alive");
+            }
+        });
+    }
+
+    /**
+     * Create the provider of links to the ADK device
+     *
+     * @param linkMode {@link Const#LINK_MODE_ACCESSORY} or {@link Const#LINK_MODE_HOST}
+     * @return
+     */
+    private LinkProvider createLinkProvider(String linkMode) {
+        if (Const.LINK_MODE_HOST.equals(linkMode)) {
+            // the board's USB serial port, with the phone as the host. Debug builds only, see Const.parseLinkMode
+            return new UsbHostLinkProvider(mContext, ARDUINO_VENDOR_ID, UsbHostLinkProvider.ANY_PRODUCT);
+        }
+
+        return new UsbLinkProvider(mContext);
+    }
+
+    /**
+     * Initialize the camera object. It's opened on the {@link CameraStreamer}'s thread, where its callbacks are
+     * invoked
      */
     private void initCamera() {
-        mCamera = Camera.open();
-        Camera.Parameters parameters = mCamera.getParameters();
+        mCameraStreamer = new CameraStreamer(this);
+        Camera camera = mCameraStreamer.getCamera();
+        Camera.Parameters parameters = camera.getParameters();
         parameters.setRotation(90);
-        mCamera.setParameters(parameters);
-        mCamera.setDisplayOrientation(90);
+        camera.setParameters(parameters);
+        camera.setDisplayOrientation(90);
     }
 
     /**
@@ -111,6 +222,8 @@ public class SocketManager implements IOCallback, Callback {
             return;
         }
 
+        mImageUploader.setServerAddress(serverAddress);
+        mImageUploader.start();
         try {
             mSocket = new SocketIO(serverAddress);
             mSocket.connect(this);
@@ -147,8 +260,13 @@ public class SocketManager implements IOCallback, Callback {
                 mTimer.cancel();
             }
 
+            mTelemetryReporter.stop();
+            mStreamWanted = false;
+            mCameraLane.offerLifecycle(mStreamTask);
             mSocket.disconnect();
         }
+
+        mImageUploader.stop();
     }
 
     /**
@@ -163,6 +281,156 @@ public class SocketManager implements IOCallback, Callback {
         }
     }
 
+    /**
+     * Notify that the ADK device was attached, so that it's opened right away
+     */
+    public void onAccessoryAttached() {
+        mADKManager.onAccessoryAttached();
+    }
+
+    /**
+     * Send throttle and turn in a single frame, see {@link ControlHandler#setDualAxis(boolean)}.
+     * Firmware that announces {@link ADK#CAPABILITY_DUAL_AXIS} in the handshake gets it regardless
+     *
+     * @param dualAxis
+     */
+    public void setDualAxisControl(boolean dualAxis) {
+        Capabilities capabilities = mADKManager.getCapabilities();
+        mControlHandler.setDualAxis(dualAxis
+                || (capabilities != null && capabilities.supports(ADK.CAPABILITY_DUAL_AXIS)));
+    }
+
+    /**
+     * Set how often telemetry is sent to the server. The accessory is asked for samples only when telemetry is on;
+     * a change in that takes effect the next time it connects
+     *
+     * @param reportRate The number of batches per second, 0 for no telemetry
+     */
+    public void setTelemetryRate(int reportRate) {
+        mTelemetryRate = reportRate;
+        mADKManager.setTelemetryRate((reportRate > 0) ? ACCESSORY_TELEMETRY_RATE : 0);
+        if (mSocket != null && mSocket.isConnected()) {
+            mTelemetryReporter.start(reportRate);
+        }
+    }
+
+    /**
+     * Set the target frame rate of the camera stream. The stream runs while the socket is connected
+     *
+     * @param frameRate The number of frames per second, 0 for no stream
+     */
+    public void setStreamRate(int frameRate) {
+        mStreamRate = frameRate;
+        mCameraLane.offerLifecycle(mStreamTask);
+    }
+
+    /**
+     * Write the controls to the ADK device at a steady rate, see {@link ADKManager#startControlLoop(int)}
+     *
+     * @param rate The number of times per second, or 0 to write the controls as they arrive
+     */
+    public void setControlLoopRate(int rate) {
+        if (rate > 0) {
+            mADKManager.startControlLoop(rate);
+        } else {
+            mADKManager.stopControlLoop();
+        }
+    }
+
+    /**
+     * Switch the way the phone talks to the ADK device. The framing on top stays the same
+     *
+     * @param linkMode {@link Const#LINK_MODE_ACCESSORY} or {@link Const#LINK_MODE_HOST}
+     */
+    public void setLinkMode(String linkMode) {
+        if (linkMode.equals(mLinkMode)) {
+            return;
+        }
+
+        mLinkMode = linkMode;
+        mADKManager.setLinkProvider(createLinkProvider(linkMode));
+    }
+
+    /**
+     * Get the rate control commands are currently written to the ADK device at, as adapted to the state of the link
+     *
+     * @return The rate in Hz
+     */
+    public double getSendRate() {
+        return mADKManager.getSendRate();
+    }
+
+    /**
+     * Get the batches telemetry is sent to the server in
+     *
+     * @return
+     */
+    public TelemetryReporter getTelemetryReporter() {
+        return mTelemetryReporter;
+    }
+
+    /**
+     * Get the camera stream, e.g. for its frame latency
+     *
+     * @return
+     */
+    public CameraStreamer getCameraStreamer() {
+        return mCameraStreamer;
+    }
+
+    /**
+     * Get the uploader of the pictures taken, e.g. for its throughput
+     *
+     * @return
+     */
+    public ImageUploader getImageUploader() {
+        return mImageUploader;
+    }
+
+    /**
+     * Get the lane stick events are handled on, e.g. for its queue depth and latency
+     *
+     * @return
+     */
+    public Lane getControlLane() {
+        return mControlLane;
+    }
+
+    public Lane getCameraLane() {
+        return mCameraLane;
+    }
+
+    public Lane getAudioLane() {
+        return mAudioLane;
+    }
+
+    /**
+     * Get the dispatcher of the events received from the server, e.g. for the number of unknown events
+     *
+     * @return
+     */
+    public EventDispatcher getEventDispatcher() {
+        return mEventDispatcher;
+    }
+
+    /**
+     * Get the round trip times of keep-alives over the socket, in nanoseconds
+     *
+     * @return
+     */
+    public LatencyHistogram getKeepAliveRtt() {
+        return mKeepAliveRtt;
+    }
+
+    /**
+     * Get the round trip time of the last acknowledged keep-alive
+     *
+     * @return The time in nanoseconds, or -1 if none was acknowledged yet
+     */
+    public long getLastKeepAliveRtt() {
+        return mLastKeepAliveRtt;
+    }
+
     /**
      * Replace server address
      *
@@ -191,6 +459,9 @@ public class SocketManager implements IOCallback, Callback {
     @Override
     public void onDisconnect() {
         SLog.d(TAG, "Connection terminated");
+        mTelemetryReporter.stop();
+        mStreamWanted = false;
+        mCameraLane.offerLifecycle(mStreamTask);
         mListener.onSocketDisconnected();
     }
 
@@ -202,22 +473,11 @@ public class SocketManager implements IOCallback, Callback {
         }
 
         mTimer = new Timer();
-        mTimer.scheduleAtFixedRate(new TimerTask() {
-            public void run() {
-                SLog.d(TAG, "Trying to keepalive");
-                try {
-                    HttpClient client = new DefaultHttpClient();
-                    HttpGet request = new HttpGet();
-                    request.setURI(new URI(App.sConsts.SERVER_ADDRESS + "/keepalive"));
-                    client.execute(request);
-                } catch (Exception e) {
-                    SLog.e(TAG, "Couldn't keepalive", e);
-                    mTimer.cancel();
-                    mListener.onSocketDisconnected();
-                }
-            }
-        }, 0, PERIOD);
+        mTimer.scheduleAtFixedRate(new KeepAliveTask(mSocket, mTimer), 0, PERIOD);
 
+        mTelemetryReporter.start(mTelemetryRate);
+        mStreamWanted = true;
+        mCameraLane.offerLifecycle(mStreamTask);
         mListener.onSocketConnected();
     }
 
@@ -235,38 +495,7 @@ public class SocketManager implements IOCallback, Callback {
 
     @Override
     public void on(String rawEvent, IOAcknowledge ack, Object... args) {
-        SLog.d(TAG, "on:: event: %s, args[0]: %s", rawEvent, args[0]);
-
-        Event event = Event.getByValue(rawEvent);
-        EventType eventType = EventType.getByValue(args[0].toString());
-        switch (event) {
-            case CONTROL:
-                if (args.length >= 3) {
-                    Integer firstValue = (Integer) args[1];
-                    Integer secondValue = (Integer) args[2];
-                    if (firstValue != null && secondValue != null) {
-                        SLog.i(TAG, "Control:: [%s], firstValue: %s, secondValue: %s", eventType.getValue(), firstValue, secondValue);
-                        onControlAction(eventType, firstValue, secondValue);
-                    } else {
-                        SLog.w(TAG, "Missing either firstValue or secondValue to process command Control");
-                    }
-                } else {
-                    SLog.w(TAG, "Missing either firstValue or secondValue to process command Control");
-                }
-
-                break;
-
-            case FUNCTION:
-                onFunctionAction(eventType, (args.length > 1) ? args[1] : null);
-                break;
-
-            case KEEP_ALIVE:
-                SLog.d(TAG, "Keeping alive");
-                break;
-
-            default:
-                SLog.w(TAG, "Unknown event received: %s", rawEvent);
-        }
+        mEventDispatcher.dispatch(rawEvent, args);
     }
 
     @Override
@@ -279,6 +508,11 @@ public class SocketManager implements IOCallback, Callback {
         mListener.onAckReceived(ack);
     }
 
+    @Override
+    public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        mListener.onAcksReceived(lastAck, acks, nacks);
+    }
+
     @Override
     public void onConnected() {
         mListener.onConnected();
@@ -289,44 +523,39 @@ public class SocketManager implements IOCallback, Callback {
         mListener.onDisconnected();
     }
 
-    ///////////////////////////////////////////////
-    // Private
-    ///////////////////////////////////////////////
-
-    /**
-     * Handle actions directed to the motors
-     *
-     * @param eventType
-     * @param firstValue
-     * @param secondValue
-     */
-    private void onControlAction(EventType eventType, Integer firstValue, Integer secondValue) {
-        switch (eventType) {
-            case LEFT_STICK:
-                sendCommand(ADK.COMMAND_CONTROL,
-                        ADK.ACTION_LEFT_STICK,
-                        new byte[]{
-                                firstValue.byteValue(),
-                                secondValue.byteValue()
-                        });
-                break;
+    @Override
+    public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        setDualAxisControl(App.sConsts.DUAL_AXIS_CONTROL);
+        mListener.onCapabilitiesNegotiated(capabilities);
+    }
 
-            case RIGHT_STICK:
-                sendCommand(ADK.COMMAND_CONTROL,
-                        ADK.ACTION_RIGHT_STICK,
-                        new byte[]{
-                                firstValue.byteValue(),
-                                secondValue.byteValue()
-                        });
-                break;
+    @Override
+    public void onTelemetryBatch(JSONObject batch) {
+        SocketIO socket = mSocket;
+        if (socket != null && socket.isConnected()) {
+            socket.emit(Event.TELEMETRY.getValue(), batch);
+        }
+    }
 
-            default:
-                SLog.w(TAG, "Unknown event type detected: %s", eventType);
+    @Override
+    public boolean onFrame(int sequence, byte[] jpeg, int length) {
+        SocketIO socket = mSocket;
+        if (socket == null || !socket.isConnected()) {
+            return false;
         }
+
+        // the server acknowledges every frame with its sequence number once it got it
+        String data = Base64.encodeToString(jpeg, 0, length, Base64.NO_WRAP);
+        socket.emit(Event.FRAME.getValue(), mFrameAck, sequence, data);
+        return true;
     }
 
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
     /**
-     * Handle miscellaneous functions
+     * Handle miscellaneous functions. Called on the camera lane for pictures and on the audio lane for music
      *
      * @param eventType
      * @param data
@@ -334,7 +563,7 @@ public class SocketManager implements IOCallback, Callback {
     private void onFunctionAction(EventType eventType, Object data) {
         switch (eventType) {
             case TAKE_PICTURE:
-                mCamera.takePicture(shutterCallback, rawCallback, null, jpegCallback);
+                mCameraStreamer.takePicture(shutterCallback, rawCallback, jpegCallback);
                 break;
 
             case TOGGLE_MUSIC:
@@ -350,19 +579,6 @@ public class SocketManager implements IOCallback, Callback {
         }
     }
 
-    /**
-     * Send command to the ADK
-     *
-     * @param command
-     * @param action
-     * @param data
-     */
-    private void sendCommand(final byte command, final byte action, final byte[] data) {
-        mADKManager.sendCommand(command, action, data);
-        mListener.onSentCommand(command, action, data);
-    }
-
-
     ///////////////////////////////////////////////
     // Inner classes
     ///////////////////////////////////////////////
@@ -383,47 +599,107 @@ public class SocketManager implements IOCallback, Callback {
         public void onPictureTaken(byte[] data, Camera camera) {
             SLog.d(TAG, "onPictureTaken - wrote bytes: " + data.length);
             System.out.print("Length:" + data.length);
-            new SentPicTask().execute(data);
+            mImageUploader.upload(data);
             SLog.d(TAG, "onPictureTaken - jpeg");
+
+            // taking the picture stopped the preview
+            if (mCameraStreamer.isStreaming()) {
+                mCameraLane.offerLifecycle(mStreamTask);
+            }
         }
     };
 
     /**
-     * Send picture taken to the server
+     * Bring the camera stream to the wanted state: started at the current rate while the socket is connected, or
+     * stopped. Runs on the camera lane as a lifecycle task, so pending pictures never crowd it out, and it reads the
+     * wanted state when it runs, so whichever change came last wins
      */
-    private class SentPicTask extends AsyncTask<byte[], Integer, Long> {
+    private final Runnable mStreamTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mStreamWanted) {
+                mCameraStreamer.start(mStreamRate);
+            } else {
+                mCameraStreamer.stop();
+            }
+        }
+    };
 
+    private final IOAcknowledge mFrameAck = new IOAcknowledge() {
         @Override
-        protected Long doInBackground(byte[]... params) {
-            SLog.d(TAG, " params[0] wrote bytes: " + params[0].length);
+        public void ack(Object... args) {
+            if (args.length > 0 && args[0] instanceof Number) {
+                mCameraStreamer.onFrameDelivered(((Number) args[0]).intValue());
+            }
+        }
+    };
 
-            HttpClient httpclient = new DefaultHttpClient();
-            HttpPost httppost = new HttpPost(App.sConsts.SERVER_ADDRESS);
+    /**
+     * Keeps the server connection alive over the socket itself, and measures its round trip time. <br/>
+     * The server acknowledges every keep-alive with its sequence number; when none was acknowledged for
+     * {@link #KEEP_ALIVE_TIMEOUT} the server is considered gone
+     */
+    private class KeepAliveTask extends TimerTask implements IOAcknowledge {
+        private final SocketIO mKeepAliveSocket;
+        private final Timer mKeepAliveTimer;
+
+        // member-round-trip: the last keep-alive sent and the last acknowledge received, guarded by this
+        private int mSequence;
+        private long mSentAt;
+        private long mAckedAt = System.nanoTime();
+
+        /**
+         * @param socket
+         * @param timer  The timer running this task, cancelled once the server is considered gone
+         */
+        KeepAliveTask(SocketIO socket, Timer timer) {
+            mKeepAliveSocket = socket;
+            mKeepAliveTimer = timer;
+        }
 
-            InputStream dataStream = new ByteArrayInputStream(params[0]);
+        @Override
+        public void run() {
+            int sequence = -1;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (now - mAckedAt <= TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT)) {
+                    sequence = ++mSequence;
+                    mSentAt = now;
+                }
+            }
 
-            try {
-                SLog.d(TAG, " before sending 0  " + dataStream.available());
-            } catch (IOException e) {
-                SLog.e(TAG, "The stream was closed", e);
+            if (sequence < 0) {
+                SLog.w(TAG, "Keep-alive wasn't acknowledged for %d ms", KEEP_ALIVE_TIMEOUT);
+                // this run is the last one of the timer, its thread ends with it
+                mKeepAliveTimer.cancel();
+                mListener.onSocketDisconnected();
+                return;
             }
 
-            InputStreamEntity reqEntity;
-            try {
-                reqEntity = new InputStreamEntity(dataStream, dataStream.available());
-                reqEntity.setContentType("binary/octet-stream");
+            mKeepAliveSocket.emit(Event.KEEP_ALIVE.getValue(), this, sequence);
+        }
 
-                SLog.d(TAG, " before sending 1" + reqEntity.getContentLength());
+        @Override
+        public void ack(Object... args) {
+            if (args.length == 0 || !(args[0] instanceof Number)) {
+                SLog.w(TAG, "Malformed keep-alive acknowledge");
+                return;
+            }
+
+            long rtt;
+            synchronized (this) {
+                // a late acknowledge of an earlier keep-alive still shows the server is alive, but says nothing
+                // about the round trip of the last one
+                mAckedAt = System.nanoTime();
+                if (((Number) args[0]).intValue() != mSequence) {
+                    return;
+                }
 
-                //reqEntity.setChunked(true); // Send in multiple parts if needed
-                httppost.setEntity(reqEntity);
-                httpclient.execute(httppost);
-            } catch (Exception e) {
-                SLog.e(TAG, "Couldn't send image to server", e);
+                rtt = mAckedAt - mSentAt;
             }
 
-            SLog.d(TAG, "Async op");
-            return null;
+            mLastKeepAliveRtt = rtt;
+            mKeepAliveRtt.record(rtt);
         }
     }
 
@@ -433,12 +709,11 @@ public class SocketManager implements IOCallback, Callback {
     private class TakePicTask extends TimerTask {
 
         public void run() {
-            mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
+            mCameraStreamer.takePicture(shutterCallback, rawCallback, jpegCallback);
         }
     }
 
-    public interface SocketListener extends Callback {
-        void onSentCommand(byte command, byte action, byte[] data);
+    public interface SocketListener extends Callback, ControlHandler.Listener {
         void onSocketFailure();
         void onSocketDisconnected();
         void onSocketConnected();
@@ -0,0 +1,231 @@
+package com.la.motordroid.managers;
+
+import com.labs.adk.TelemetryBuffer;
+import com.labs.commons.SLog;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Sends the telemetry collected by a {@link TelemetryBuffer} upstream in batches. <br/>
+ * Every report drains the buffer and downsamples what it got to at most {@link #MAX_SAMPLES_PER_BATCH} samples, so
+ * the server sees a bounded number of samples per second whatever rate the accessory sends at. Each downsampled
+ * sample is the last of the samples it stands for, except that a collision in any of them is kept. <br/>
+ * A batch is a JSON object of parallel arrays: <code>t</code> (milliseconds since <code>start</code>),
+ * <code>distance</code> (mm), <code>speed</code> (cm/s) and <code>collision</code> (0/1), along with the number of
+ * <code>samples</code> it stands for and the number of samples <code>dropped</code> because the buffer overflowed
+ *
+ * @author Amir Lazarovich
+ */
+public class TelemetryReporter {
+    ///////////////////////////////////////////////
+    // Constants
+    ///////////////////////////////////////////////
+    private static final String TAG = "TelemetryReporter";
+    public static final int MAX_SAMPLES_PER_BATCH = 10;
+
+    ///////////////////////////////////////////////
+    // Members
+    ///////////////////////////////////////////////
+    private final TelemetryBuffer mBuffer;
+    private final Sink mSink;
+    private final Object[] mLock;
+    private Timer mTimer;
+
+    // member-drain: reused by every report
+    private final long[] mTimes;
+    private final int[] mDistances;
+    private final int[] mSpeeds;
+    private final boolean[] mCollisions;
+    private long mLastOverwritten;
+
+    // member-statistics
+    private long mReports;
+    private long mSamples;
+    private long mReportTime; // in nanoseconds
+
+    ///////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////
+
+    public TelemetryReporter(TelemetryBuffer buffer, Sink sink) {
+        mBuffer = buffer;
+        mSink = sink;
+        mLock = new Object[0];
+
+        int capacity = buffer.getCapacity();
+        mTimes = new long[capacity];
+        mDistances = new int[capacity];
+        mSpeeds = new int[capacity];
+        mCollisions = new boolean[capacity];
+    }
+
+    ///////////////////////////////////////////////
+    // Public
+    ///////////////////////////////////////////////
+
+    /**
+     * Start reporting, replacing any previous schedule
+     *
+     * @param reportRate The number of batches per second, 0 to stop reporting
+     */
+    public void start(int reportRate) {
+        synchronized (mLock) {
+            stop();
+            if (reportRate <= 0) {
+                return;
+            }
+
+            // whatever piled up while not reporting is stale
+            mBuffer.clear();
+            mLastOverwritten = mBuffer.getOverwrittenCount();
+
+            long period = Math.max(1, 1000 / reportRate);
+            mTimer = new Timer(TAG, true);
+            mTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    report();
+                }
+            }, period, period);
+        }
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            if (mTimer != null) {
+                mTimer.cancel();
+                mTimer = null;
+            }
+        }
+    }
+
+    /**
+     * Drain the buffer and send a single batch, if there's anything to send
+     */
+    public void report() {
+        synchronized (mLock) {
+            long start = System.nanoTime();
+            int count = mBuffer.drain(mTimes, mDistances, mSpeeds, mCollisions);
+            if (count == 0) {
+                return;
+            }
+
+            long overwritten = mBuffer.getOverwrittenCount();
+            long dropped = overwritten - mLastOverwritten;
+            mLastOverwritten = overwritten;
+
+            JSONObject batch;
+            try {
+                batch = createBatch(count, dropped);
+            } catch (JSONException e) {
+                SLog.e(TAG, "Couldn't create a telemetry batch", e);
+                return;
+            }
+
+            mSink.onTelemetryBatch(batch);
+
+            mReports++;
+            mSamples += count;
+            mReportTime += System.nanoTime() - start;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Getters & Setters
+    ///////////////////////////////////////////////
+
+    public long getReportCount() {
+        synchronized (mLock) {
+            return mReports;
+        }
+    }
+
+    /**
+     * Get the number of samples reported so far, before downsampling
+     *
+     * @return
+     */
+    public long getSampleCount() {
+        synchronized (mLock) {
+            return mSamples;
+        }
+    }
+
+    /**
+     * Get the average time it took to report a sample, from draining it to handing its batch to the {@link Sink}
+     *
+     * @return The time in nanoseconds
+     */
+    public long getCostPerSample() {
+        synchronized (mLock) {
+            return (mSamples > 0) ? mReportTime / mSamples : 0;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////
+
+    /**
+     * Downsample the drained samples into a batch
+     *
+     * @param count   The number of drained samples
+     * @param dropped The number of samples overwritten since the last batch
+     * @return
+     * @throws JSONException
+     */
+    private JSONObject createBatch(int count, long dropped) throws JSONException {
+        JSONArray times = new JSONArray();
+        JSONArray distances = new JSONArray();
+        JSONArray speeds = new JSONArray();
+        JSONArray collisions = new JSONArray();
+
+        long startTime = mTimes[0];
+        int buckets = Math.min(count, MAX_SAMPLES_PER_BATCH);
+        int from = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            int to = (int) ((long) (bucket + 1) * count / buckets);
+            boolean collision = false;
+            for (int i = from; i < to; i++) {
+                collision |= mCollisions[i];
+            }
+
+            int last = to - 1;
+            times.put(mTimes[last] - startTime);
+            distances.put(mDistances[last]);
+            speeds.put(mSpeeds[last]);
+            collisions.put(collision ? 1 : 0);
+            from = to;
+        }
+
+        JSONObject batch = new JSONObject();
+        batch.put("start", startTime);
+        batch.put("t", times);
+        batch.put("distance", distances);
+        batch.put("speed", speeds);
+        batch.put("collision", collisions);
+        batch.put("samples", count);
+        batch.put("dropped", dropped);
+        return batch;
+    }
+
+    ///////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////
+
+    /**
+     * Where batches go
+     */
+    public interface Sink {
+        /**
+         * Callback invoked on the reporting thread with every batch
+         *
+         * @param batch
+         */
+        void onTelemetryBatch(JSONObject batch);
+    }
+}
@@ -9,9 +9,11 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.*;
+import com.android.future.usb.UsbManager;
 import com.la.motordroid.App;
 import com.la.motordroid.R;
 import com.la.motordroid.managers.SocketManager;
+import com.labs.adk.Capabilities;
 import com.labs.commons.ADK;
 import com.labs.commons.AnimUtils;
 import com.labs.commons.SLog;
@@ -83,6 +85,16 @@ public class MainActivity extends Activity implements SocketManager.SocketListen
         android.os.Process.killProcess(android.os.Process.myPid());
     }
 
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+
+        // this activity is singleTop, a re-plugged accessory ends up here
+        if (UsbManager.ACTION_USB_ACCESSORY_ATTACHED.equals(intent.getAction())) {
+            mSocketManager.onAccessoryAttached();
+        }
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -90,6 +102,11 @@ public class MainActivity extends Activity implements SocketManager.SocketListen
         switch (requestCode) {
             case REQUEST_SETTINGS_ACTIVITY:
                 updateServerAddress();
+                mSocketManager.setDualAxisControl(App.sConsts.DUAL_AXIS_CONTROL);
+                mSocketManager.setTelemetryRate(App.sConsts.TELEMETRY_RATE);
+                mSocketManager.setControlLoopRate(App.sConsts.CONTROL_LOOP_RATE);
+                mSocketManager.setLinkMode(App.sConsts.LINK_MODE);
+                mSocketManager.setStreamRate(App.sConsts.STREAM_RATE);
                 mSocketManager.changeServerAddress(App.sConsts.SERVER_ADDRESS);
                 break;
         }
@@ -143,6 +160,11 @@ public class MainActivity extends Activity implements SocketManager.SocketListen
                 false));
     }
 
+    @Override
+    public void onCapabilitiesNegotiated(Capabilities capabilities) {
+        SLog.i(TAG, "ADK capabilities: %s", capabilities);
+    }
+
     @Override
     public void onSocketConnected() {
         mHandler.sendMessage(Message.obtain(null,
@@ -158,13 +180,13 @@ public class MainActivity extends Activity implements SocketManager.SocketListen
     }
 
     @Override
-    public void onSentCommand(byte command, byte action, byte[] data) {
+    public void onSentCommand(byte command, byte action, byte firstValue, byte secondValue) {
         SLog.d(TAG, "onSentCommand");
+        // pack everything into the message's int arguments so that no array is allocated per command
         mHandler.sendMessage(Message.obtain(null,
                 SENT_COMMAND,
-                command,
-                action,
-                data));
+                ((command & 0xFF) << 8) | (action & 0xFF),
+                ((firstValue & 0xFF) << 8) | (secondValue & 0xFF)));
     }
 
     @Override
@@ -172,9 +194,21 @@ public class MainActivity extends Activity implements SocketManager.SocketListen
         SLog.d(TAG, "onAckReceived: %b", ack);
         mHandler.sendMessage(Message.obtain(null,
                 ACK_RECEIVED,
+                ack ? 1 : 0,
+                ack ? 0 : 1,
                 ack));
     }
 
+    @Override
+    public void onAcksReceived(boolean lastAck, int acks, int nacks) {
+        SLog.d(TAG, "onAcksReceived: %b, %d acks, %d nacks", lastAck, acks, nacks);
+        mHandler.sendMessage(Message.obtain(null,
+                ACK_RECEIVED,
+                acks,
+                nacks,
+                lastAck));
+    }
+
     @Override
     public void onSocketFailure() {
         SLog.w(TAG, "onSocketFailure");
@@ -214,17 +248,10 @@ public class MainActivity extends Activity implements SocketManager.SocketListen
             switch (msg.what) {
                 case SENT_COMMAND:
                     if (mIsLogActive) {
-                        byte command = (byte) msg.arg1;
-                        byte action = (byte) msg.arg2;
-                        byte[] data = (byte[]) msg.obj;
-                        String firstValue = "{empty}";
-                        String secondValue = "{empty}";
-                        if (data != null && data.length > 0) {
-                            firstValue = String.valueOf(data[0]);
-                            if (data.length > 1) {
-                                secondValue = String.valueOf(data[1]);
-                            }
-                        }
+                        byte command = (byte) (msg.arg1 >> 8);
+                        byte action = (byte) msg.arg1;
+                        String firstValue = String.valueOf((byte) (msg.arg2 >> 8));
+                        String secondValue = String.valueOf((byte) msg.arg2);
 
                         mAdapter.add(getString(R.string.log_template,
                                 ADK.parseCommand(command),
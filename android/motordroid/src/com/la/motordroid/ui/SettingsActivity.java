@@ -6,6 +6,7 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import com.la.motordroid.App;
+import com.la.motordroid.commons.Const;
 
 /**
  * @author Amir Lazarovich
@@ -15,6 +16,11 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     // Constants
     //////////////////////////////////////////
     public static final String KEY_SERVER_ADDRESS = "server_address";
+    public static final String KEY_DUAL_AXIS_CONTROL = "dual_axis_control";
+    public static final String KEY_TELEMETRY_RATE = "telemetry_rate";
+    public static final String KEY_CONTROL_LOOP_RATE = "control_loop_rate";
+    public static final String KEY_LINK_MODE = "link_mode";
+    public static final String KEY_STREAM_RATE = "stream_rate";
 
 
     //////////////////////////////////////////
@@ -46,6 +52,16 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (key.equals(KEY_SERVER_ADDRESS)) {
             App.sConsts.SERVER_ADDRESS = sharedPreferences.getString(key, "");
+        } else if (key.equals(KEY_DUAL_AXIS_CONTROL)) {
+            App.sConsts.DUAL_AXIS_CONTROL = sharedPreferences.getBoolean(key, false);
+        } else if (key.equals(KEY_TELEMETRY_RATE)) {
+            App.sConsts.TELEMETRY_RATE = Const.parseTelemetryRate(sharedPreferences.getString(key, null));
+        } else if (key.equals(KEY_CONTROL_LOOP_RATE)) {
+            App.sConsts.CONTROL_LOOP_RATE = Const.parseControlLoopRate(sharedPreferences.getString(key, null));
+        } else if (key.equals(KEY_LINK_MODE)) {
+            App.sConsts.LINK_MODE = Const.parseLinkMode(sharedPreferences.getString(key, null));
+        } else if (key.equals(KEY_STREAM_RATE)) {
+            App.sConsts.STREAM_RATE = Const.parseStreamRate(sharedPreferences.getString(key, null));
         }
     }
 }
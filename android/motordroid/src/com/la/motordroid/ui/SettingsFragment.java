@@ -3,6 +3,7 @@ package com.la.motordroid.ui;
 import android.os.Bundle;
 import android.preference.PreferenceFragment;
 import com.la.motordroid.App;
+import com.la.motordroid.BuildConfig;
 import com.la.motordroid.R;
 
 /**
@@ -14,6 +15,10 @@ public class SettingsFragment extends PreferenceFragment {
         super.onCreate(savedInstanceState);
 
         addPreferencesFromResource(R.xml.settings);
+        if (BuildConfig.DEBUG) {
+            addPreferencesFromResource(R.xml.settings_debug);
+        }
+
         findPreference(SettingsActivity.KEY_SERVER_ADDRESS).setDefaultValue(App.sConsts.SERVER_ADDRESS);
     }
 }
\ No newline at end of file
@@ -25,11 +25,29 @@
 #define MOTOR_1                     1
 #define MOTOR_2                     2
 
+#define PROTOCOL_VERSION            1
+
 #define COMMAND_CONTROL             1
+#define COMMAND_HELLO               2
+#define COMMAND_ACK              0x80
+#define COMMAND_CAPABILITIES     0x81
+#define COMMAND_TELEMETRY        0x82
+
+#define FLAG_SEQUENCED           0x40
 
 #define ACTION_LEFT_STICK           1
 #define ACTION_RIGHT_STICK          2
 #define ACTION_STANDBY              3
+#define ACTION_DRIVE                4
+
+#define ACTION_ACK                  1
+#define ACTION_HELLO                1
+#define ACTION_DISTANCE             1
+
+#define CAPABILITY_SEQUENCED_ACKS 0x01
+#define CAPABILITY_DUAL_AXIS      0x02
+#define CAPABILITY_BATCHING       0x04
+#define CAPABILITY_TELEMETRY      0x08
 
 #define INPUT_MIN                -100
 #define INPUT_MAX                 100
@@ -41,6 +59,7 @@
 #define TURN_MAX                  255
 
 #define MAX_DISTANCE_TO_AVOID_COLLISION 70
+#define TELEMETRY_MAX_RATE         20 // in Hz
 //////////////////////////////////////////
 ////// Members
 //////////////////////////////////////////
@@ -57,6 +76,8 @@ Control _control;
 Ultrasonic _ultrasonic(TRIGGER_PIN, ECHO_PIN);
 long _lastDistanceSampleTime;
 float _lastDistanceInCM;
+byte _telemetryRate; // in Hz, as agreed on in the handshake
+long _lastTelemetryTime;
 //////////////////////////////////////////
 ////// Initialization
 //////////////////////////////////////////
@@ -103,6 +124,13 @@ void onMessageReceived(byte command, byte action, byte dataLength, byte* data) {
         _log->d("Command Control");
         onCommandControl(action, dataLength, data);
         break; 
+        
+     case COMMAND_HELLO:
+        _log->d("Command Hello");
+        // [protocol version][capabilities][requested telemetry rate in Hz]
+        _telemetryRate = dataLength > 2 ? min(data[2], TELEMETRY_MAX_RATE) : 0;
+        sendCapabilities();
+        break;
   }
 }
 
@@ -144,6 +172,24 @@ void onCommandControl(byte action, byte dataLength, byte* data) {
       } else {
         _control.standby = HIGH;
       }   
+      break;
+    }
+    
+    case ACTION_DRIVE: {
+      // throttle and turn together, optionally followed by standby
+      _log->d("Action Drive");
+      if (dataLength < 2) {
+        break;
+      }
+      
+      _control.throttle = map((int8_t) data[0], INPUT_MIN, INPUT_MAX, THROTTLE_MIN, THROTTLE_MAX);
+      _control.turn = map((int8_t) data[1], INPUT_MIN, INPUT_MAX, TURN_MIN, TURN_MAX);
+      _log->d("Throttle: ", _control.throttle);
+      _log->d("Turn: ", _control.turn);
+      if (dataLength > 2) {
+        _control.standby = data[2] ? LOW : HIGH;
+      }
+      break;
     }
   }     
 }
@@ -160,6 +206,7 @@ void onDetectCollision(int speed) {
   long deltaTime = currentDistanceSampleTime - _lastDistanceSampleTime;
   _lastDistanceSampleTime = currentDistanceSampleTime;
   int deltaDistance = abs(distanceInCM - _lastDistanceInCM) * 1000;
+  int approachSpeed = deltaTime > 0 ? (int) ((distanceInCM - _lastDistanceInCM) * 1000 / deltaTime) : 0; // in cm/s
   _lastDistanceInCM = distanceInCM;
   // V * T = D --> V = D / T
   float currentSpeed = deltaDistance / deltaTime;
@@ -169,7 +216,8 @@ void onDetectCollision(int speed) {
   
   
   _log->d("Distance from front objects: ", distanceInCM);
-  if (distanceInCM < MAX_DISTANCE_TO_AVOID_COLLISION && speed >= 0) {
+  boolean collision = distanceInCM < MAX_DISTANCE_TO_AVOID_COLLISION && speed >= 0;
+  if (collision) {
       _log->d("Collision detected! Shutting down all engines");
       _control.throttle = 0;
       _control.turn = 0;
@@ -180,6 +228,10 @@ void onDetectCollision(int speed) {
       digitalWrite(GREEN_LED_PIN, HIGH);  
   }  
   
+  if (_telemetryRate > 0 && currentDistanceSampleTime - _lastTelemetryTime >= 1000 / _telemetryRate) {
+      _lastTelemetryTime = currentDistanceSampleTime;
+      sendTelemetry(distanceInCM * 10, approachSpeed, collision);
+  }
 }
 
 //////////////////////////////////////////
@@ -272,6 +324,7 @@ void setMotorsStandby(int state) {
 ////// Android communication boilerplate 
 //////////////////////////////////////////
 #define BUFFER_SIZE                           16
+#define HEADER_SIZE                            3
 #define TIME_STEP_BETWEEN_USB_RECONNECTIONS 1000 // in milliseconds
 
 const char *USB_MANUFACTURER = "Amir Lazarovich";
@@ -322,8 +375,25 @@ void loop() {
       Serial.print(len, DEC);
       Serial.println(" bytes");
 
-      handleMsgFromDevice(msg);
-      sendAck();
+      // a single read may hold several messages
+      boolean legacyAck = false;
+      int offset = 0;
+      while (offset + HEADER_SIZE <= len) {
+        int msgLength = handleMsgFromDevice(msg + offset, len - offset);
+        if (msgLength == 0) {
+          break;
+        }
+        
+        // the capabilities sent back are the hello's ack
+        if (!(msg[offset] & FLAG_SEQUENCED) && msg[offset] != COMMAND_HELLO) {
+          legacyAck = true;
+        }
+        offset += msgLength;
+      }
+      
+      if (legacyAck || offset == 0) {
+        sendAck();
+      }
     }
   } else if (_lastTimeReconnectedToUsb + TIME_STEP_BETWEEN_USB_RECONNECTIONS < millis()) {
     Serial.println("USB is not connected. Trying to reconnect...");
@@ -338,19 +408,35 @@ void loop() {
  * Handle messages coming from the Android device
  *
  * @param msg The raw payload 
+ * @param available The number of bytes read from "msg" onwards
+ * @return The length of the handled message, or 0 if "msg" doesn't hold a complete message
  */
-void handleMsgFromDevice(byte* msg) {
+int handleMsgFromDevice(byte* msg, int available) {
   byte command = msg[0];
   byte action = msg[1];
   byte dataLength = msg[2];
+  if (HEADER_SIZE + dataLength > available) {
+    return 0;
+  }
+  
   printValues(command, action, dataLength);
-  onMessageReceived(command, action, dataLength, msg + 3); 
+  if (command & FLAG_SEQUENCED) {
+    // the last data byte is a sequence number to echo back
+    byte sequence = msg[HEADER_SIZE + dataLength - 1];
+    onMessageReceived(command & ~FLAG_SEQUENCED, action, dataLength - 1, msg + HEADER_SIZE);
+    sendSequencedAck(sequence);
+  } else {
+    onMessageReceived(command, action, dataLength, msg + HEADER_SIZE); 
+  }
+  
+  return HEADER_SIZE + dataLength;
 }
 
 /**
  * Try to reconnect to the Android device
  */
 void reconnectUsb() {
+  _telemetryRate = 0; // until the next handshake
   delete _acc;
   _acc = new AndroidAccessory(USB_MANUFACTURER,
                               USB_MODEL,
@@ -372,6 +458,61 @@ void sendAck() {
   }  
 }
 
+/**
+ * Acknowledge a sequence-numbered message by echoing its sequence number
+ *
+ * @param sequence The sequence number of the acknowledged message
+ */ 
+void sendSequencedAck(byte sequence) {
+  if (_acc->isConnected()) {
+    byte msg[HEADER_SIZE + 1];
+    msg[0] = COMMAND_ACK;
+    msg[1] = ACTION_ACK;
+    msg[2] = 1;
+    msg[3] = sequence;
+    _acc->write(msg, HEADER_SIZE + 1);
+  }  
+}
+
+/**
+ * Answer the Android device's hello with what this firmware supports
+ */ 
+void sendCapabilities() {
+  if (_acc->isConnected()) {
+    byte msg[HEADER_SIZE + 4];
+    msg[0] = COMMAND_CAPABILITIES;
+    msg[1] = ACTION_HELLO;
+    msg[2] = 4;
+    msg[3] = PROTOCOL_VERSION;
+    msg[4] = BUFFER_SIZE;
+    msg[5] = CAPABILITY_SEQUENCED_ACKS | CAPABILITY_DUAL_AXIS | CAPABILITY_BATCHING | CAPABILITY_TELEMETRY;
+    msg[6] = _telemetryRate;
+    _acc->write(msg, HEADER_SIZE + 4);
+  }  
+}
+
+/**
+ * Send a distance sample to the Android device
+ *
+ * @param distanceInMM The distance from the nearest object in front of the car
+ * @param speed The change in distance in cm/s, negative while getting closer
+ * @param collision Whether the motors were stopped to avoid a collision
+ */ 
+void sendTelemetry(unsigned int distanceInMM, int speed, boolean collision) {
+  if (_acc->isConnected()) {
+    byte msg[HEADER_SIZE + 5];
+    msg[0] = COMMAND_TELEMETRY;
+    msg[1] = ACTION_DISTANCE;
+    msg[2] = 5;
+    msg[3] = distanceInMM >> 8;
+    msg[4] = distanceInMM & 0xFF;
+    msg[5] = speed >> 8;
+    msg[6] = speed & 0xFF;
+    msg[7] = collision ? 1 : 0;
+    _acc->write(msg, HEADER_SIZE + 5);
+  }  
+}
+
 /**
  * Print the command, action and data length to serial port 
  *
@@ -3,6 +3,7 @@ from tornado.database import Connection
 import tornado.web as web
 import tornadio2
 
+import base64
 import hashlib
 import random
 import json
@@ -82,6 +83,33 @@ class LastImageHandler(web.RequestHandler):
 			"last-image" : image_id - 1
 		}))
 
+# live view of the car's camera, see CameraStreamer. Every viewer gets the latest frame, frames that come while
+# a viewer is still receiving the previous one are skipped for that viewer
+class StreamHandler(web.RequestHandler):
+	viewers = []
+
+	@web.asynchronous
+	def get(self, *args, **kw):
+		self.set_header("Content-Type", "multipart/x-mixed-replace; boundary=frame")
+		self.set_header("Cache-Control", "no-cache")
+		self.flush()
+		StreamHandler.viewers.append(self)
+
+	def on_connection_close(self):
+		if self in StreamHandler.viewers:
+			StreamHandler.viewers.remove(self)
+
+	@classmethod
+	def publish(cls, jpeg):
+		for viewer in cls.viewers:
+			if viewer.request.connection.stream.writing():
+				continue
+
+			viewer.write("--frame\r\nContent-Type: image/jpeg\r\nContent-Length: %d\r\n\r\n" % len(jpeg))
+			viewer.write(jpeg)
+			viewer.write("\r\n")
+			viewer.flush()
+
 class EventHandler(tornadio2.SocketConnection):
 	def on_open(self, request):
 		print "client connected."
@@ -109,6 +137,24 @@ class EventHandler(tornadio2.SocketConnection):
 	def log(self, **kwargs):
 		self.emit_all("log", **kwargs)
 
+	# answered through the acknowledge, so the car can time the round trip, see SocketManager.KeepAliveTask
+	@tornadio2.event
+	def keep_alive(self, sequence):
+		return sequence
+
+	# a camera frame from the car, acknowledged so that the car sends the next one and can time the delivery
+	@tornadio2.event
+	def frame(self, sequence, data):
+		StreamHandler.publish(base64.b64decode(data))
+		return sequence
+
+	# a batch of downsampled samples from the car, see TelemetryReporter
+	@tornadio2.event
+	def telemetry(self, batch):
+		for connection in connections:
+			if connection is not self:
+				connection.emit("telemetry", batch)
+
 class WebApp(object):
 	def __init__(self):
 		app_router = tornadio2.TornadioRouter(EventHandler)
@@ -119,7 +165,8 @@ class WebApp(object):
 			(r"/keepalive", KeepAliveHandler),
 			(r"/log", LogHandler),
 			(r"/gallery", GalleryHandler),
-			(r"/last-image", LastImageHandler)
+			(r"/last-image", LastImageHandler),
+			(r"/stream.mjpg", StreamHandler)
 		]
 
 		routes.extend(app_router.urls)